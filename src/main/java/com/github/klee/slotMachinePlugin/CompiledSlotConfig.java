@@ -0,0 +1,345 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.Color;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Particle;
+import org.bukkit.Sound;
+import org.bukkit.block.BlockFace;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.*;
+
+/**
+ * SlotConfig を回転処理用に解決したもの (SlotManager がロード時に作る)。
+ * <p>
+ * ・アイテム名 → Material / itemConfigs の ItemStack (停止表示用は SlotMachineItemKey 付き)
+ * ・サウンド名 → Sound、音量/ピッチ/半径は既定値を適用済み
+ * ・パーティクル名 → Particle、DUST の色 (DustOptions)、向きごとのオフセット
+ * ・回転中のシャッフル表示に使うアイテム一覧
+ * 回転中はここに用意した値を読むだけで、名前の解決やログ出力は行わない。
+ * 不正な名前はロード時に getWarnings() で報告する。
+ */
+public final class CompiledSlotConfig {
+
+    public static final double DEFAULT_VOLUME = 0.5;
+    public static final double DEFAULT_PITCH = 1.0;
+    public static final double DEFAULT_RADIUS = 10.0;
+    private static final double DEFAULT_ROTATING_VOLUME = 0.3;
+
+    private final SlotConfig config;
+    private final Set<String> warnings = new LinkedHashSet<>();
+
+    // 回転中の表示 (キーなし)、停止時の表示 (キー付き)
+    private final ItemStack[] shufflePool;
+    private final Map<String, ItemStack> reelItems = new HashMap<>();
+
+    private final SoundEffect startSound;
+    private final SoundEffect rotatingSound;
+    private final SoundEffect reelStopSound;
+    private final SoundEffect endLoseSound;
+    private final List<ParticleEmitter> defaultParticles;
+
+    // パターン・イベント・報酬ごとの解決結果 (設定オブジェクトの同一性で引く)
+    private final Map<SlotConfig.PatternConfig, PatternEffects> patternEffects = new IdentityHashMap<>();
+    private final Map<SlotConfig.EventDefinition, SoundEffect> eventSounds = new IdentityHashMap<>();
+    private final Map<SlotConfig.Reward, ItemStack> rewardItems = new IdentityHashMap<>();
+
+    // アイテムコスト (itemConfigs のアイテム or Material、どちらも無ければ null)
+    private final ItemStack costItem;
+    private final Material costMaterial;
+
+    private final ItemConfigManager itemConfigManager;
+
+    /**
+     * @param config            compileExpressions() 済みの設定
+     * @param itemConfigManager 読み込み済みの itemConfigs
+     * @param itemKey           停止表示のアイテムに付ける SlotMachineItemKey
+     */
+    public CompiledSlotConfig(SlotConfig config, ItemConfigManager itemConfigManager, NamespacedKey itemKey) {
+        this.config = config;
+        this.itemConfigManager = itemConfigManager;
+
+        // --- リールの表示 ---
+        List<ItemStack> pool = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        if (config.getPatterns() != null) {
+            for (SlotConfig.PatternConfig pc : config.getPatterns()) {
+                if (pc.getItems() == null) continue;
+                for (String item : pc.getItems()) {
+                    pool.add(resolveItem(item));
+                    names.add(item);
+                }
+            }
+        }
+        if (pool.isEmpty()) pool.add(new ItemStack(Material.STONE));
+        this.shufflePool = pool.toArray(new ItemStack[0]);
+
+        // ハズレ用に足された絵柄も停止表示に含める
+        if (config.getLosingTupleSampler() != null && config.getLosingTupleSampler().getFiller() != null) {
+            names.add(config.getLosingTupleSampler().getFiller());
+        }
+        for (String name : names) {
+            ItemStack keyed = resolveItem(name);
+            var meta = keyed.getItemMeta();
+            if (meta != null) {
+                meta.getPersistentDataContainer().set(itemKey, PersistentDataType.STRING, name);
+                keyed.setItemMeta(meta);
+            }
+            reelItems.put(name, keyed);
+        }
+
+        // --- デフォルトサウンド ---
+        SlotConfig.DefaultSoundSettings ds = config.getDefaultSoundSettings();
+        if (ds != null) {
+            var s = ds.getStartSound();
+            this.startSound = (s == null) ? null : sound(s.getType(), s.getVolume(), s.getPitch(),
+                    ((s.getRadius() > 0) || (s.getRadius() == -1)) ? s.getRadius() : DEFAULT_RADIUS, DEFAULT_VOLUME);
+            var r = ds.getRotatingSound();
+            this.rotatingSound = (r == null) ? null : sound(r.getType(), r.getVolume(), r.getPitch(), r.getRadius(), DEFAULT_ROTATING_VOLUME);
+            var st = ds.getReelStopSound();
+            this.reelStopSound = (st == null) ? null : sound(st.getType(), st.getVolume(), st.getPitch(), st.getRadius(), DEFAULT_VOLUME);
+            var l = ds.getEndLoseSound();
+            this.endLoseSound = (l == null) ? null : sound(l.getType(), l.getVolume(), l.getPitch(), l.getRadius(), DEFAULT_VOLUME);
+        } else {
+            this.startSound = null;
+            this.rotatingSound = null;
+            this.reelStopSound = null;
+            this.endLoseSound = null;
+        }
+        this.defaultParticles = particles(config.getDefaultParticleSettings());
+
+        // --- パターン ---
+        if (config.getPatterns() != null) {
+            for (SlotConfig.PatternConfig pc : config.getPatterns()) {
+                var ps = pc.getPatternSound();
+                SoundEffect winSound = (ps == null) ? null : sound(ps.getType(), ps.getVolume(), ps.getPitch(), ps.getRadius(), DEFAULT_VOLUME);
+                SoundEffect broadcastSound = null;
+                if (pc.getBroadcastSettings() != null && pc.getBroadcastSettings().getBroadcastSound() != null) {
+                    var bs = pc.getBroadcastSettings().getBroadcastSound();
+                    broadcastSound = sound(bs.getType(), bs.getVolume(), bs.getPitch(), bs.getRadius(), DEFAULT_VOLUME);
+                }
+                patternEffects.put(pc, new PatternEffects(winSound, broadcastSound, particles(pc.getParticleSettings())));
+                compileRewards(pc.getRewards());
+                compileEvents(pc.getEvent());
+            }
+        }
+        compileEvents(config.getEvent());
+
+        // --- アイテムコスト ---
+        SlotConfig.ItemCost ic = config.getItemCost();
+        ItemStack custom = null;
+        Material mat = null;
+        if (ic != null && ic.getName() != null && !ic.getName().isEmpty() && ic.getAmount() > 0) {
+            custom = itemConfigManager.getItemByKey(ic.getName());
+            if (custom == null) {
+                mat = Material.matchMaterial(ic.getName());
+                if (mat == null) warnings.add("itemCost のアイテム名が不正です: " + ic.getName());
+            }
+        }
+        this.costItem = custom;
+        this.costMaterial = mat;
+    }
+
+    private void compileEvents(List<SlotConfig.EventDefinition> events) {
+        if (events == null) return;
+        for (SlotConfig.EventDefinition evt : events) {
+            if (evt == null) continue;
+            var es = evt.getEventSound();
+            if (es != null) {
+                eventSounds.put(evt, sound(es.getType(), es.getVolume(), es.getPitch(), es.getRadius(), DEFAULT_VOLUME));
+            }
+            compileRewards(evt.getRewards());
+        }
+    }
+
+    private void compileRewards(List<SlotConfig.Reward> rewards) {
+        for (SlotConfig.Reward rw : rewards) {
+            if (rw != null && "item".equalsIgnoreCase(rw.getType())) {
+                rewardItems.put(rw, resolveItem(rw.getValue()));
+            }
+        }
+    }
+
+    /**
+     * itemConfigs のキー → Material 名 の順で解決 (どちらでもなければ STONE)
+     */
+    private ItemStack resolveItem(String name) {
+        if (name != null) {
+            ItemStack custom = itemConfigManager.getItemByKey(name);
+            if (custom != null) return custom.clone();
+            Material mat = Material.matchMaterial(name);
+            if (mat != null) return new ItemStack(mat);
+        }
+        warnings.add("不明なアイテム: " + name + " (STONE で表示します)");
+        return new ItemStack(Material.STONE);
+    }
+
+    /**
+     * サウンド名を解決 (type が空なら null = 鳴らさない)
+     */
+    private SoundEffect sound(String type, double volume, double pitch, double radius, double defaultVolume) {
+        if (type == null || type.isEmpty()) return null;
+        Sound snd;
+        try {
+            String sname = type
+                    .replace("minecraft:", "")
+                    .toUpperCase(Locale.ROOT)
+                    .replace(".", "_");
+            snd = Sound.valueOf(sname);
+        } catch (Exception ex) {
+            warnings.add("不明なサウンド: " + type);
+            return null;
+        }
+        return new SoundEffect(snd,
+                (float) ((volume > 0) ? volume : defaultVolume),
+                (float) ((pitch > 0) ? pitch : DEFAULT_PITCH),
+                (radius != 0) ? radius : DEFAULT_RADIUS);
+    }
+
+    private List<ParticleEmitter> particles(List<SlotConfig.ParticleSetting> settings) {
+        if (settings == null || settings.isEmpty()) return Collections.emptyList();
+        List<ParticleEmitter> list = new ArrayList<>();
+        for (SlotConfig.ParticleSetting ps : settings) {
+            if (ps == null || ps.getParticle() == null || ps.getParticle().isEmpty()) continue;
+            Particle particle;
+            try {
+                particle = Particle.valueOf(ps.getParticle().toUpperCase(Locale.ROOT));
+            } catch (Exception ex) {
+                warnings.add("不明なパーティクル: " + ps.getParticle());
+                continue;
+            }
+            boolean atButton = "button".equalsIgnoreCase(ps.getPoint());
+            boolean atFrames = "frame".equalsIgnoreCase(ps.getPoint());
+            if (!atButton && !atFrames) {
+                warnings.add("パーティクルの point が不正です (button / frame): " + ps.getPoint());
+                continue;
+            }
+            Particle.DustOptions dust = null;
+            if (particle == Particle.DUST && ps.getColor() != null && ps.getColor().length >= 3) {
+                double[] c = ps.getColor();
+                dust = new Particle.DustOptions(
+                        Color.fromRGB((int) ((float) c[0] * 255), (int) ((float) c[1] * 255), (int) ((float) c[2] * 255)), 1.0F);
+            }
+            double[] off = (ps.getOffset() != null && ps.getOffset().length >= 3) ? ps.getOffset() : new double[3];
+            list.add(new ParticleEmitter(particle, ps.getCount(), ps.getSpeed(), dust, atButton,
+                    new double[]{-off[0], off[1], off[2]},   // NORTH
+                    new double[]{off[0], off[1], -off[2]},   // SOUTH
+                    new double[]{off[2], off[1], -off[0]},   // EAST
+                    new double[]{off[2], off[1], off[0]}));  // WEST
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    // --------------------------------------------------
+    // Getters
+    // --------------------------------------------------
+
+    public SlotConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * ロード時に見つかった不正な名前など
+     */
+    public List<String> getWarnings() {
+        return List.copyOf(warnings);
+    }
+
+    /**
+     * 回転中の表示に使うアイテム (パターンの items を並べたもの、重複あり)。
+     * ItemFrame#setItem はコピーを保持するので、返したインスタンスをそのまま渡してよい (変更はしないこと)。
+     */
+    public ItemStack[] getShufflePool() {
+        return shufflePool;
+    }
+
+    /**
+     * 停止時の表示アイテム (SlotMachineItemKey 付き)。変更はしないこと。
+     */
+    public ItemStack getReelItem(String name) {
+        return reelItems.get(name);
+    }
+
+    public SoundEffect getStartSound() {
+        return startSound;
+    }
+
+    public SoundEffect getRotatingSound() {
+        return rotatingSound;
+    }
+
+    public SoundEffect getReelStopSound() {
+        return reelStopSound;
+    }
+
+    public SoundEffect getEndLoseSound() {
+        return endLoseSound;
+    }
+
+    public List<ParticleEmitter> getDefaultParticles() {
+        return defaultParticles;
+    }
+
+    public PatternEffects getPatternEffects(SlotConfig.PatternConfig pattern) {
+        return patternEffects.get(pattern);
+    }
+
+    public SoundEffect getEventSound(SlotConfig.EventDefinition evt) {
+        return eventSounds.get(evt);
+    }
+
+    /**
+     * item 報酬のアイテム (個数は呼び出し側で clone して設定する)
+     */
+    public ItemStack getRewardItem(SlotConfig.Reward reward) {
+        return rewardItems.get(reward);
+    }
+
+    public ItemStack getCostItem() {
+        return costItem;
+    }
+
+    public Material getCostMaterial() {
+        return costMaterial;
+    }
+
+    //================================================
+    // 解決済みの演出
+    //================================================
+
+    /**
+     * 解決済みのサウンド
+     *
+     * @param radius -1: 本人のみ, -2: ワールド全員, それ以外: ボタンからの半径
+     */
+    public record SoundEffect(Sound sound, float volume, float pitch, double radius) {
+    }
+
+    /**
+     * 解決済みのパーティクル (オフセットはボタンの向きごとに変換済み)
+     */
+    public record ParticleEmitter(Particle particle, int count, double speed, Particle.DustOptions dust,
+                                  boolean atButton,
+                                  double[] north, double[] south, double[] east, double[] west) {
+
+        private static final double[] ZERO = new double[3];
+
+        public double[] offsetFor(BlockFace facing) {
+            return switch (facing) {
+                case NORTH -> north;
+                case SOUTH -> south;
+                case EAST -> east;
+                case WEST -> west;
+                default -> ZERO;
+            };
+        }
+    }
+
+    /**
+     * パターンごとの当たり演出
+     */
+    public record PatternEffects(SoundEffect winSound, SoundEffect broadcastSound, List<ParticleEmitter> particles) {
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.ItemFrame;
+
+import java.util.*;
+
+/**
+ * 台ごとのリール額縁のキャッシュ。
+ * <p>
+ * ・一度見つけた額縁を台ID単位で保持し、回転ごとの getNearbyEntities を省く
+ * ・額縁の破壊 (HangingBreakEvent)、エンティティの削除 (EntityRemoveEvent)、
+ *   チャンクのアンロードで無効化し、次の回転で探し直す
+ * ・ボタンの向きが変わった場合、無効になった額縁が混ざっている場合もキャッシュを使わない
+ * メインスレッドからのみ使う。
+ */
+public class FrameCache {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    // 額縁UUID → 台ID
+    private final Map<UUID, String> byFrame = new HashMap<>();
+    // チャンク → その中に額縁がある台ID
+    private final Map<ChunkKey, Set<String>> byChunk = new HashMap<>();
+
+    /**
+     * キャッシュ済みの額縁 (無い・向きが違う・無効な額縁がある場合は null)
+     *
+     * @param orientation ボタンの取り付け面と向き (例: "WALL_NORTH")
+     */
+    public List<ItemFrame> get(String machineId, String orientation) {
+        Entry e = entries.get(machineId);
+        if (e == null) return null;
+        if (!e.orientation.equals(orientation)) {
+            invalidate(machineId);
+            return null;
+        }
+        for (ItemFrame f : e.frames) {
+            if (!f.isValid()) {
+                invalidate(machineId);
+                return null;
+            }
+        }
+        return e.frames;
+    }
+
+    public void put(String machineId, String orientation, List<ItemFrame> frames) {
+        invalidate(machineId);
+        Entry e = new Entry(orientation, List.copyOf(frames));
+        entries.put(machineId, e);
+        for (ItemFrame f : e.frames) {
+            byFrame.put(f.getUniqueId(), machineId);
+            ChunkKey ck = ChunkKey.of(f.getLocation());
+            e.chunks.add(ck);
+            byChunk.computeIfAbsent(ck, k -> new HashSet<>()).add(machineId);
+        }
+    }
+
+    /**
+     * 台のキャッシュを捨てる
+     */
+    public void invalidate(String machineId) {
+        Entry e = entries.remove(machineId);
+        if (e == null) return;
+        for (ItemFrame f : e.frames) {
+            byFrame.remove(f.getUniqueId());
+        }
+        for (ChunkKey ck : e.chunks) {
+            Set<String> ids = byChunk.get(ck);
+            if (ids != null) {
+                ids.remove(machineId);
+                if (ids.isEmpty()) byChunk.remove(ck);
+            }
+        }
+    }
+
+    /**
+     * 額縁が壊れた・削除された
+     */
+    public void invalidateFrame(UUID frameId) {
+        String machineId = byFrame.get(frameId);
+        if (machineId != null) invalidate(machineId);
+    }
+
+    /**
+     * チャンクがアンロードされた
+     */
+    public void invalidateChunk(World world, int chunkX, int chunkZ) {
+        Set<String> ids = byChunk.get(new ChunkKey(world.getName(), chunkX, chunkZ));
+        if (ids == null) return;
+        for (String machineId : new ArrayList<>(ids)) {
+            invalidate(machineId);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        byFrame.clear();
+        byChunk.clear();
+    }
+
+    private static final class Entry {
+        private final String orientation;
+        private final List<ItemFrame> frames;
+        private final Set<ChunkKey> chunks = new HashSet<>();
+
+        private Entry(String orientation, List<ItemFrame> frames) {
+            this.orientation = orientation;
+            this.frames = frames;
+        }
+    }
+
+    private record ChunkKey(String world, int x, int z) {
+        static ChunkKey of(Location loc) {
+            return new ChunkKey(loc.getWorld().getName(), loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+        }
+    }
+}
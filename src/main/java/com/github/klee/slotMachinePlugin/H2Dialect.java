@@ -0,0 +1,75 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * H2 (組み込みなら plugins/SlotMachinePlugin/slotData.mv.db、jdbc:h2:tcp://... ならサーバー)。
+ * <p>
+ * 集計への足し込みは標準の MERGE ... USING で行う (H2 は ON CONFLICT DO UPDATE を持たない)。
+ * ドライバは plugin.yml の libraries で読み込む。
+ */
+final class H2Dialect implements StorageDialect {
+
+    // 組み込みの H2 は1文が大きくても速さはほぼ変わらないため控えめに
+    private static final int INSERT_ROWS = 200;
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    H2Dialect(String url, String user, String password) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * データフォルダの slotData.mv.db を使う URL
+     */
+    static String fileUrl(File dataFolder) {
+        return "jdbc:h2:" + new File(dataFolder, "slotData").getAbsolutePath();
+    }
+
+    @Override
+    public String name() {
+        return "H2 (" + url + ")";
+    }
+
+    @Override
+    public Connection open() throws SQLException {
+        return StorageDialect.connect("org.h2.Driver", url, user, password);
+    }
+
+    @Override
+    public int insertRowsPerStatement() {
+        return INSERT_ROWS;
+    }
+
+    @Override
+    public String insertIfAbsentSql(String table, String column) {
+        return "MERGE INTO " + table + " (" + column + ") KEY (" + column + ") VALUES (?)";
+    }
+
+    @Override
+    public String upsertRollupSql(String table, String keyColumn) {
+        return "MERGE INTO " + table + " t USING (VALUES (CAST(? AS BIGINT), CAST(? AS VARCHAR(191)),"
+                + " CAST(? AS DOUBLE PRECISION), CAST(? AS DOUBLE PRECISION), CAST(? AS INTEGER)))"
+                + " AS s (hour_bucket, " + keyColumn + ", income, cost, spins)\n"
+                + "ON t.hour_bucket = s.hour_bucket AND t." + keyColumn + " = s." + keyColumn + "\n"
+                + "WHEN MATCHED THEN UPDATE SET income = t.income + s.income, cost = t.cost + s.cost, spins = t.spins + s.spins\n"
+                + "WHEN NOT MATCHED THEN INSERT (hour_bucket, " + keyColumn + ", income, cost, spins)"
+                + " VALUES (s.hour_bucket, s." + keyColumn + ", s.income, s.cost, s.spins)";
+    }
+
+    @Override
+    public String uuidText(String column) {
+        return "CAST(CAST(" + column + " AS UUID) AS VARCHAR(36))";
+    }
+
+    @Override
+    public String deleteExpiredSql() {
+        return "DELETE FROM slot_records WHERE timestamp < ? FETCH FIRST ? ROWS ONLY";
+    }
+}
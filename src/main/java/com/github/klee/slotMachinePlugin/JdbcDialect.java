@@ -0,0 +1,118 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * サーバー型の DB (storage.url の MySQL / MariaDB / PostgreSQL)。複数のサーバーから同じ DB に記録する。
+ * <p>
+ * ・ドライバは MySQL が Paper に同梱のもの (MariaDB も jdbc:mysql:// で)、PostgreSQL が plugin.yml の libraries のもの
+ * ・MySQL / MariaDB は ON DUPLICATE KEY UPDATE、PostgreSQL は ON CONFLICT DO UPDATE で集計に足し込む
+ * ・複数行 INSERT は1文を大きめにして、往復の回数を減らす
+ */
+final class JdbcDialect implements StorageDialect {
+
+    /**
+     * SQL の書き方の違い
+     */
+    enum Flavor {
+        // 1文 500行 (max_allowed_packet の既定 4MB に十分収まる)
+        MYSQL("com.mysql.cj.jdbc.Driver", 500),
+        // 1文 1000行 (パラメータ 5000 個。上限は 32767)
+        POSTGRESQL("org.postgresql.Driver", 1000);
+
+        private final String driverClass;
+        private final int insertRows;
+
+        Flavor(String driverClass, int insertRows) {
+            this.driverClass = driverClass;
+            this.insertRows = insertRows;
+        }
+
+        /**
+         * @return 対応していない URL なら null
+         */
+        static Flavor fromUrl(String url) {
+            if (url.startsWith("jdbc:mysql:")) return MYSQL;
+            if (url.startsWith("jdbc:postgresql:")) return POSTGRESQL;
+            return null;
+        }
+    }
+
+    private final Flavor flavor;
+    private final String url;
+    private final String user;
+    private final String password;
+
+    JdbcDialect(Flavor flavor, String url, String user, String password) {
+        this.flavor = flavor;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    @Override
+    public String name() {
+        // ?以降 (パスワードを含むことがある) は出さない
+        int q = url.indexOf('?');
+        return q < 0 ? url : url.substring(0, q);
+    }
+
+    @Override
+    public Connection open() throws SQLException {
+        return StorageDialect.connect(flavor.driverClass, url, user, password);
+    }
+
+    @Override
+    public int insertRowsPerStatement() {
+        return flavor.insertRows;
+    }
+
+    @Override
+    public String identityColumn(String sqlType) {
+        return flavor == Flavor.POSTGRESQL
+                ? StorageDialect.super.identityColumn(sqlType)
+                : sqlType + " AUTO_INCREMENT PRIMARY KEY";
+    }
+
+    @Override
+    public String binaryType(int length) {
+        return flavor == Flavor.POSTGRESQL ? "BYTEA" : StorageDialect.super.binaryType(length);
+    }
+
+    @Override
+    public String insertIfAbsentSql(String table, String column) {
+        return flavor == Flavor.POSTGRESQL
+                ? "INSERT INTO " + table + " (" + column + ") VALUES (?) ON CONFLICT DO NOTHING"
+                : "INSERT IGNORE INTO " + table + " (" + column + ") VALUES (?)";
+    }
+
+    @Override
+    public String upsertRollupSql(String table, String keyColumn) {
+        String insert = "INSERT INTO " + table + " (hour_bucket, " + keyColumn + ", income, cost, spins) VALUES (?,?,?,?,?)\n";
+        if (flavor == Flavor.POSTGRESQL) {
+            return insert + "ON CONFLICT (hour_bucket, " + keyColumn + ") DO UPDATE SET\n"
+                    + "   income = " + table + ".income + excluded.income, cost = " + table + ".cost + excluded.cost,"
+                    + " spins = " + table + ".spins + excluded.spins";
+        }
+        return insert + "ON DUPLICATE KEY UPDATE\n"
+                + "   income = income + VALUES(income), cost = cost + VALUES(cost), spins = spins + VALUES(spins)";
+    }
+
+    @Override
+    public String uuidText(String c) {
+        if (flavor == Flavor.POSTGRESQL) {
+            return "CAST(CAST(encode(" + c + ", 'hex') AS UUID) AS VARCHAR(36))";
+        }
+        return "lower(concat_ws('-', substr(hex(" + c + "),1,8), substr(hex(" + c + "),9,4), substr(hex(" + c + "),13,4),"
+                + " substr(hex(" + c + "),17,4), substr(hex(" + c + "),21)))";
+    }
+
+    @Override
+    public String deleteExpiredSql() {
+        // MySQL / MariaDB は IN (サブクエリ) の中で LIMIT を使えない
+        return flavor == Flavor.POSTGRESQL
+                ? StorageDialect.super.deleteExpiredSql()
+                : "DELETE FROM slot_records WHERE timestamp < ? LIMIT ?";
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * 文字列のまま保存された以前の記録 (slot_records_legacy) を、番号の slot_records に少しずつ移すクラス。
+ * <p>
+ * ・古い id 順に数千行ずつ、1トランザクションで「番号を引いて INSERT → 元の行を DELETE」する
+ * ・1回ごとに間を空けて書き込みスレッドに譲る (サーバーを止めずに移す)
+ * ・途中で止まっても、次の起動で残りから続ける
+ * ・すべて移したら slot_records_legacy を消す
+ * 集計テーブル (slot_hourly / user_hourly) には以前の行も含まれているので、移す間も集計は変わらない。
+ */
+public class LegacyRecordMigrator implements Runnable {
+
+    private static final String SELECT_SQL =
+            "SELECT id, uuid, slot_id, timestamp, profit FROM slot_records_legacy ORDER BY id LIMIT ?";
+    private static final String DELETE_SQL = "DELETE FROM slot_records_legacy WHERE id <= ?";
+    private static final int BATCH_SIZE = 5000;
+    // 1回移した後に空ける時間 (ms)
+    private static final long PAUSE_MS = 50L;
+
+    private final Plugin plugin;
+    private final SlotDatabase database;
+    private final SlotRecordInserter inserter;
+    private volatile boolean stopped;
+
+    public LegacyRecordMigrator(Plugin plugin, SlotDatabase database) {
+        this.plugin = plugin;
+        this.database = database;
+        this.inserter = new SlotRecordInserter(database);
+    }
+
+    /**
+     * 以前の記録が残っていれば、非同期で移し始める
+     */
+    public void start() {
+        if (!database.hasLegacyRecords()) return;
+        stopped = false;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, this);
+    }
+
+    /**
+     * 次の区切りで止める (onDisable 用)
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        plugin.getLogger().info("[LegacyRecordMigrator] 以前の記録 (slot_records_legacy) を番号の形式に移します");
+        long total = 0;
+        long start = System.currentTimeMillis();
+        try {
+            while (!stopped) {
+                int n = database.withTransaction(conn -> migrateBatch());
+                if (n == 0) {
+                    // 先に集計から外してから消す (集計が消えたテーブルを読まないように)
+                    database.setLegacyRecords(false);
+                    database.withConnection(conn -> {
+                        try (Statement st = conn.createStatement()) {
+                            st.execute("DROP TABLE slot_records_legacy");
+                        }
+                        return null;
+                    });
+                    plugin.getLogger().info("[LegacyRecordMigrator] 移行完了: " + total + " 行 ("
+                            + (System.currentTimeMillis() - start) + "ms)");
+                    return;
+                }
+                total += n;
+                if (total % (BATCH_SIZE * 100L) == 0) {
+                    plugin.getLogger().info("[LegacyRecordMigrator] " + total + " 行を移しました");
+                }
+                Thread.sleep(PAUSE_MS);
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (!stopped) {
+                plugin.getLogger().log(Level.WARNING, "[LegacyRecordMigrator] 以前の記録を移せませんでした (次の起動で続きから行います)", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 古い順に BATCH_SIZE 行を移す (トランザクションの中で)
+     *
+     * @return 移した行数
+     */
+    private int migrateBatch() throws SQLException {
+        SlotDictionary dict = database.getDictionary();
+        PreparedStatement select = database.prepare(SELECT_SQL);
+        select.setInt(1, BATCH_SIZE);
+        inserter.clear();
+        int n = 0;
+        long lastId = -1;
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                lastId = rs.getLong(1);
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(rs.getString(2));
+                } catch (IllegalArgumentException e) {
+                    // UUID として読めない行は移さない
+                    n++;
+                    continue;
+                }
+                inserter.add(dict.playerId(uuid), dict.machineId(rs.getString(3)), rs.getLong(4), rs.getDouble(5));
+                n++;
+            }
+        }
+        if (n == 0) return 0;
+        inserter.execute();
+        PreparedStatement delete = database.prepare(DELETE_SQL);
+        delete.setLong(1, lastId);
+        delete.executeUpdate();
+        return n;
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ハズレ時に表示する出目 (どのパターンにも一致しない並び) を一様に抽選する。
+ * <p>
+ * ・絵柄はパターンに登場するアイテム (大文字小文字を区別せず重複なし)
+ * ・出目は「絵柄数を基数とする reels 桁の数」として順位付けし、当たりの順位だけを昇順に保持する
+ * ・ハズレの j 番目 → 順位 は当たり順位の二分探索で求めるので、抽選は試行の繰り返しなしで決まる
+ * ・全組み合わせが当たりになる設定では、どのパターンにも無い絵柄を1つ足してハズレを作る
+ */
+public class LosingTupleSampler {
+
+    private static final List<String> FILLER_CANDIDATES = List.of("STONE", "COBBLESTONE", "DIRT", "BARRIER");
+
+    private final String[] symbols;
+    private final int reels;
+    private final long[] winningRanks;
+    private final long losingCount;
+    private final String filler;
+
+    /**
+     * @throws IllegalArgumentException 組み合わせ数が大きすぎる場合
+     */
+    LosingTupleSampler(List<SlotConfig.PatternConfig> patterns, int reels) {
+        this.reels = reels;
+
+        // 絵柄 (大文字小文字を区別しない、最初の表記を使う)
+        Map<String, Integer> symbolIndex = new HashMap<>();
+        List<String> symbolList = new ArrayList<>();
+        if (patterns != null) {
+            for (SlotConfig.PatternConfig pc : patterns) {
+                if (pc == null || pc.getItems() == null) continue;
+                for (String item : pc.getItems()) {
+                    if (item == null) continue;
+                    if (symbolIndex.putIfAbsent(item.toLowerCase(Locale.ROOT), symbolList.size()) == null) {
+                        symbolList.add(item);
+                    }
+                }
+            }
+        }
+        if (symbolList.isEmpty()) {
+            symbolList.add("STONE");
+        }
+
+        long[] ranks = winningRanks(patterns, symbolIndex, symbolList.size(), reels);
+        long total = combinations(symbolList.size(), reels);
+
+        String fillerSymbol = null;
+        if (total - ranks.length <= 0) {
+            // 全組み合わせが当たり → パターンに無い絵柄を足す (足した絵柄を含む並びは必ずハズレ)
+            for (String c : FILLER_CANDIDATES) {
+                if (!symbolIndex.containsKey(c.toLowerCase(Locale.ROOT))) {
+                    fillerSymbol = c;
+                    break;
+                }
+            }
+            if (fillerSymbol == null) {
+                throw new IllegalArgumentException("ハズレの出目を作れません (全組み合わせが当たり)");
+            }
+            symbolList.add(fillerSymbol);
+            // 既存の当たりの順位を新しい基数で数え直す
+            symbolIndex.put(fillerSymbol.toLowerCase(Locale.ROOT), symbolList.size() - 1);
+            ranks = winningRanks(patterns, symbolIndex, symbolList.size(), reels);
+            total = combinations(symbolList.size(), reels);
+        }
+
+        this.symbols = symbolList.toArray(new String[0]);
+        this.winningRanks = ranks;
+        this.losingCount = total - ranks.length;
+        this.filler = fillerSymbol;
+    }
+
+    /**
+     * ハズレの出目を一様に1つ選ぶ
+     */
+    public List<String> draw() {
+        long j = ThreadLocalRandom.current().nextLong(losingCount);
+        long rank = unrankLosing(j);
+
+        // 順位 → 各リールの絵柄 (先頭リールが最上位桁)
+        String[] out = new String[reels];
+        int k = symbols.length;
+        for (int i = reels - 1; i >= 0; i--) {
+            out[i] = symbols[(int) (rank % k)];
+            rank /= k;
+        }
+        return Arrays.asList(out);
+    }
+
+    /**
+     * 全組み合わせが当たりだったため足した絵柄 (足していなければ null)
+     */
+    public String getFiller() {
+        return filler;
+    }
+
+    /**
+     * j 番目 (0始まり) のハズレの順位。
+     * winningRanks[i] - i は単調非減少なので、それが j 以下となる最後の i を二分探索し、
+     * そこまでの当たりの数だけ j をずらす。
+     */
+    private long unrankLosing(long j) {
+        int lo = 0, hi = winningRanks.length; // [lo, hi) で winningRanks[i] - i <= j を満たす境界を探す
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (winningRanks[mid] - mid <= j) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return j + lo;
+    }
+
+    private static long[] winningRanks(List<SlotConfig.PatternConfig> patterns,
+                                       Map<String, Integer> symbolIndex,
+                                       int symbolCount,
+                                       int reels) {
+        if (patterns == null) return new long[0];
+        long[] ranks = new long[patterns.size()];
+        int n = 0;
+        for (SlotConfig.PatternConfig pc : patterns) {
+            if (pc == null || pc.getItems() == null) continue;
+            List<String> items = pc.getItems();
+            // リール数と長さが違うパターンは出目と一致しない
+            if (items.size() != reels) continue;
+            long rank = 0;
+            boolean valid = true;
+            for (String item : items) {
+                Integer d = (item != null) ? symbolIndex.get(item.toLowerCase(Locale.ROOT)) : null;
+                if (d == null) {
+                    valid = false;
+                    break;
+                }
+                rank = rank * symbolCount + d;
+            }
+            if (valid) ranks[n++] = rank;
+        }
+        // 昇順・重複なし
+        return Arrays.stream(ranks, 0, n).sorted().distinct().toArray();
+    }
+
+    private static long combinations(int symbolCount, int reels) {
+        long total = 1;
+        try {
+            for (int i = 0; i < reels; i++) {
+                total = Math.multiplyExact(total, symbolCount);
+            }
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("絵柄とリールの組み合わせ数が大きすぎます: " + symbolCount + "^" + reels);
+        }
+        return total;
+    }
+}
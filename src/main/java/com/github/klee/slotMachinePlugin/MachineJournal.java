@@ -0,0 +1,270 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.MachineManager.MachineData;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 台データのスナップショット (machines.json / machines.bin) と追記専用のジャーナル (machines.journal)。
+ * <p>
+ * ・変更は台ごとのレコード (1行1JSON) としてジャーナルに追記し、書き込みごとに fsync する
+ * ・圧縮時は一時ファイルにスナップショットを書いて fsync し、rename で差し替えてからジャーナルを空にする
+ *   (直前のスナップショットは .bak に残す。もう一方の形式のスナップショットも .bak に移す)
+ * ・起動時はスナップショットを読み、ジャーナルを先頭から再生する。途中で切れた (改行の無い) 最終行は捨てる。
+ *   改行まで書けているのに読めない行は飛ばし (ジャーナルは .corrupt に写してから)、後ろの正しいレコードは再生する
+ * <p>
+ * レコード:
+ * {"id":"台ID","data":{台の全データ}} / {"id":"台ID","deleted":true}
+ * 読み込み以外は書き込みスレッドから呼ぶ。
+ */
+public class MachineJournal {
+
+    /**
+     * スナップショットの形式
+     */
+    public enum SnapshotFormat {
+        JSON("machines.json"),
+        BINARY("machines.bin");
+
+        private final String fileName;
+
+        SnapshotFormat(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public static SnapshotFormat fromConfig(String value) {
+            return "binary".equalsIgnoreCase(value) ? BINARY : JSON;
+        }
+    }
+
+    /**
+     * 読み込んだスナップショット (JSON なら json、バイナリなら machines に入る)
+     */
+    public record LoadedSnapshot(SnapshotFormat format, JsonObject json, Map<String, MachineData> machines) {
+    }
+
+    private final File dataFolder;
+    private final Path journalFile;
+    private final Logger logger;
+
+    private FileChannel journal;
+
+    public MachineJournal(File dataFolder, Logger logger) {
+        this.dataFolder = dataFolder;
+        this.journalFile = new File(dataFolder, "machines.journal").toPath();
+        this.logger = logger;
+    }
+
+    /**
+     * スナップショットを読む。
+     * 両方の形式がある場合は新しい方を使い、壊れている場合は .bak を使う (壊れたファイルは .corrupt に退避)。
+     * どれも無ければ null
+     */
+    public LoadedSnapshot readSnapshot() {
+        for (SnapshotFormat format : newestFirst(SnapshotFormat.values(), "")) {
+            Path file = path(format, "");
+            try {
+                return read(format, file);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "[MachineJournal] " + format.fileName + " が壊れています。バックアップから復元します", e);
+                try {
+                    Files.copy(file, path(format, ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "[MachineJournal] 壊れた " + format.fileName + " を退避できません", ex);
+                }
+            }
+        }
+        for (SnapshotFormat format : newestFirst(SnapshotFormat.values(), ".bak")) {
+            try {
+                LoadedSnapshot snap = read(format, path(format, ".bak"));
+                logger.warning("[MachineJournal] " + format.fileName + ".bak から読み込みました");
+                return snap;
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "[MachineJournal] " + format.fileName + ".bak も読めません", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * ジャーナルを先頭から再生する。
+     * 途中で切れた (改行の無い) 最終行だけをファイルから切り詰める。
+     * 読めない行は machines.journal.corrupt に写してから飛ばし、後ろのレコードは再生・保持する
+     *
+     * @return 再生したレコード数
+     */
+    public int replay(BiConsumer<String, JsonObject> onPut, Consumer<String> onDelete) {
+        if (!Files.exists(journalFile)) return 0;
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(journalFile);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "[MachineJournal] machines.journal を読めません", e);
+            return 0;
+        }
+
+        int count = 0;
+        int start = 0;
+        int lineNo = 0;
+        boolean backedUp = false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            String line = new String(bytes, start, i - start, StandardCharsets.UTF_8).trim();
+            start = i + 1;
+            lineNo++;
+            if (line.isEmpty()) continue;
+            try {
+                JsonObject rec = JsonParser.parseString(line).getAsJsonObject();
+                String id = rec.get("id").getAsString();
+                if (rec.has("deleted") && rec.get("deleted").getAsBoolean()) {
+                    onDelete.accept(id);
+                } else {
+                    onPut.accept(id, rec.getAsJsonObject("data"));
+                }
+                count++;
+            } catch (Exception e) {
+                // 改行まで書けているのに読めない行は飛ばす (レコードは台の全データなので、後ろのレコードは正しく再生できる)
+                if (!backedUp) {
+                    backedUp = true;
+                    try {
+                        Files.copy(journalFile, new File(dataFolder, "machines.journal.corrupt").toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                        logger.warning("[MachineJournal] 読めない行があるため machines.journal を machines.journal.corrupt に退避しました");
+                    } catch (IOException ex) {
+                        logger.log(Level.WARNING, "[MachineJournal] 壊れた machines.journal を退避できません", ex);
+                    }
+                }
+                logger.warning("[MachineJournal] machines.journal の " + lineNo + " 行目が読めないため飛ばします");
+            }
+        }
+
+        if (start < bytes.length) {
+            // 書き込み途中で落ちた末尾 (改行の無い最終行) だけを切り詰める (続きを追記した時に行が混ざらないように)
+            logger.warning("[MachineJournal] machines.journal の途中で切れた最終行を捨てます");
+            try (FileChannel ch = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                ch.truncate(start);
+                ch.force(true);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "[MachineJournal] machines.journal を切り詰められません", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * レコードを追記して fsync する
+     */
+    public void append(List<JsonObject> records) throws IOException {
+        if (records.isEmpty()) return;
+        StringBuilder sb = new StringBuilder();
+        for (JsonObject rec : records) {
+            sb.append(rec).append('\n');
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        FileChannel ch = journal();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        ch.force(false);
+    }
+
+    /**
+     * スナップショットを差し替えてジャーナルを空にする
+     *
+     * @param data 全台分のスナップショット (format の形式)
+     */
+    public void compact(SnapshotFormat format, byte[] data) throws IOException {
+        Path tempFile = path(format, ".tmp");
+        try (FileChannel ch = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Path snapshotFile = path(format, "");
+        if (Files.exists(snapshotFile)) {
+            Files.move(snapshotFile, path(format, ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // ここで落ちても .bak + ジャーナルから復元できる
+        Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE);
+
+        // 形式を切り替えた場合、古い形式のスナップショットは次の起動で読まないよう .bak に移す
+        for (SnapshotFormat other : SnapshotFormat.values()) {
+            if (other == format) continue;
+            Path otherFile = path(other, "");
+            if (Files.exists(otherFile)) {
+                Files.move(otherFile, path(other, ".bak"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        // スナップショットに含まれたのでジャーナルは不要
+        FileChannel ch = journal();
+        ch.truncate(0);
+        ch.force(true);
+    }
+
+    public void close() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "[MachineJournal] machines.journal を閉じられません", e);
+        }
+        journal = null;
+    }
+
+    private FileChannel journal() throws IOException {
+        if (journal == null || !journal.isOpen()) {
+            journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return journal;
+    }
+
+    private LoadedSnapshot read(SnapshotFormat format, Path file) throws IOException {
+        if (format == SnapshotFormat.BINARY) {
+            return new LoadedSnapshot(format, null, MachineSnapshotCodec.read(file));
+        }
+        String text = Files.readString(file, StandardCharsets.UTF_8);
+        JsonElement e = JsonParser.parseString(text);
+        JsonObject json = (e == null || e.isJsonNull()) ? new JsonObject() : e.getAsJsonObject();
+        return new LoadedSnapshot(format, json, null);
+    }
+
+    /**
+     * 存在するファイルだけを、更新日時の新しい順に
+     */
+    private List<SnapshotFormat> newestFirst(SnapshotFormat[] formats, String suffix) {
+        List<SnapshotFormat> list = new ArrayList<>();
+        for (SnapshotFormat f : formats) {
+            if (Files.exists(path(f, suffix))) list.add(f);
+        }
+        list.sort(Comparator.comparingLong((SnapshotFormat f) -> path(f, suffix).toFile().lastModified()).reversed());
+        return list;
+    }
+
+    private Path path(SnapshotFormat format, String suffix) {
+        return new File(dataFolder, format.fileName + suffix).toPath();
+    }
+}
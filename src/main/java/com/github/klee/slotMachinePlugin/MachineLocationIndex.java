@@ -0,0 +1,174 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.MachineManager.MachineData;
+import com.github.klee.slotMachinePlugin.utils.LongObjectMap;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ボタンの座標 → 台ID の索引。
+ * <p>
+ * ・ワールドごとに、全台をチャンク単位で登録しておく (ワールドやチャンクを読み込まない)
+ * ・チャンク/ワールドが読み込まれたら、その中の台のボタンを確かめて有効にし、アンロードで外す
+ * ・クリックされたボタンが台かどうかは、ワールド名の引き当てと long キーの探索1回で決まる
+ * ・MachineManager の全台から作り、台の登録・削除コマンドで更新する
+ * メインスレッドからのみ使う。
+ */
+public class MachineLocationIndex {
+
+    private final Map<String, WorldEntry> byWorld = new HashMap<>();
+
+    /**
+     * MachineManager の全台から作り直す。
+     * 今読み込まれているチャンクの台だけを有効にする
+     */
+    public void rebuild(Map<String, MachineData> machines) {
+        byWorld.clear();
+        for (Map.Entry<String, MachineData> e : machines.entrySet()) {
+            register(e.getKey(), e.getValue(), false);
+        }
+        for (World w : Bukkit.getWorlds()) {
+            activateWorld(w);
+        }
+    }
+
+    /**
+     * 台を登録する (チャンクが読み込まれていればすぐ有効にする)
+     */
+    public void put(String machineId, MachineData md) {
+        register(machineId, md, true);
+    }
+
+    /**
+     * 台を索引から外す (その位置が別の台に置き換わっていれば有効な方は残す)
+     */
+    public void remove(String machineId, MachineData md) {
+        if (md == null || md.getWorldName() == null) return;
+        WorldEntry we = byWorld.get(md.getWorldName());
+        if (we == null) return;
+        long chunkKey = chunkKey(md.getX() >> 4, md.getZ() >> 4);
+        List<String> ids = we.machinesByChunk.get(chunkKey);
+        if (ids != null) {
+            ids.remove(machineId);
+            if (ids.isEmpty()) we.machinesByChunk.remove(chunkKey);
+        }
+        long key = pack(md.getX(), md.getY(), md.getZ());
+        if (machineId.equals(we.active.get(key))) {
+            we.active.remove(key);
+        }
+        if (we.machinesByChunk.isEmpty()) byWorld.remove(md.getWorldName());
+    }
+
+    /**
+     * ブロックにある有効な台のID (無ければ null)
+     */
+    public String find(Block block) {
+        WorldEntry we = byWorld.get(block.getWorld().getName());
+        if (we == null) return null;
+        return we.active.get(pack(block.getX(), block.getY(), block.getZ()));
+    }
+
+    /**
+     * チャンクが読み込まれた: 中にある台を有効にする
+     */
+    public void activateChunk(Chunk chunk) {
+        WorldEntry we = byWorld.get(chunk.getWorld().getName());
+        if (we == null) return;
+        List<String> ids = we.machinesByChunk.get(chunkKey(chunk.getX(), chunk.getZ()));
+        if (ids == null) return;
+        for (String machineId : ids) {
+            activate(we, chunk, machineId);
+        }
+    }
+
+    /**
+     * チャンクがアンロードされた: 中にある台を無効にする
+     */
+    public void deactivateChunk(Chunk chunk) {
+        WorldEntry we = byWorld.get(chunk.getWorld().getName());
+        if (we == null) return;
+        List<String> ids = we.machinesByChunk.get(chunkKey(chunk.getX(), chunk.getZ()));
+        if (ids == null) return;
+        for (String machineId : ids) {
+            MachineData md = MachineManager.getMachine(machineId);
+            if (md != null) we.active.remove(pack(md.getX(), md.getY(), md.getZ()));
+        }
+    }
+
+    /**
+     * ワールドが読み込まれた: 読み込み済みのチャンクにある台を有効にする
+     */
+    public void activateWorld(World world) {
+        WorldEntry we = byWorld.get(world.getName());
+        if (we == null) return;
+        for (Chunk chunk : world.getLoadedChunks()) {
+            activateChunk(chunk);
+        }
+    }
+
+    /**
+     * ワールドがアンロードされた: 全台を無効にする (登録は残す)
+     */
+    public void deactivateWorld(World world) {
+        WorldEntry we = byWorld.get(world.getName());
+        if (we != null) we.active.clear();
+    }
+
+    private void register(String machineId, MachineData md, boolean activateNow) {
+        if (md == null || md.getWorldName() == null) return;
+        WorldEntry we = byWorld.computeIfAbsent(md.getWorldName(), k -> new WorldEntry());
+        int cx = md.getX() >> 4;
+        int cz = md.getZ() >> 4;
+        long chunkKey = chunkKey(cx, cz);
+        List<String> ids = we.machinesByChunk.get(chunkKey);
+        if (ids == null) {
+            ids = new ArrayList<>(1);
+            we.machinesByChunk.put(chunkKey, ids);
+        }
+        if (!ids.contains(machineId)) ids.add(machineId);
+
+        if (activateNow) {
+            World w = Bukkit.getWorld(md.getWorldName());
+            // 読み込まれていないチャンクは読み込まない (ChunkLoadEvent で有効になる)
+            if (w != null && w.isChunkLoaded(cx, cz)) {
+                activate(we, w.getChunkAt(cx, cz), machineId);
+            }
+        }
+    }
+
+    private void activate(WorldEntry we, Chunk chunk, String machineId) {
+        MachineData md = MachineManager.getMachine(machineId);
+        if (md == null) return;
+        // ボタンが無くなっている台は有効にしない
+        Block b = chunk.getBlock(md.getX() & 15, md.getY(), md.getZ() & 15);
+        if (!b.getType().name().endsWith("_BUTTON")) {
+            return;
+        }
+        we.active.put(pack(md.getX(), md.getY(), md.getZ()), machineId);
+    }
+
+    /**
+     * ブロック座標を long に詰める (x:26bit, z:26bit, y:12bit)
+     */
+    static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    static long chunkKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    private static final class WorldEntry {
+        // チャンク → その中にボタンがある台ID (登録済みの全台)
+        private final LongObjectMap<List<String>> machinesByChunk = new LongObjectMap<>();
+        // ボタン座標 → 台ID (読み込まれていてボタンを確認できた台)
+        private final LongObjectMap<String> active = new LongObjectMap<>();
+    }
+}
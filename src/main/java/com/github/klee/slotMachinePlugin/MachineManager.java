@@ -1,26 +1,118 @@
 package com.github.klee.slotMachinePlugin;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
+import com.google.gson.*;
+import org.bukkit.configuration.ConfigurationSection;
 
 import java.io.*;
+import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * マシンIDごとのデータを管理し、保存/読み込み。
  * ここでは「相対パス」で slotConfigName を記録。
+ * <p>
+ * スレッド:
+ * ・台の一覧は ConcurrentHashMap で、どのスレッドからも追加・削除・参照できる
+ * ・台ごとに読み書きロックを持ち、setter は書き込みロックの中で版番号 (version) を進める
+ * ・メインスレッド以外から台を読む場合は {@link MachineData#snapshot()} で一貫した内容を取る
+ * ・複数の値をまとめて書き換える場合は {@link MachineData#modify(Consumer)} を使う
+ * <p>
+ * 保存は書き込みを遅らせてまとめる (write-behind):
+ * ・保存スレッドが一定間隔 (config.yml の persistence.flushIntervalTicks) ごとに、保存済みの版より新しい台だけを
+ *   スナップショットから JSON に変換し、ジャーナル (machines.journal) に追記する。その間の変更は何回あっても 1 回の追記になる
+ * ・追記したレコードが persistence.compactAfterRecords 件を超えたら、全台のスナップショットを
+ *   書き直してジャーナルを空にする ({@link MachineJournal})
+ * ・スナップショットの形式は persistence.snapshotFormat (json / binary)。
+ *   読み込んだ形式と違う場合は起動時に一度書き直して変換する
+ * ・保存処理はメインスレッドで行わない (停止時の {@link #shutdown()} と形式の変換を除く)
  */
 public class MachineManager {
 
-    private static final Map<String, MachineData> machineDataMap = new HashMap<>();
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final Map<String, MachineData> machineDataMap = new ConcurrentHashMap<>();
+    private static final Gson gson = new GsonBuilder()
+            .setPrettyPrinting()
+            .registerTypeAdapter(MachineData.class, new MachineDataAdapter())
+            .create();
 
-    private static File dataFile;
+    private static MachineJournal journal;
+    private static Logger logger = Logger.getLogger("SlotMachinePlugin");
 
-    public static void init(File pluginDataFolder) {
-        dataFile = new File(pluginDataFolder, "machines.json");
+    // 保存処理 (追記・圧縮・同期保存) はこのロックの中で1つずつ行う
+    private static final Object persistLock = new Object();
+    // 台ID → 最後に書き込んだ JSON (スナップショットはこれを並べて作る)
+    private static final Map<String, JsonElement> serialized = new ConcurrentHashMap<>();
+    // 次の追記で書く削除レコード
+    private static final Queue<String> pendingDeletes = new ConcurrentLinkedQueue<>();
+    // 前回のスナップショット以降にジャーナルへ書いたレコード数
+    private static int journalRecords;
+    private static volatile int compactAfterRecords = 5000;
+    private static volatile MachineJournal.SnapshotFormat snapshotFormat = MachineJournal.SnapshotFormat.JSON;
+    // 読み込んだスナップショットの形式 (無ければ null)
+    private static volatile MachineJournal.SnapshotFormat loadedFormat;
+
+    private static ScheduledExecutorService writer;
+    private static ScheduledFuture<?> flushTask;
+
+    public static void init(File pluginDataFolder, Logger pluginLogger) {
+        logger = pluginLogger;
+        journal = new MachineJournal(pluginDataFolder, pluginLogger);
+    }
+
+    /**
+     * 定期保存を開始する (既に動いていれば config.yml の persistence セクションを読み直して再開)
+     */
+    public static void startWriteBehind(ConfigurationSection config) {
+        long interval = Math.max(1L, config.getLong("persistence.flushIntervalTicks", 100L));
+        compactAfterRecords = Math.max(1, config.getInt("persistence.compactAfterRecords", 5000));
+        snapshotFormat = MachineJournal.SnapshotFormat.fromConfig(config.getString("persistence.snapshotFormat", "json"));
+        if (loadedFormat != null && loadedFormat != snapshotFormat) {
+            // 形式の変換 (machines.json → machines.bin など) は一度だけ同期で行う
+            logger.info("[MachineManager] スナップショットを " + snapshotFormat + " 形式に変換します");
+            saveAllMachines();
+        }
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "SlotMachine-MachineWriter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        // 1tick = 50ms
+        flushTask = writer.scheduleWithFixedDelay(MachineManager::flush, interval * 50L, interval * 50L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定期保存を止め、保存スレッドの終了を待ってからスナップショットを書き直す (onDisable 用)
+     */
+    public static void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                    logger.warning("[MachineManager] 保存スレッドが終了しませんでした");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        // 最後は同期で全台を書き込む
+        saveAllMachines();
+        if (journal != null) journal.close();
     }
 
     public static boolean hasMachineId(String machineId) {
@@ -32,59 +124,318 @@ public class MachineManager {
     }
 
     public static void setMachineData(String machineId, MachineData data) {
+        // 保存済みの版を古くして、次の追記に含める
+        data.savedVersion = -1;
         machineDataMap.put(machineId, data);
     }
 
+    public static MachineData removeMachine(String machineId) {
+        MachineData md = machineDataMap.remove(machineId);
+        if (md != null) {
+            pendingDeletes.add(machineId);
+        }
+        return md;
+    }
+
+    /**
+     * 全台 (読み取り専用、追加・削除は setMachineData / removeMachine で)。
+     * どのスレッドから回してもよい (途中の追加・削除は反映されることもされないこともある)
+     */
     public static Map<String, MachineData> getAllMachines() {
-        return machineDataMap;
+        return Collections.unmodifiableMap(machineDataMap);
     }
 
+    /**
+     * 全台の変数を、それぞれの設定の今のスキーマに移す (スロット設定の読み込み・リロードの後に)
+     */
+    public static void bindSchemas() {
+        for (MachineData md : machineDataMap.values()) {
+            md.bindSchema();
+        }
+    }
+
+    /**
+     * スナップショットを読み、ジャーナルを再生する (起動時、保存スレッドの開始前に呼ぶ)
+     */
     public static void loadAllMachines() {
-        if (dataFile == null || !dataFile.exists()) return;
-        try (Reader rd = new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8)) {
-            java.lang.reflect.Type t = new com.google.gson.reflect.TypeToken<HashMap<String, MachineData>>() {
-            }.getType();
-            Map<String, MachineData> loaded = gson.fromJson(rd, t);
-            if (loaded != null) {
-                machineDataMap.clear();
-                machineDataMap.putAll(loaded);
+        if (journal == null) return;
+        synchronized (persistLock) {
+            machineDataMap.clear();
+            serialized.clear();
+            pendingDeletes.clear();
+
+            MachineJournal.LoadedSnapshot snapshot = journal.readSnapshot();
+            loadedFormat = (snapshot != null) ? snapshot.format() : null;
+            if (snapshot != null && snapshot.json() != null) {
+                for (Map.Entry<String, JsonElement> e : snapshot.json().entrySet()) {
+                    putLoaded(e.getKey(), e.getValue());
+                }
+            } else if (snapshot != null) {
+                // バイナリは MachineData まで復元済み (JSON はスナップショットを JSON で書く時に作る)
+                for (Map.Entry<String, MachineData> e : snapshot.machines().entrySet()) {
+                    MachineData md = e.getValue();
+                    md.savedVersion = md.version;
+                    machineDataMap.put(e.getKey(), md);
+                }
+            }
+            journalRecords = journal.replay(MachineManager::putLoaded, id -> {
+                machineDataMap.remove(id);
+                serialized.remove(id);
+            });
+            if (journalRecords > 0) {
+                logger.info("[MachineManager] ジャーナルから " + journalRecords + " 件の変更を復元しました");
             }
+        }
+    }
+
+    private static void putLoaded(String machineId, JsonElement json) {
+        try {
+            MachineData md = gson.fromJson(json, MachineData.class);
+            if (md == null) return;
+            // 読み込んだ直後は保存済み
+            md.savedVersion = md.version;
+            machineDataMap.put(machineId, md);
+            serialized.put(machineId, json);
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.log(Level.WARNING, "[MachineManager] 台データが読めません: " + machineId, e);
         }
     }
 
+    /**
+     * 未保存の変更を含めて、全台のスナップショットを今すぐ書き直す (停止時・形式の変換用。回転処理からは呼ばない)
+     */
     public static void saveAllMachines() {
-        if (dataFile == null) return;
-        try (Writer wt = new OutputStreamWriter(new FileOutputStream(dataFile), StandardCharsets.UTF_8)) {
-            gson.toJson(machineDataMap, wt);
+        if (journal == null) return;
+        synchronized (persistLock) {
+            collectChanges();
+            compact();
+        }
+    }
+
+    /**
+     * 変更された台のレコードをジャーナルに追記する (保存スレッド)。
+     * ジャーナルが長くなったらスナップショットも書き直す
+     */
+    private static void flush() {
+        if (journal == null) return;
+        try {
+            synchronized (persistLock) {
+                List<JsonObject> records = collectChanges();
+                if (!records.isEmpty()) {
+                    journal.append(records);
+                    journalRecords += records.size();
+                }
+                if (journalRecords >= compactAfterRecords) {
+                    compact();
+                }
+            }
         } catch (Exception e) {
-            e.printStackTrace();
+            // 例外で定期実行が止まらないようにここで止める
+            logger.log(Level.SEVERE, "[MachineManager] machines.journal に書き込めません", e);
+        }
+    }
+
+    /**
+     * 全台のスナップショットを書いてジャーナルを空にする (persistLock の中で)
+     */
+    private static void compact() {
+        MachineJournal.SnapshotFormat format = snapshotFormat;
+        try {
+            byte[] data;
+            if (format == MachineJournal.SnapshotFormat.BINARY) {
+                Map<String, MachineSnapshot> snaps = new LinkedHashMap<>();
+                for (Map.Entry<String, MachineData> e : machineDataMap.entrySet()) {
+                    snaps.put(e.getKey(), e.getValue().snapshot());
+                }
+                data = MachineSnapshotCodec.encode(snaps);
+            } else {
+                data = gson.toJson(snapshotJson()).getBytes(StandardCharsets.UTF_8);
+            }
+            journal.compact(format, data);
+            journalRecords = 0;
+            loadedFormat = format;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "[MachineManager] スナップショットを書き込めません", e);
+        }
+    }
+
+    /**
+     * 削除された台と、保存済みの版より新しい台のレコードを作る (persistLock の中で)
+     */
+    private static List<JsonObject> collectChanges() {
+        List<JsonObject> records = new ArrayList<>();
+        String deleted;
+        while ((deleted = pendingDeletes.poll()) != null) {
+            serialized.remove(deleted);
+            JsonObject rec = new JsonObject();
+            rec.addProperty("id", deleted);
+            rec.addProperty("deleted", true);
+            records.add(rec);
+        }
+        for (Map.Entry<String, MachineData> e : machineDataMap.entrySet()) {
+            MachineData md = e.getValue();
+            if (!md.isDirty()) continue;
+            // ロックの中で取った一貫した内容と、その版を保存済みにする
+            MachineSnapshot snap = md.snapshot();
+            JsonElement json = MachineDataAdapter.toJson(snap);
+            serialized.put(e.getKey(), json);
+            md.savedVersion = snap.version();
+
+            JsonObject rec = new JsonObject();
+            rec.addProperty("id", e.getKey());
+            rec.add("data", json);
+            records.add(rec);
+        }
+        return records;
+    }
+
+    /**
+     * 最後に書き込んだ内容から全台分の JSON を作る
+     * (バイナリから読んだ台は未変換なので、ここで変換する)
+     */
+    private static JsonObject snapshotJson() {
+        JsonObject root = new JsonObject();
+        for (Map.Entry<String, MachineData> e : machineDataMap.entrySet()) {
+            JsonElement json = serialized.get(e.getKey());
+            if (json == null) {
+                json = MachineDataAdapter.toJson(e.getValue().snapshot());
+                serialized.put(e.getKey(), json);
+            }
+            root.add(e.getKey(), json);
+        }
+        return root;
+    }
+
+    /**
+     * ある時点の台の内容 (変更されない)。メインスレッド以外から台を読む場合に使う
+     *
+     * @param version 台の版番号 (変更のたびに増える)
+     * @param names   値が設定された変数の名前 (stock は含まない、書き換えないこと)
+     * @param values  names と同じ順の値
+     */
+    public record MachineSnapshot(long version, String slotConfigName, int stock,
+                                  String worldName, int x, int y, int z,
+                                  String[] names, double[] values) implements CompiledExpression.VariableResolver {
+
+        public double getVariable(int index) {
+            if (index == VariableSchema.STOCK) {
+                return stock;
+            }
+            return getVariable(VariableSchema.nameOf(index));
+        }
+
+        /**
+         * 変数名で読む (未設定の変数は 0)
+         */
+        public double getVariable(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) return values[i];
+            }
+            return 0.0;
+        }
+
+        @Override
+        public double valueOf(int slot) {
+            return getVariable(slot);
         }
     }
 
     /**
      * MachineData: 台ごとの情報を保持
      * - slotConfigName: "demo_slot" or "demo_slot/demo_slot_bonus" or "../demo_slot"
-     * - stock, variables
+     * - stock, variables (今の設定の VariableSchema の並びの double[]。スキーマに無い変数は名前で持つ)
      * - ボタンの位置(worldName, x,y,z)
+     * <p>
+     * setter はどのスレッドから呼んでもよい。getter はロックを取らないので、
+     * メインスレッド以外からは {@link #snapshot()} を使う。
      */
-    public static class MachineData {
+    public static class MachineData implements CompiledExpression.VariableResolver {
         private String slotConfigName;  // 相対パス(拡張子.jsonは省略)
         private int stock;
 
         private String worldName;
         private int x, y, z;
 
-        // varName -> currentValue
-        private Map<String, Double> variables = new HashMap<>();
+        // values の並び (slotConfigName の設定のスキーマ。設定の読み込み前は EMPTY)
+        private VariableSchema schema = VariableSchema.EMPTY;
+        // スキーマの位置 -> currentValue (位置 0 = stock は未使用、NaN = 未設定)
+        private double[] values = unsetValues(VariableSchema.EMPTY);
+        // スキーマに無い変数 (他の設定から引き継いだもの) の 変数名 -> currentValue (無ければ null)
+        private Map<String, Double> extras;
+
+        // パターン抽選表のキャッシュ (保存対象外)
+        private transient PatternSampler.Cache patternCache;
+
+        // 書き込みロックと版番号 (保存対象外)
+        private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private transient volatile long version;
+        // 保存済みの版 (保存スレッドが書く)
+        private transient volatile long savedVersion;
 
         public String getSlotConfigName() {
             return slotConfigName;
         }
 
         public void setSlotConfigName(String slotConfigName) {
-            this.slotConfigName = slotConfigName;
+            beginWrite();
+            try {
+                this.slotConfigName = slotConfigName;
+                rebind(VariableSchema.forConfig(slotConfigName));
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * 変数を slotConfigName の設定の今のスキーマに移す (値は変えないので版番号も進めない)
+         */
+        void bindSchema() {
+            lock.writeLock().lock();
+            try {
+                rebind(VariableSchema.forConfig(slotConfigName));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * 設定済みの変数を名前で next の並びに移す (書き込みロックの中で)
+         */
+        private void rebind(VariableSchema next) {
+            if (next == schema) return;
+            double[] nextValues = unsetValues(next);
+            Map<String, Double> nextExtras = null;
+            for (int s = 1; s < values.length; s++) {
+                if (!Double.isNaN(values[s])) {
+                    nextExtras = carry(next, nextValues, nextExtras, schema.nameAt(s), values[s]);
+                }
+            }
+            if (extras != null) {
+                for (var e : extras.entrySet()) {
+                    nextExtras = carry(next, nextValues, nextExtras, e.getKey(), e.getValue());
+                }
+            }
+            schema = next;
+            values = nextValues;
+            extras = nextExtras;
+        }
+
+        private static Map<String, Double> carry(VariableSchema next, double[] nextValues,
+                                                 Map<String, Double> nextExtras, String name, double value) {
+            int slot = next.slotOf(VariableSchema.indexOf(name));
+            if (slot > 0) {
+                nextValues[slot] = value;
+            } else {
+                if (nextExtras == null) nextExtras = new HashMap<>();
+                nextExtras.put(name, value);
+            }
+            return nextExtras;
+        }
+
+        private static double[] unsetValues(VariableSchema schema) {
+            double[] v = new double[schema.size()];
+            Arrays.fill(v, Double.NaN);
+            return v;
         }
 
         public int getStock() {
@@ -92,7 +443,12 @@ public class MachineManager {
         }
 
         public void setStock(int stock) {
-            this.stock = stock;
+            beginWrite();
+            try {
+                this.stock = stock;
+            } finally {
+                endWrite();
+            }
         }
 
         public String getWorldName() {
@@ -100,7 +456,12 @@ public class MachineManager {
         }
 
         public void setWorldName(String worldName) {
-            this.worldName = worldName;
+            beginWrite();
+            try {
+                this.worldName = worldName;
+            } finally {
+                endWrite();
+            }
         }
 
         public int getX() {
@@ -108,7 +469,12 @@ public class MachineManager {
         }
 
         public void setX(int x) {
-            this.x = x;
+            beginWrite();
+            try {
+                this.x = x;
+            } finally {
+                endWrite();
+            }
         }
 
         public int getY() {
@@ -116,7 +482,12 @@ public class MachineManager {
         }
 
         public void setY(int y) {
-            this.y = y;
+            beginWrite();
+            try {
+                this.y = y;
+            } finally {
+                endWrite();
+            }
         }
 
         public int getZ() {
@@ -124,15 +495,255 @@ public class MachineManager {
         }
 
         public void setZ(int z) {
-            this.z = z;
+            beginWrite();
+            try {
+                this.z = z;
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * 変数ID で変数を読む (STOCK はストック、未設定の変数は 0)
+         */
+        public double getVariable(int index) {
+            if (index == VariableSchema.STOCK) {
+                return stock;
+            }
+            int slot = schema.slotOf(index);
+            double[] v = values;
+            if (slot > 0 && slot < v.length) {
+                return Double.isNaN(v[slot]) ? 0.0 : v[slot];
+            }
+            return extra(VariableSchema.nameOf(index));
+        }
+
+        /**
+         * 変数ID で変数を書き込む (STOCK なら整数に切り捨ててストックへ、NaN なら未設定に戻す)
+         */
+        public void setVariable(int index, double value) {
+            beginWrite();
+            try {
+                if (index == VariableSchema.STOCK) {
+                    stock = (int) value;
+                    return;
+                }
+                int slot = schema.slotOf(index);
+                if (slot > 0) {
+                    values[slot] = value;
+                } else {
+                    putExtra(VariableSchema.nameOf(index), value);
+                }
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * 変数名で読む (コマンド等、回転処理以外向け)
+         */
+        public double getVariable(String name) {
+            int idx = VariableSchema.indexOf(name);
+            return (idx >= 0) ? getVariable(idx) : extra(name);
+        }
+
+        /**
+         * 変数名で書き込む (式で使われていない名前は変数ID を登録せずに持つ)
+         */
+        public void setVariable(String name, double value) {
+            int idx = VariableSchema.indexOf(name);
+            if (idx >= 0) {
+                setVariable(idx, value);
+                return;
+            }
+            beginWrite();
+            try {
+                putExtra(name, value);
+            } finally {
+                endWrite();
+            }
+        }
+
+        private double extra(String name) {
+            Map<String, Double> x = extras;
+            if (x == null) return 0.0;
+            Double v = x.get(name);
+            return (v != null) ? v : 0.0;
+        }
+
+        private void putExtra(String name, double value) {
+            if (Double.isNaN(value)) {
+                if (extras != null) extras.remove(name);
+                return;
+            }
+            if (extras == null) extras = new HashMap<>();
+            extras.put(name, value);
         }
 
+        /**
+         * 値が設定された変数の 変数名 -> 値 のコピーを返す (stock は含まない)
+         */
         public Map<String, Double> getVariables() {
-            return variables;
+            MachineSnapshot snap = snapshot();
+            Map<String, Double> map = new LinkedHashMap<>();
+            for (int i = 0; i < snap.names().length; i++) {
+                map.put(snap.names()[i], snap.values()[i]);
+            }
+            return map;
         }
 
+        /**
+         * 変数をすべて置き換える (stock は変更しない)
+         */
         public void setVariables(Map<String, Double> variables) {
-            this.variables = variables;
+            beginWrite();
+            try {
+                values = unsetValues(schema);
+                extras = null;
+                if (variables == null) return;
+                for (var e : variables.entrySet()) {
+                    if (e.getValue() == null || VariableSchema.STOCK_NAME.equals(e.getKey())) continue;
+                    setVariable(e.getKey(), e.getValue());
+                }
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * 書き込みロックの中で action を実行する (読んでから書く操作を他のスレッドに割り込まれずに行う)
+         */
+        public void modify(Consumer<MachineData> action) {
+            beginWrite();
+            try {
+                action.accept(this);
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * 今の内容を一貫した状態で写し取る (どのスレッドからでもよい)
+         */
+        public MachineSnapshot snapshot() {
+            lock.readLock().lock();
+            try {
+                int count = (extras != null) ? extras.size() : 0;
+                for (int s = 1; s < values.length; s++) {
+                    if (!Double.isNaN(values[s])) count++;
+                }
+                String[] names = new String[count];
+                double[] vals = new double[count];
+                int n = 0;
+                for (int s = 1; s < values.length; s++) {
+                    if (Double.isNaN(values[s])) continue;
+                    names[n] = schema.nameAt(s);
+                    vals[n++] = values[s];
+                }
+                if (extras != null) {
+                    for (var e : extras.entrySet()) {
+                        names[n] = e.getKey();
+                        vals[n++] = e.getValue();
+                    }
+                }
+                return new MachineSnapshot(version, slotConfigName, stock, worldName, x, y, z, names, vals);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * 版番号 (変更のたびに増える)
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * 保存済みの版より新しいか
+         */
+        boolean isDirty() {
+            return version != savedVersion;
+        }
+
+        PatternSampler.Cache getPatternCache() {
+            return patternCache;
+        }
+
+        void setPatternCache(PatternSampler.Cache patternCache) {
+            this.patternCache = patternCache;
+        }
+
+        /**
+         * 式の評価用に変数の現在値を返す。
+         */
+        @Override
+        public double valueOf(int slot) {
+            return getVariable(slot);
+        }
+
+        private void beginWrite() {
+            lock.writeLock().lock();
+        }
+
+        private void endWrite() {
+            version++;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * machines.json との互換を保つための変換。
+     * variables は従来どおり {"varName": value} の形で読み書きする。
+     */
+    private static class MachineDataAdapter implements JsonSerializer<MachineData>, JsonDeserializer<MachineData> {
+
+        @Override
+        public JsonElement serialize(MachineData md, Type type, JsonSerializationContext ctx) {
+            return toJson(md.snapshot());
+        }
+
+        static JsonObject toJson(MachineSnapshot md) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("slotConfigName", md.slotConfigName());
+            obj.addProperty("stock", md.stock());
+            obj.addProperty("worldName", md.worldName());
+            obj.addProperty("x", md.x());
+            obj.addProperty("y", md.y());
+            obj.addProperty("z", md.z());
+            JsonObject vars = new JsonObject();
+            // 値が設定された変数だけ (他の設定の変数や未設定の変数は書かない)
+            for (int i = 0; i < md.names().length; i++) {
+                vars.addProperty(md.names()[i], md.values()[i]);
+            }
+            obj.add("variables", vars);
+            return obj;
+        }
+
+        @Override
+        public MachineData deserialize(JsonElement json, Type type, JsonDeserializationContext ctx) {
+            JsonObject obj = json.getAsJsonObject();
+            MachineData md = new MachineData();
+            md.slotConfigName = getString(obj, "slotConfigName");
+            md.schema = VariableSchema.forConfig(md.slotConfigName);
+            md.values = MachineData.unsetValues(md.schema);
+            md.stock = obj.has("stock") ? obj.get("stock").getAsInt() : 0;
+            md.worldName = getString(obj, "worldName");
+            md.x = obj.has("x") ? obj.get("x").getAsInt() : 0;
+            md.y = obj.has("y") ? obj.get("y").getAsInt() : 0;
+            md.z = obj.has("z") ? obj.get("z").getAsInt() : 0;
+            if (obj.has("variables") && obj.get("variables").isJsonObject()) {
+                for (var e : obj.getAsJsonObject("variables").entrySet()) {
+                    if (e.getValue().isJsonNull() || VariableSchema.STOCK_NAME.equals(e.getKey())) continue;
+                    md.setVariable(e.getKey(), e.getValue().getAsDouble());
+                }
+            }
+            return md;
+        }
+
+        private static String getString(JsonObject obj, String key) {
+            JsonElement e = obj.get(key);
+            return (e == null || e.isJsonNull()) ? null : e.getAsString();
         }
     }
 }
@@ -0,0 +1,182 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.MachineManager.MachineData;
+import com.github.klee.slotMachinePlugin.MachineManager.MachineSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 台データのバイナリスナップショット (machines.bin) の読み書き。
+ * <p>
+ * 読み込みはファイルをメモリマップして先頭から1回なめるだけで、リフレクションも JSON の解析もしない。
+ * 台ID・設定名・ワールド名・変数名は文字列表に1回だけ書き、台からは番号で参照する。
+ * <pre>
+ * int    magic ("SMBS")
+ * int    version (1)
+ * int    文字列の数, int 台の数
+ * 文字列 × n : int バイト長, UTF-8
+ * 台 × n     : int 台ID, int 設定名 (-1 = null), int ワールド名 (-1 = null),
+ *              int x, int y, int z, int stock,
+ *              int 変数の数, (int 変数名, double 値) × 変数の数
+ * long   ここまでの CRC32
+ * </pre>
+ */
+public final class MachineSnapshotCodec {
+
+    private static final int MAGIC = 0x534D4253;
+    private static final int VERSION = 1;
+
+    private MachineSnapshotCodec() {
+    }
+
+    /**
+     * 全台をバイナリにする (台ごとに写し取った内容から)
+     */
+    public static byte[] encode(Map<String, MachineSnapshot> machines) {
+        // 文字列表 (出てきた順に番号を振る)
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (Map.Entry<String, MachineSnapshot> e : machines.entrySet()) {
+            MachineSnapshot md = e.getValue();
+            intern(strings, e.getKey());
+            intern(strings, md.slotConfigName());
+            intern(strings, md.worldName());
+            for (String name : md.names()) {
+                intern(strings, name);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + machines.size() * 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(machines.size());
+            for (String s : strings.keySet()) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            for (Map.Entry<String, MachineSnapshot> e : machines.entrySet()) {
+                MachineSnapshot md = e.getValue();
+                out.writeInt(strings.get(e.getKey()));
+                out.writeInt(ref(strings, md.slotConfigName()));
+                out.writeInt(ref(strings, md.worldName()));
+                out.writeInt(md.x());
+                out.writeInt(md.y());
+                out.writeInt(md.z());
+                out.writeInt(md.stock());
+                // 値が設定された変数だけ (他の設定の変数や未設定の変数は書かない)
+                String[] names = md.names();
+                double[] values = md.values();
+                out.writeInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    out.writeInt(strings.get(names[i]));
+                    out.writeDouble(values[i]);
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream への書き込みでは起きない
+            throw new IllegalStateException(e);
+        }
+
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return ByteBuffer.allocate(body.length + Long.BYTES).put(body).putLong(crc.getValue()).array();
+    }
+
+    /**
+     * ファイルをメモリマップして読む
+     *
+     * @throws IOException 読めない・形式や CRC が合わない場合
+     */
+    public static Map<String, MachineData> read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4 * Integer.BYTES + Long.BYTES) {
+                throw new IOException("machines.bin が短すぎます: " + size + " bytes");
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return decode(buf);
+        }
+    }
+
+    private static Map<String, MachineData> decode(ByteBuffer buf) throws IOException {
+        int bodyLength = buf.limit() - Long.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate().limit(bodyLength));
+        if (crc.getValue() != buf.getLong(bodyLength)) {
+            throw new IOException("machines.bin の CRC が一致しません");
+        }
+
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("machines.bin の形式ではありません");
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("未対応の machines.bin のバージョン: " + version);
+            }
+            int stringCount = buf.getInt();
+            int machineCount = buf.getInt();
+
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                byte[] b = new byte[buf.getInt()];
+                buf.get(b);
+                strings[i] = new String(b, StandardCharsets.UTF_8);
+            }
+
+            Map<String, MachineData> machines = new LinkedHashMap<>(Math.max(16, machineCount * 2));
+            for (int m = 0; m < machineCount; m++) {
+                String id = strings[buf.getInt()];
+                MachineData md = new MachineData();
+                md.setSlotConfigName(str(strings, buf.getInt()));
+                md.setWorldName(str(strings, buf.getInt()));
+                md.setX(buf.getInt());
+                md.setY(buf.getInt());
+                md.setZ(buf.getInt());
+                md.setStock(buf.getInt());
+                int varCount = buf.getInt();
+                for (int v = 0; v < varCount; v++) {
+                    int nameRef = buf.getInt();
+                    double value = buf.getDouble();
+                    String name = strings[nameRef];
+                    if (VariableSchema.STOCK_NAME.equals(name)) continue;
+                    md.setVariable(name, value);
+                }
+                machines.put(id, md);
+            }
+            if (buf.position() != bodyLength) {
+                throw new IOException("machines.bin の長さが合いません");
+            }
+            return machines;
+        } catch (RuntimeException e) {
+            // 範囲外の参照や途中で切れたデータ
+            throw new IOException("machines.bin が壊れています", e);
+        }
+    }
+
+    private static void intern(Map<String, Integer> strings, String s) {
+        if (s != null) strings.putIfAbsent(s, strings.size());
+    }
+
+    private static int ref(Map<String, Integer> strings, String s) {
+        return (s == null) ? -1 : strings.get(s);
+    }
+
+    private static String str(String[] strings, int ref) {
+        return (ref < 0) ? null : strings[ref];
+    }
+}
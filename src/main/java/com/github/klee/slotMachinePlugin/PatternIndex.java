@@ -0,0 +1,57 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * リールの出目 (アイテム名の並び) → PatternConfig の索引。
+ * <p>
+ * ・大文字小文字は区別しない (従来の equalsIgnoreCase と同じ)
+ * ・リール数は固定しない (パターンの items の数がそのまま並びの長さ)
+ * ・同じ並びのパターンが複数ある場合は、従来どおり先に書かれた方を優先
+ */
+public class PatternIndex {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final Map<String, SlotConfig.PatternConfig> index = new HashMap<>();
+
+    PatternIndex(List<SlotConfig.PatternConfig> patterns) {
+        if (patterns == null) return;
+        for (SlotConfig.PatternConfig pc : patterns) {
+            if (pc == null || pc.getItems() == null || pc.getItems().isEmpty()) continue;
+            index.putIfAbsent(keyOf(pc.getItems()), pc);
+        }
+    }
+
+    /**
+     * 出目に一致するパターン (なければ null)
+     */
+    public SlotConfig.PatternConfig find(List<String> items) {
+        if (index.isEmpty() || items == null) return null;
+        return index.get(keyOf(items));
+    }
+
+    /**
+     * 出目がいずれかのパターンに一致するか
+     */
+    public boolean matches(List<String> items) {
+        return find(items) != null;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    static String keyOf(List<String> items) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) sb.append(SEPARATOR);
+            String s = items.get(i);
+            if (s != null) sb.append(s.toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.utils.AliasTable;
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * パターン抽選 (当たりパターン or ハズレ) をエイリアス表で O(1) に行う。
+ * <p>
+ * ・各パターンの確率は % 指定で、残り (100 - 合計) がハズレ
+ * ・確率式が変数を参照しなければ、表はロード時に一度だけ作る
+ * ・変数を参照する場合は台ごとに表をキャッシュし、参照変数の値が変わった時だけ作り直す
+ */
+public class PatternSampler {
+
+    private final List<SlotConfig.PatternConfig> patterns;
+    private final CompiledExpression[] probabilities;
+
+    // 確率式が参照している変数ID (重複なし)
+    private final int[] referencedSlots;
+
+    // 変数を参照しない場合の共通の表
+    private final AliasTable staticTable;
+
+    /**
+     * @throws IllegalArgumentException 変数を参照しない確率が範囲外、または合計が100を超える場合
+     */
+    PatternSampler(List<SlotConfig.PatternConfig> patterns) {
+        this.patterns = patterns;
+        this.probabilities = new CompiledExpression[patterns.size()];
+        int[] slots = new int[0];
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = patterns.get(i).getCompiledProbability();
+            if (probabilities[i] == null) continue;
+            for (int slot : probabilities[i].getVariableSlots()) {
+                if (Arrays.stream(slots).noneMatch(s -> s == slot)) {
+                    slots = Arrays.copyOf(slots, slots.length + 1);
+                    slots[slots.length - 1] = slot;
+                }
+            }
+        }
+        this.referencedSlots = slots;
+
+        if (referencedSlots.length == 0) {
+            // ロード時に範囲と合計をチェック
+            double[] weights = new double[probabilities.length + 1];
+            double sum = 0;
+            for (int i = 0; i < probabilities.length; i++) {
+                double p = (probabilities[i] != null) ? probabilities[i].eval(slot -> 0.0) : 0.0;
+                if (p < 0 || p > 100 || Double.isNaN(p)) {
+                    throw new IllegalArgumentException("確率範囲外: " + patterns.get(i).getProbability() + " = " + p);
+                }
+                weights[i] = p;
+                sum += p;
+            }
+            if (sum > 100) {
+                throw new IllegalArgumentException("確率の合計が100を超えています: " + sum);
+            }
+            weights[probabilities.length] = 100 - sum;
+            this.staticTable = new AliasTable(weights);
+        } else {
+            this.staticTable = null;
+        }
+    }
+
+    /**
+     * パターンを抽選する
+     *
+     * @return 当たったパターン (ハズレなら null)
+     */
+    public SlotConfig.PatternConfig draw(MachineManager.MachineData machine) {
+        AliasTable table = (staticTable != null) ? staticTable : tableFor(machine);
+        int idx = table.sample(ThreadLocalRandom.current());
+        return (idx < patterns.size()) ? patterns.get(idx) : null;
+    }
+
+    /**
+     * 確率が変数を参照するかどうか
+     */
+    public boolean isStatic() {
+        return staticTable != null;
+    }
+
+    /**
+     * 台ごとの表を返す (参照変数の値が前回と同じならキャッシュを使う)
+     */
+    private AliasTable tableFor(MachineManager.MachineData machine) {
+        Cache cache = machine.getPatternCache();
+        if (cache != null && cache.owner == this && cache.matches(machine)) {
+            return cache.table;
+        }
+        if (cache == null || cache.owner != this) {
+            cache = new Cache(this);
+            machine.setPatternCache(cache);
+        }
+        for (int i = 0; i < referencedSlots.length; i++) {
+            cache.keyValues[i] = machine.getVariable(referencedSlots[i]);
+        }
+        cache.table = build(machine);
+        return cache.table;
+    }
+
+    /**
+     * 現在の変数値で表を作る。
+     * 回転中に例外を出さないよう、範囲外の確率は 0〜100 に丸め、合計が100を超えたらハズレなしとして扱う。
+     */
+    private AliasTable build(MachineManager.MachineData machine) {
+        double[] weights = new double[probabilities.length + 1];
+        double sum = 0;
+        for (int i = 0; i < probabilities.length; i++) {
+            double p = (probabilities[i] != null) ? probabilities[i].eval(machine) : 0.0;
+            if (Double.isNaN(p) || p < 0) p = 0;
+            if (p > 100) p = 100;
+            weights[i] = p;
+            sum += p;
+        }
+        weights[probabilities.length] = Math.max(0, 100 - sum);
+        if (sum <= 0) {
+            // 全パターン 0% → 常にハズレ
+            weights[probabilities.length] = 100;
+        }
+        return new AliasTable(weights);
+    }
+
+    /**
+     * 台ごとの表キャッシュ (MachineData に保持、保存対象外)
+     */
+    static final class Cache {
+        private final PatternSampler owner;
+        private final double[] keyValues;
+        private AliasTable table;
+
+        private Cache(PatternSampler owner) {
+            this.owner = owner;
+            this.keyValues = new double[owner.referencedSlots.length];
+        }
+
+        private boolean matches(MachineManager.MachineData machine) {
+            int[] slots = owner.referencedSlots;
+            for (int i = 0; i < slots.length; i++) {
+                if (Double.compare(keyValues[i], machine.getVariable(slots[i])) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
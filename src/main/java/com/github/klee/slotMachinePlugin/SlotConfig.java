@@ -1,8 +1,14 @@
 package com.github.klee.slotMachinePlugin;
 
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
+import com.github.klee.slotMachinePlugin.utils.ExpressionParser;
+import com.github.klee.slotMachinePlugin.utils.MessageTemplate;
+
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * SlotConfig: JSON設定マッピングクラス (最終リファクタリング後)
@@ -12,9 +18,17 @@ import java.util.Objects;
  * ・ブロードキャストサウンド (broadcastSound) もオブジェクト化
  * ・EventDefinition のサウンド (eventSound) もオブジェクト化
  * ・PatternConfig の reward を "List<Reward>" に変更して複数指定可能
+ * ・確率/条件/変数計算/報酬の式は compileExpressions() でロード時にコンパイルする
+ * ・式とメッセージ中の変数は VariableSchema の変数ID に束縛する
+ * ・この設定が定義・参照する変数から、台が変数を持つためのスキーマ (getSchema) を作る
  */
 public class SlotConfig {
 
+    /**
+     * 台が表示するリール (額縁) の数。ハズレの出目もこの数で作る (設定の reels に関係なく)
+     */
+    public static final int DISPLAYED_REELS = 3;
+
     private int reels;
     private double shuffleTime;
     private double spinCost;
@@ -31,6 +45,18 @@ public class SlotConfig {
     private List<VariableDefinition> variables;
     private List<EventDefinition> event;
 
+    // コンパイル済みのハズレメッセージ・パターン抽選表・出目の索引・ハズレ出目の抽選 (JSON対象外)
+    private transient MessageTemplate compiledLoseMessage;
+    private transient PatternSampler patternSampler;
+    private transient PatternIndex patternIndex;
+    private transient LosingTupleSampler losingTupleSampler;
+    private transient VariableSchema schema = VariableSchema.EMPTY;
+
+    /**
+     * メッセージ中で表示時に置換されるため、変数として扱わない名前
+     */
+    private static final Set<String> RESERVED_PLACEHOLDERS = Set.of("profit", "playerName", "slotName");
+
     public List<ParticleSetting> getDefaultParticleSettings() {
         // null回避
         return (defaultParticleSettings != null)
@@ -42,6 +68,13 @@ public class SlotConfig {
     // Getters
     // --------------------------------------------------
 
+    /**
+     * リール数 (未設定なら 3)
+     */
+    public int getReels() {
+        return (reels > 0) ? reels : 3;
+    }
+
     public ItemCost getItemCost() {
         return itemCost;
     }
@@ -74,6 +107,38 @@ public class SlotConfig {
         return loseMessage;
     }
 
+    public MessageTemplate getCompiledLoseMessage() {
+        return compiledLoseMessage;
+    }
+
+    /**
+     * パターン抽選 (パターン未設定なら null)
+     */
+    public PatternSampler getPatternSampler() {
+        return patternSampler;
+    }
+
+    /**
+     * 出目 → パターンの索引
+     */
+    public PatternIndex getPatternIndex() {
+        return patternIndex;
+    }
+
+    /**
+     * ハズレ時の出目の抽選
+     */
+    public LosingTupleSampler getLosingTupleSampler() {
+        return losingTupleSampler;
+    }
+
+    /**
+     * この設定を使う台の変数の並び (定義された変数・varCalc の左辺・式が参照する変数)
+     */
+    public VariableSchema getSchema() {
+        return schema;
+    }
+
     public DefaultSoundSettings getDefaultSoundSettings() {
         return defaultSoundSettings;
     }
@@ -90,6 +155,133 @@ public class SlotConfig {
         return event;
     }
 
+    /**
+     * 設定内の式をすべてコンパイルする。
+     * SlotManager が読み込み時に一度だけ呼び出し、回転中は文字列を解析しない。
+     *
+     * @throws IllegalArgumentException 式が不正な場合、または変数を含まない確率が範囲外・合計100超の場合
+     */
+    public void compileExpressions() {
+        // 変数定義を先に登録しておく
+        if (variables != null) {
+            for (VariableDefinition vd : variables) {
+                if (vd != null && vd.varName != null) VariableSchema.register(vd.varName);
+            }
+        }
+        if (patterns != null) {
+            for (PatternConfig pc : patterns) {
+                pc.compiledProbability = compile(pc.probability);
+                for (Reward rw : pc.getRewards()) {
+                    if (rw != null) rw.compile();
+                }
+                compileEvents(pc.event);
+            }
+        }
+        compileEvents(event);
+        schema = VariableSchema.of(collectVariables());
+
+        patternSampler = (patterns == null || patterns.isEmpty()) ? null : new PatternSampler(patterns);
+        patternIndex = new PatternIndex(patterns);
+        losingTupleSampler = new LosingTupleSampler(patterns, DISPLAYED_REELS);
+    }
+
+    /**
+     * 定義された変数・varCalc の左辺・コンパイル済みの式が参照する変数の名前 (stock も含みうる)
+     */
+    private Set<String> collectVariables() {
+        Set<String> names = new LinkedHashSet<>();
+        if (variables != null) {
+            for (VariableDefinition vd : variables) {
+                if (vd != null && vd.varName != null) names.add(vd.varName);
+            }
+        }
+        if (patterns != null) {
+            for (PatternConfig pc : patterns) {
+                addVariables(names, pc.compiledProbability);
+                addRewardVariables(names, pc.getRewards());
+                addEventVariables(names, pc.event);
+            }
+        }
+        addEventVariables(names, event);
+        return names;
+    }
+
+    private static void addEventVariables(Set<String> names, List<EventDefinition> events) {
+        if (events == null) return;
+        for (EventDefinition evt : events) {
+            if (evt == null) continue;
+            if (evt.varCalcTarget >= 0) names.add(VariableSchema.nameOf(evt.varCalcTarget));
+            addVariables(names, evt.compiledCondition);
+            addVariables(names, evt.compiledVarCalc);
+            addRewardVariables(names, evt.getRewards());
+        }
+    }
+
+    private static void addRewardVariables(Set<String> names, List<Reward> rewards) {
+        for (Reward rw : rewards) {
+            if (rw == null) continue;
+            addVariables(names, rw.compiledValue);
+            addVariables(names, rw.compiledQuantity);
+        }
+    }
+
+    private static void addVariables(Set<String> names, CompiledExpression expr) {
+        if (expr != null) names.addAll(expr.getVariables());
+    }
+
+    private static void compileEvents(List<EventDefinition> events) {
+        if (events == null) return;
+        for (EventDefinition evt : events) {
+            if (evt == null) continue;
+            evt.compile();
+        }
+    }
+
+    /**
+     * 式をコンパイルし、式中の変数を VariableSchema に登録・束縛する
+     */
+    private static CompiledExpression compile(String expression) {
+        return ExpressionParser.compile(expression, VariableSchema::register);
+    }
+
+    /**
+     * メッセージをコンパイルする。
+     * 全設定の compileExpressions() が終わってから呼ぶこと
+     * (他の設定で定義された変数もプレースホルダとして使えるように)。
+     */
+    public void compileMessages() {
+        compiledLoseMessage = compileMessage(loseMessage);
+        if (patterns != null) {
+            for (PatternConfig pc : patterns) {
+                pc.compiledWinMessage = compileMessage(pc.winMessage);
+                if (pc.broadcastSettings != null) {
+                    pc.broadcastSettings.compiledMessage = compileMessage(pc.broadcastSettings.message);
+                }
+                compileEventMessages(pc.event);
+            }
+        }
+        compileEventMessages(event);
+    }
+
+    private static void compileEventMessages(List<EventDefinition> events) {
+        if (events == null) return;
+        for (EventDefinition evt : events) {
+            if (evt == null) continue;
+            evt.compiledMessage = compileMessage(evt.message);
+        }
+    }
+
+    /**
+     * &lt;varName&gt; を登録済みの変数に束縛する
+     * (stock と表示時に置換する名前は対象外で、そのまま残す)
+     */
+    private static MessageTemplate compileMessage(String message) {
+        return MessageTemplate.compile(message, name ->
+                (VariableSchema.STOCK_NAME.equals(name) || RESERVED_PLACEHOLDERS.contains(name))
+                        ? -1
+                        : VariableSchema.indexOf(name));
+    }
+
     //================================================
     // デフォルトサウンド設定
     //================================================
@@ -175,14 +367,26 @@ public class SlotConfig {
         private List<ParticleSetting> particleSettings;
         private String winMessage;
 
+        // コンパイル済みの確率式・メッセージ (JSON対象外)
+        private transient CompiledExpression compiledProbability;
+        private transient MessageTemplate compiledWinMessage;
+
         public String getWinMessage() {
             return winMessage;
         }
 
+        public MessageTemplate getCompiledWinMessage() {
+            return compiledWinMessage;
+        }
+
         public String getProbability() {
             return probability;
         }
 
+        public CompiledExpression getCompiledProbability() {
+            return compiledProbability;
+        }
+
         public PatternSoundParam getPatternSound() {
             return patternSound;
         }
@@ -255,6 +459,7 @@ public class SlotConfig {
 
         // ブロードキャスト時のメッセージ
         private String message;
+        private transient MessageTemplate compiledMessage;
 
         public BroadcastSoundParam getBroadcastSound() {
             return broadcastSound;
@@ -264,6 +469,10 @@ public class SlotConfig {
             return message;
         }
 
+        public MessageTemplate getCompiledMessage() {
+            return compiledMessage;
+        }
+
         public static class BroadcastSoundParam {
             private String type;
             private double volume;
@@ -301,6 +510,12 @@ public class SlotConfig {
         // イベント用サウンドオブジェクト
         private EventSoundParam eventSound;
 
+        // コンパイル済みの条件式・変数計算・メッセージ (JSON対象外)
+        private transient CompiledExpression compiledCondition;
+        private transient int varCalcTarget = -1;
+        private transient CompiledExpression compiledVarCalc;
+        private transient MessageTemplate compiledMessage;
+
         public String getCondition() {
             return condition;
         }
@@ -309,10 +524,56 @@ public class SlotConfig {
             return varCalc;
         }
 
+        /**
+         * コンパイル済みの条件式 (条件未設定なら null = 常に不成立)
+         */
+        public CompiledExpression getCompiledCondition() {
+            return compiledCondition;
+        }
+
+        /**
+         * varCalc "varName=式" の左辺の変数ID (varCalc 未設定・不正なら -1)
+         */
+        public int getVarCalcTarget() {
+            return varCalcTarget;
+        }
+
+        /**
+         * varCalc "varName=式" の右辺をコンパイルしたもの
+         */
+        public CompiledExpression getCompiledVarCalc() {
+            return compiledVarCalc;
+        }
+
+        private void compile() {
+            compiledCondition = (condition == null || condition.isEmpty())
+                    ? null
+                    : SlotConfig.compile(condition);
+
+            varCalcTarget = -1;
+            compiledVarCalc = null;
+            // "varName=式" の形のみ対応
+            if (varCalc != null && varCalc.contains("=")) {
+                String[] sp = varCalc.split("=");
+                if (sp.length == 2) {
+                    varCalcTarget = VariableSchema.register(sp[0].trim());
+                    compiledVarCalc = SlotConfig.compile(sp[1].trim());
+                }
+            }
+
+            for (Reward rw : getRewards()) {
+                if (rw != null) rw.compile();
+            }
+        }
+
         public String getMessage() {
             return message;
         }
 
+        public MessageTemplate getCompiledMessage() {
+            return compiledMessage;
+        }
+
         public List<Reward> getRewards() {
             return Objects.requireNonNullElse(rewards, Collections.emptyList());
         }
@@ -393,6 +654,10 @@ public class SlotConfig {
         private String value;  // 例: "1000" or "STOCK*2" or "DIAMOND"
         private String quantity;
 
+        // コンパイル済みの式 (JSON対象外)
+        private transient CompiledExpression compiledValue;
+        private transient CompiledExpression compiledQuantity;
+
         public String getType() {
             return type;
         }
@@ -404,6 +669,26 @@ public class SlotConfig {
         public String getQuantity() {
             return quantity;
         }
+
+        /**
+         * money報酬の金額式 (money以外は null)
+         */
+        public CompiledExpression getCompiledValue() {
+            return compiledValue;
+        }
+
+        /**
+         * item報酬の個数式
+         */
+        public CompiledExpression getCompiledQuantity() {
+            return compiledQuantity;
+        }
+
+        private void compile() {
+            // item の value はアイテム名なので式としては扱わない
+            compiledValue = "money".equalsIgnoreCase(type) ? SlotConfig.compile(value) : null;
+            compiledQuantity = SlotConfig.compile(quantity);
+        }
     }
 
 
@@ -2,107 +2,346 @@ package com.github.klee.slotMachinePlugin;
 
 import org.bukkit.plugin.Plugin;
 
-import java.io.File;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * SQLiteデータベース "slotData.db" に
- * slot_records テーブル (id, uuid, slot_id, timestamp, profit) を保管するクラス。
+ * 記録用の DB (既定は SQLite の "slotData.db") に
+ * slot_records テーブル (id, player_id, machine_id, timestamp, profit) を保管するクラス。
+ * プレイヤーと台は番号で持ち、番号は players / machines に登録する ({@link SlotDictionary})。
+ * テーブルやインデックスは {@link SlotSchema} の版管理で作る。DB の種類ごとの違いは {@link StorageDialect} にある。
+ * <p>
+ * ・書き込み用の接続は1本を使い回す (呼び出し側で close しない)。使うときは {@link #withConnection} / {@link #withTransaction} で
+ * ・集計などの読み取りは {@link #withReadConnection} で、別の接続 (storage.readPoolSize 本まで) を使い、書き込みを待たせない
+ * ・PreparedStatement は SQL ごとにキャッシュし、再接続時に作り直す
+ * ・接続の確認は一定間隔ごとと、SQL が失敗した直後だけ行う
+ * どのスレッドから呼んでもよい (書き込み用の接続の利用はロックで1つずつ)。
  */
 public class SlotDatabase {
 
-    private final Plugin plugin;
+    /**
+     * 1時間ごとの集計テーブル (slot_hourly / user_hourly) の1区切り (ms)。hour_bucket = timestamp / HOUR_MS
+     */
+    public static final long HOUR_MS = 3_600_000L;
+
+    // 接続を確認する間隔 (ms)
+    private static final long HEALTH_CHECK_INTERVAL_MS = 30_000L;
+    // 読み取り用の接続が空くのを待つ時間 (ms)
+    private static final long READ_WAIT_MS = 10_000L;
+
+    private final Logger logger;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final SlotDictionary dictionary = new SlotDictionary(this);
+
+    private final StorageDialect dialect;
     private Connection connection;
+    private boolean schemaReady;
+    // close() 後は再接続しない (停止中に残った非同期処理から開き直さないように)
+    private volatile boolean closed;
+    private volatile boolean legacyRecords;
+    private long lastHealthCheck;
+    // 直前の SQL が失敗した (次の利用時に接続を確かめる)
+    private boolean suspect;
+
+    // 読み取り用の接続 (空いているもの) と、開いている本数
+    private final int readPoolSize;
+    private final BlockingQueue<Connection> idleReaders;
+    private int openReaders;
 
+    /**
+     * 接続を使う処理
+     */
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * 保存先は config.yml の storage から決める ({@link StorageDialect})
+     */
     public SlotDatabase(Plugin plugin) {
-        this.plugin = plugin;
+        this(plugin.getLogger(),
+                StorageDialect.fromConfig(plugin.getConfig(), plugin.getDataFolder(), plugin.getLogger()),
+                plugin.getConfig().getInt("storage.readPoolSize", 2));
+    }
+
+    /**
+     * 保存先を直接指定する (テスト用)
+     */
+    SlotDatabase(Logger logger, StorageDialect dialect, int readPoolSize) {
+        this.logger = logger;
+        this.dialect = dialect;
+        this.readPoolSize = Math.max(1, readPoolSize);
+        this.idleReaders = new ArrayBlockingQueue<>(this.readPoolSize);
     }
 
     /**
      * DB初期化:
-     *  - pluginフォルダが存在しなければ作成
-     *  - slotData.db に接続 (無ければ自動生成)
-     *  - slot_records テーブルをIF NOT EXISTSで作成
+     *  - 接続 (SQLite なら slotData.db を自動生成)
+     *  - スキーマを最新の版に更新 ({@link SlotSchema})
      */
     public void init() {
+        lock.lock();
+        try {
+            connect();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "[SlotDatabase] initエラー", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 接続を使って処理する (接続とステートメントは close しないこと)
+     */
+    public <T> T withConnection(SqlWork<T> work) throws SQLException {
+        lock.lock();
         try {
-            // plugins/SlotMachinePlugin/ フォルダが存在しない場合は作る
-            if (!plugin.getDataFolder().exists()) {
-                plugin.getDataFolder().mkdirs();
+            if (closed) {
+                throw new SQLException("DBは閉じられています");
             }
-            // DBファイルへのパス
-            File dbFile = new File(plugin.getDataFolder(), "slotData.db");
-            String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
-
-            Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection(url);
-
-            // テーブルが無ければ作る
-            try (Statement st = connection.createStatement()) {
-                st.executeUpdate("""
-                    CREATE TABLE IF NOT EXISTS slot_records (
-                       id INTEGER PRIMARY KEY AUTOINCREMENT,
-                       uuid TEXT NOT NULL,
-                       slot_id TEXT NOT NULL,
-                       timestamp BIGINT NOT NULL,
-                       profit DOUBLE NOT NULL
-                    );
-                """);
+            ensureConnection();
+            try {
+                return work.run(connection);
+            } catch (SQLException e) {
+                suspect = true;
+                throw e;
             }
-
-        } catch (Exception e) {
-            plugin.getLogger().log(Level.SEVERE, "[SlotDatabase] initエラー", e);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * コネクション取得
-     * - もしnull or isClosed() なら init() で再接続を試みる
+     * 1つのトランザクションで処理する (例外なら rollback)。
+     * commit できた後は例外を投げない (呼び出し側が書き込めなかったと判断して二重に書かないように)
      */
-    public Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            init();
-            if (connection == null || connection.isClosed()) {
-                throw new SQLException("DB接続を復旧できませんでした");
+    public <T> T withTransaction(SqlWork<T> work) throws SQLException {
+        return withConnection(conn -> {
+            conn.setAutoCommit(false);
+            try {
+                T result = work.run(conn);
+                conn.commit();
+                dictionary.committed();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException ignored) {
+                }
+                dictionary.rolledBack();
+                throw e;
+            } finally {
+                restoreAutoCommit(conn);
             }
+        });
+    }
+
+    /**
+     * autocommit に戻す。戻せない接続は自動コミットされない状態のまま使い回さないよう閉じる (次の利用時に張り直す)
+     */
+    private void restoreAutoCommit(Connection conn) {
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "[SlotDatabase] autocommit に戻せないため接続を張り直します", e);
+            closeConnection();
         }
-        return connection;
+    }
+
+    /**
+     * 読み取り用の接続で処理する (集計など。書き込み用のロックは取らない)。
+     * 接続は close しないこと。ステートメントは work の中で作って閉じる
+     */
+    public <T> T withReadConnection(SqlWork<T> work) throws SQLException {
+        Connection conn = borrowReader();
+        boolean broken = true;
+        try {
+            T result = work.run(conn);
+            broken = false;
+            return result;
+        } finally {
+            returnReader(conn, broken);
+        }
+    }
+
+    /**
+     * キャッシュ済みの PreparedStatement ({@link #withConnection} の中でだけ使う。close しないこと)
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("withConnection の外では使えません");
+        }
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * DB の種類ごとの SQL の違い
+     */
+    public StorageDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * プレイヤー・台の番号 ({@link #withConnection} の中でだけ使う)
+     */
+    public SlotDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * 文字列のまま保存された以前の記録 (slot_records_legacy) が残っているか
+     */
+    public boolean hasLegacyRecords() {
+        return legacyRecords;
+    }
+
+    void setLegacyRecords(boolean legacyRecords) {
+        this.legacyRecords = legacyRecords;
     }
 
     /**
      * DBクローズ
      */
     public void close() {
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (Exception ignored) {
-            }
+        lock.lock();
+        try {
+            closed = true;
+            closeConnection();
+        } finally {
+            lock.unlock();
+        }
+        // 使用中の読み取り用の接続は、返されたときに閉じる
+        Connection conn;
+        while ((conn = idleReaders.poll()) != null) {
+            closeQuietly(conn);
         }
     }
 
     /**
-     * レコード追加
-     * - getConnection() で再接続を確保し、使い終わったらcloseしない
-     *   (ステートメントだけ閉じる)
+     * 空いている読み取り用の接続を取る (無ければ上限まで開き、上限なら空くのを待つ)
      */
-    public void record(String uuid, String slotId, long timestamp, double profit) {
-        // まずコネクションを取得 (再接続が必要ならinitを呼ぶ)
-        try (Connection conn = getConnection()) {
+    private Connection borrowReader() throws SQLException {
+        while (true) {
+            if (closed) {
+                throw new SQLException("DBは閉じられています");
+            }
+            Connection conn = idleReaders.poll();
             if (conn == null) {
-                return;
+                synchronized (idleReaders) {
+                    if (openReaders < readPoolSize) {
+                        openReaders++;
+                        try {
+                            return dialect.open();
+                        } catch (SQLException | RuntimeException e) {
+                            openReaders--;
+                            throw e;
+                        }
+                    }
+                }
+                try {
+                    conn = idleReaders.poll(READ_WAIT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("読み取り用の接続を待つ間に割り込まれました", e);
+                }
+                if (conn == null) {
+                    throw new SQLException("読み取り用の接続が空きませんでした");
+                }
             }
-            String sql = "INSERT INTO slot_records (uuid, slot_id, timestamp, profit) VALUES (?,?,?,?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, uuid);
-                ps.setString(2, slotId);
-                ps.setLong(3, timestamp);
-                ps.setDouble(4, profit);
-                ps.executeUpdate();
+            // 切れていたら捨てて取り直す
+            if (!conn.isClosed() && conn.isValid(2)) {
+                return conn;
             }
-        } catch (SQLException e) {
-            plugin.getLogger().log(Level.SEVERE, "[SlotDatabase] recordエラー", e);
+            returnReader(conn, true);
+        }
+    }
+
+    private void returnReader(Connection conn, boolean broken) {
+        if (broken || closed || !idleReaders.offer(conn)) {
+            closeQuietly(conn);
+            synchronized (idleReaders) {
+                openReaders--;
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * 接続が無い・切れている場合は張り直す (ロックの中で)
+     */
+    private void ensureConnection() throws SQLException {
+        long now = System.currentTimeMillis();
+        boolean check = suspect || now - lastHealthCheck >= HEALTH_CHECK_INTERVAL_MS;
+        if (connection != null && !check) return;
+        if (connection != null && !connection.isClosed() && connection.isValid(2)) {
+            lastHealthCheck = now;
+            suspect = false;
+            return;
+        }
+        if (connection != null) {
+            logger.warning("[SlotDatabase] DB接続が切れていたため再接続します");
+        }
+        closeConnection();
+        connect();
+        if (connection == null) {
+            throw new SQLException("DB接続を復旧できませんでした");
+        }
+    }
+
+    private void connect() throws SQLException {
+        Connection conn = dialect.open();
+        // スキーマを最新の版にする (接続し直すたびには行わない)。
+        // 失敗したら接続を残さず、次の利用時に接続からやり直す
+        if (!schemaReady) {
+            try {
+                logger.info("[SlotDatabase] 記録の保存先: " + dialect.name());
+                SlotSchema.migrate(conn, dialect, logger);
+                legacyRecords = SlotSchema.tableExists(conn, "slot_records_legacy");
+            } catch (SQLException | RuntimeException e) {
+                closeQuietly(conn);
+                throw e;
+            }
+            schemaReady = true;
+        }
+        connection = conn;
+        lastHealthCheck = System.currentTimeMillis();
+        suspect = false;
+    }
+
+    private void closeConnection() {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        statements.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception ignored) {
+            }
+            connection = null;
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * players (id, uuid BLOB(16)) / machines (id, machine_id) の番号をメモリに覚えておくクラス。
+ * <p>
+ * ・slot_records はプレイヤーと台をこの番号で持つ
+ * ・覚えていない値だけ DB を引き、無ければその場で登録する
+ *   (同じ DB を使う別のサーバーが先に登録していても失敗しないよう、無いときだけ足す SQL で)
+ * ・登録したトランザクションが rollback されたら、その分は忘れる ({@link SlotDatabase#withTransaction} から呼ぶ)
+ * SlotDatabase のロックを持った状態 (withConnection の中) でだけ使う。
+ */
+public class SlotDictionary {
+
+    private final SlotDatabase database;
+    private final Map<UUID, Integer> players = new HashMap<>();
+    private final Map<String, Integer> machines = new HashMap<>();
+    // 今のトランザクションで登録した値 (commit まで)
+    private final List<UUID> newPlayers = new ArrayList<>();
+    private final List<String> newMachines = new ArrayList<>();
+
+    SlotDictionary(SlotDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * プレイヤーの番号 (無ければ登録する)
+     */
+    public int playerId(UUID uuid) throws SQLException {
+        Integer id = players.get(uuid);
+        if (id != null) return id;
+        byte[] key = toBytes(uuid);
+        id = lookup("SELECT id FROM players WHERE uuid = ?", key);
+        if (id == null) {
+            PreparedStatement ps = database.prepare(database.getDialect().insertIfAbsentSql("players", "uuid"));
+            ps.setBytes(1, key);
+            ps.executeUpdate();
+            id = registered(lookup("SELECT id FROM players WHERE uuid = ?", key), uuid);
+            newPlayers.add(uuid);
+        }
+        players.put(uuid, id);
+        return id;
+    }
+
+    /**
+     * 台の番号 (無ければ登録する)
+     */
+    public int machineId(String machineId) throws SQLException {
+        Integer id = machines.get(machineId);
+        if (id != null) return id;
+        id = lookup("SELECT id FROM machines WHERE machine_id = ?", machineId);
+        if (id == null) {
+            PreparedStatement ps = database.prepare(database.getDialect().insertIfAbsentSql("machines", "machine_id"));
+            ps.setString(1, machineId);
+            ps.executeUpdate();
+            id = registered(lookup("SELECT id FROM machines WHERE machine_id = ?", machineId), machineId);
+            newMachines.add(machineId);
+        }
+        machines.put(machineId, id);
+        return id;
+    }
+
+    void committed() {
+        newPlayers.clear();
+        newMachines.clear();
+    }
+
+    void rolledBack() {
+        for (UUID uuid : newPlayers) players.remove(uuid);
+        for (String machineId : newMachines) machines.remove(machineId);
+        committed();
+    }
+
+    static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * 登録した直後に引いた番号 (別のサーバーが登録中でまだ見えないときは、このトランザクションをやり直させる)
+     */
+    private static int registered(Integer id, Object value) throws SQLException {
+        if (id == null) {
+            throw new SQLException("番号を登録できませんでした: " + value);
+        }
+        return id;
+    }
+
+    private Integer lookup(String sql, Object key) throws SQLException {
+        PreparedStatement ps = database.prepare(sql);
+        ps.setObject(1, key);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : null;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.github.klee.slotMachinePlugin;
 
+import com.github.klee.slotMachinePlugin.CompiledSlotConfig.ParticleEmitter;
+import com.github.klee.slotMachinePlugin.CompiledSlotConfig.SoundEffect;
 import com.github.klee.slotMachinePlugin.MachineManager.MachineData;
 import com.github.klee.slotMachinePlugin.SlotConfig.Reward;
-import com.github.klee.slotMachinePlugin.utils.ExpressionParser;
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
+import com.github.klee.slotMachinePlugin.utils.MessageTemplate;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
@@ -15,12 +18,16 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.entity.EntityRemoveEvent;
+import org.bukkit.event.hanging.HangingBreakEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.metadata.MetadataValue;
 import org.bukkit.persistence.PersistentDataType;
-import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
@@ -53,15 +60,16 @@ public class SlotMachineListener implements Listener {
         ));
     }
 
-    private final double defaultVolume = 0.5F;
-    private final double defaultPitch = 1.0;
-    private final double defaultRadius = 10.0;
     private final SlotMachinePlugin plugin;
     private final Set<UUID> spinningPlayers = Collections.synchronizedSet(new HashSet<>());
     private final Map<String, UUID> busyMachineMap = Collections.synchronizedMap(new HashMap<>());
+    private final SpinAnimator animator;
+    private final FrameCache frameCache;
 
     public SlotMachineListener(SlotMachinePlugin plugin) {
         this.plugin = plugin;
+        this.animator = plugin.getSpinAnimator();
+        this.frameCache = plugin.getFrameCache();
     }
 
     @EventHandler
@@ -70,9 +78,9 @@ public class SlotMachineListener implements Listener {
         if (event.getHand() != EquipmentSlot.HAND) return;
         if (event.getClickedBlock() == null) return;
         if (!BUTTONS.contains(event.getClickedBlock().getType())) return;
-        List<MetadataValue> metas = event.getClickedBlock().getMetadata("MachineId");
-        if (metas.isEmpty()) return;
-        String machineId = metas.get(0).asString();
+        // 座標の索引で台を引く (台でないボタンはここで終わり)
+        String machineId = plugin.getMachineLocationIndex().find(event.getClickedBlock());
+        if (machineId == null) return;
 
         var machine = MachineManager.getMachine(machineId);
         if (machine == null) return;
@@ -89,76 +97,122 @@ public class SlotMachineListener implements Listener {
             return;
         }
 
-        var config = plugin.getSlotManager().getSlotConfig(machine.getSlotConfigName());
-        if (config == null) {
+        var slot = plugin.getSlotManager().getCompiledSlotConfig(machine.getSlotConfigName());
+        if (slot == null) {
             player.sendMessage("§cスロット設定が見つかりません: " + machine.getSlotConfigName());
             return;
         }
-        if (!checkFrame(event.getClickedBlock())) {
+        if (getReelFrames(machineId, event.getClickedBlock()) == null) {
             player.sendMessage("§c額縁が正しく配置されていません。");
             return;
         }
-        startSlot(player, event.getClickedBlock(), machineId, machine, config);
+        startSlot(player, event.getClickedBlock(), machineId, machine, slot);
     }
 
-    private boolean checkFrame(Block buttonBlock) {
+    /**
+     * ボタンに対応するリールの額縁 (左から順)。
+     * 台ごとにキャッシュし、無ければ一度だけ探してキャッシュする。
+     * 定義されたオフセットのどれかに同じ面の額縁が無ければ null (額縁が正しく配置されていない)
+     */
+    private List<ItemFrame> getReelFrames(String machineId, Block buttonBlock) {
         // 1) ボタンのBlockDataが Switch であることを確認
         BlockData bd = buttonBlock.getBlockData();
         if (!(bd instanceof Switch sw)) {
-            return false;
+            return null;
         }
 
         // 2) ボタンが取り付けられている面(CEILING, FLOOR, WALL) & 向き
         FaceAttachable.AttachedFace face = sw.getAttachedFace();
         BlockFace facing = sw.getFacing();
-
-
-
-        // 3) OFFSET_MAP から、(face + "_" + facing) で対応する OffsetDefinition を取得
         String key = face + "_" + facing;
         OffsetDefinition offDef = OFFSET_MAP.get(key);
         if (offDef == null) {
             // 未対応の向き
-            return false;
+            return null;
+        }
+
+        List<ItemFrame> cached = frameCache.get(machineId, key);
+        if (cached != null) {
+            return cached;
         }
 
-        // 4) 定義されたオフセットそれぞれに対し、
-        //    「同じ面に取り付けられた額縁が最低1つあるか」を確認
+        // 3) 定義されたオフセットそれぞれで、同じ面に取り付けられた額縁を探す
+        List<ItemFrame> result = new ArrayList<>();
         for (BlockPos off : offDef.reelOffsets) {
-            // このオフセットのブロック位置
             Block targetBlock = buttonBlock.getRelative(off.dx, off.dy, off.dz);
 
             // 近辺のItemFrameを検索 (±0.1ブロックの範囲)
-            List<ItemFrame> framesFound = new ArrayList<>();
-            targetBlock.getWorld().getNearbyEntities(targetBlock.getBoundingBox().expand(0.1),
-                    e -> e instanceof ItemFrame).forEach(e -> framesFound.add((ItemFrame) e));
-
-            // 「同じ面にある」 = frame.getFacing() == requiredFrameFacing
-            // このオフセット位置に一つでも 同じ面向きのフレームがあればOK
             boolean foundFrameOnThisOffset = false;
-            for (ItemFrame f : framesFound) {
-                if (f.getFacing() == facing) {
+            for (var e : targetBlock.getWorld().getNearbyEntities(targetBlock.getBoundingBox().expand(0.1),
+                    e -> e instanceof ItemFrame)) {
+                ItemFrame frame = (ItemFrame) e;
+                // 「同じ面にある」 = frame.getFacing() == facing
+                if (frame.getFacing() == facing) {
+                    result.add(frame);
                     foundFrameOnThisOffset = true;
-                    break;
                 }
             }
 
             // もし一つも見つからなければ、このオフセットに必要な額縁が無い
             if (!foundFrameOnThisOffset) {
-                return false;
+                return null;
             }
         }
 
-        // すべてのオフセットについて「同じ面の額縁」を1つ以上確認できたらOK
-        return true;
+        frameCache.put(machineId, key, result);
+        return result;
+    }
+
+    //========================
+    // 額縁キャッシュの無効化
+    //========================
+    @EventHandler
+    public void onHangingBreak(HangingBreakEvent event) {
+        if (event.getEntity() instanceof ItemFrame frame) {
+            frameCache.invalidateFrame(frame.getUniqueId());
+        }
+    }
+
+    @EventHandler
+    public void onEntityRemove(EntityRemoveEvent event) {
+        if (event.getEntity() instanceof ItemFrame frame) {
+            frameCache.invalidateFrame(frame.getUniqueId());
+        }
+    }
+
+    //========================
+    // 台の有効化 (チャンク/ワールドの読み込みに合わせる)
+    //========================
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (event.isNewChunk()) return; // 新規生成のチャンクに台は無い
+        plugin.getMachineLocationIndex().activateChunk(event.getChunk());
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        plugin.getMachineLocationIndex().deactivateChunk(chunk);
+        frameCache.invalidateChunk(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler
+    public void onWorldLoad(WorldLoadEvent event) {
+        plugin.getMachineLocationIndex().activateWorld(event.getWorld());
+    }
+
+    @EventHandler
+    public void onWorldUnload(WorldUnloadEvent event) {
+        plugin.getMachineLocationIndex().deactivateWorld(event.getWorld());
     }
 
     private void startSlot(Player player, Block buttonBlock,
                            String machineId, MachineManager.MachineData machine,
-                           SlotConfig config) {
+                           CompiledSlotConfig slot) {
+        SlotConfig config = slot.getConfig();
 
         // 1) 金銭コスト
-        double cost = parseDoubleExpression(config.getSpinCost(), machine);
+        double cost = config.getSpinCost();
         boolean needMoney = (cost > 0);
 
         // 2) アイテムコスト
@@ -187,8 +241,8 @@ public class SlotMachineListener implements Listener {
             String rawName = itemCost.getName();
             int requiredAmt = itemCost.getAmount();
 
-            // 例: plugin.getItemConfigManager().getItemByKey(rawName) でItemStackを取得 or null
-            ItemStack custom = plugin.getItemConfigManager().getItemByKey(rawName);
+            // itemConfigs のアイテム or Material (ロード時に解決済み)
+            ItemStack custom = slot.getCostItem();
             if (custom != null) {
                 // カスタムアイテム => compare NBT含むかは実装次第
                 int invCount = countItemStack(player, custom);
@@ -198,7 +252,7 @@ public class SlotMachineListener implements Listener {
                 }
             } else {
                 // fallback: Material
-                Material mat = Material.matchMaterial(rawName);
+                Material mat = slot.getCostMaterial();
                 if (mat == null) {
                     player.sendMessage("§citemCostの名前が無効: " + rawName);
                     return;
@@ -220,12 +274,12 @@ public class SlotMachineListener implements Listener {
             String rawName = itemCost.getName();
             int requiredAmt = itemCost.getAmount();
 
-            ItemStack custom = plugin.getItemConfigManager().getItemByKey(rawName);
+            ItemStack custom = slot.getCostItem();
             if (custom != null) {
                 removeItemStack(player, custom, requiredAmt);
                 //player.sendMessage("§e"+ rawName +" x"+ requiredAmt +"個を支払いました。");
             } else {
-                Material mat = Material.matchMaterial(rawName);
+                Material mat = slot.getCostMaterial();
                 if (mat == null) {
                     player.sendMessage("§cアイテムの名前が無効: " + rawName);
                 } else {
@@ -237,45 +291,25 @@ public class SlotMachineListener implements Listener {
 
 
         // 最上位eventは毎回実行
-        runEventsIfNeeded(machine, config, player, machineId);
+        double eventPayout = runEventsIfNeeded(machine, slot, player);
 
         spinningPlayers.add(player.getUniqueId());
         busyMachineMap.put(machineId, player.getUniqueId());
 
 
 // startSound
-        var sParam = config.getDefaultSoundSettings().getStartSound();
-        if (sParam != null
-                && sParam.getType() != null) {
-            double vol = (sParam.getVolume() > 0) ? sParam.getVolume() : defaultVolume;
-            double pitch = (sParam.getPitch() > 0) ? sParam.getPitch() : defaultPitch;
-            double rad = ((sParam.getRadius() > 0) || (sParam.getRadius() == -1)) ? sParam.getRadius() : defaultRadius;
-            playSoundWithRadius(player, buttonBlock, sParam.getType(), vol, pitch, rad);
-        }
+        playSound(player, buttonBlock, slot.getStartSound());
 
-        BlockData bd = buttonBlock.getBlockData();
-        if (!(bd instanceof Switch sw)) {
-            return;
-        }
-        FaceAttachable.AttachedFace face = sw.getAttachedFace();
-        BlockFace facing = sw.getFacing();
-        String key = face + "_" + facing;
-        OffsetDefinition offDef = OFFSET_MAP.get(key);
-        if (offDef == null) {
-            endSpin(player.getUniqueId(), machineId);
-            return;
-        }
-
-        // 額縁3
-        var frames = findFrames(buttonBlock, offDef.reelOffsets);
-        if (frames.size() < 3) {
+        // 額縁3 (台ごとのキャッシュ)
+        var frames = getReelFrames(machineId, buttonBlock);
+        if (frames == null || frames.size() < SlotConfig.DISPLAYED_REELS) {
+            SlotMachinePlugin.recordSpin(player.getUniqueId(), machineId, 0, eventPayout, SpinRecordBuffer.NO_PATTERN);
             endSpin(player.getUniqueId(), machineId);
             return;
         }
 
-        // shuffleTime, shuffleSpeed も式対応
-        double shuffleTime = parseDoubleExpression(config.getShuffleTime(), machine);
-        double shuffleSpeed = parseDoubleExpression(config.getShuffleSpeed(), machine);
+        double shuffleTime = config.getShuffleTime();
+        double shuffleSpeed = config.getShuffleSpeed();
         if (shuffleSpeed <= 0) shuffleSpeed = 1.0;
         long shuffleInterval = (long) (4L / shuffleSpeed);
         long totalShuffleTicks = (long) (shuffleTime * 20);
@@ -289,17 +323,15 @@ public class SlotMachineListener implements Listener {
             finalItems = ptn.getItems();
         } else {
             // ハズレ
-            finalItems = pickNonWinning3(collectAllItemsFromPatterns(config), config);
+            finalItems = pickNonWinning(config);
         }
 
         // シャッフルプール
-        List<String> shufflePool = collectAllItemsFromPatterns(config);
+        ItemStack[] shufflePool = slot.getShufflePool();
 
 // rotatingSound
-        if (config.getDefaultSoundSettings() != null
-                && config.getDefaultSoundSettings().getRotatingSound() != null
-                && config.getDefaultSoundSettings().getRotatingSound().getType() != null
-                && !config.getDefaultSoundSettings().getRotatingSound().getType().isEmpty()) {
+        SoundEffect rotatingSound = slot.getRotatingSound();
+        if (rotatingSound != null) {
             useRotatingSound = true;
             // フレームの音を消す
             for (ItemFrame f : frames) {
@@ -309,45 +341,51 @@ public class SlotMachineListener implements Listener {
             useRotatingSound = false;
         }
 
-        List<Integer> tasks = new ArrayList<>();
-        for (ItemFrame f : frames) {
-            int tid = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, () -> {
-                // シャッフル中のアイテムを変数 or Material のどちらかで表示
-                String itemName = pickRandom(shufflePool);
+        // 停止時の表示 (左から順)
+        ItemStack[] finalStacks = new ItemStack[frames.size()];
+        for (int i = 0; i < finalStacks.length; i++) {
+            String itemName = (i < finalItems.size()) ? finalItems.get(i) : "STONE";
+            finalStacks[i] = reelItem(slot, itemName);
+        }
 
-                ItemStack customItem = plugin.getItemConfigManager().getItemByKey(itemName);
-                if (customItem != null) {
-                    f.setItem(customItem.clone());
-                } else {
-                    Material mat = Material.matchMaterial(itemName);
-                    if (mat == null) mat = Material.STONE;
-                    f.setItem(new ItemStack(mat));
-                }
+        double spinSpeed = config.getSpinSpeed();
+        if (spinSpeed <= 0) spinSpeed = 1.0;
+        long baseDelay = (long) (10L / spinSpeed);
 
-// シャッフル中に音再生
-                if (useRotatingSound) {
-                    var sParams = config.getDefaultSoundSettings().getRotatingSound();
-                    String soundKey = sParams.getType();
-                    double vol = (sParams.getVolume() > 0) ? sParams.getVolume() : 0.3F;
-                    double pitch = (sParams.getPitch() > 0) ? sParams.getPitch() : defaultPitch;
-                    double rad = (sParams.getRadius() != 0) ? sParams.getRadius() : defaultRadius;
-                    playSoundWithRadius(player, buttonBlock, soundKey, vol, pitch, rad);
-                }
-                List<SlotConfig.ParticleSetting> dps = config.getDefaultParticleSettings();
-                if (dps != null && !dps.isEmpty()) {
-                    for (SlotConfig.ParticleSetting ps : dps) {
-                        spawnWinParticles(buttonBlock, ps, player);
+        // シャッフル → 時間後に順番停止 → 結果判定 を共通ティッカーで進める
+        animator.start(new SpinAnimator.Session(
+                frames.toArray(new ItemFrame[0]),
+                shufflePool,
+                finalStacks,
+                shuffleInterval,
+                totalShuffleTicks,
+                baseDelay,
+                // シャッフル中に音再生
+                useRotatingSound ? () -> playSound(player, buttonBlock, rotatingSound) : null,
+                slot.getDefaultParticles().isEmpty() ? null : () -> {
+                    for (ParticleEmitter pe : slot.getDefaultParticles()) {
+                        spawnParticles(buttonBlock, pe, player);
                     }
-                }
-
-            }, 0L, shuffleInterval);
-            tasks.add(tid);
-        }
-
-        // 時間後 => 順番停止
-        plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
-            stopFramesOneByOne(player, frames, config, finalItems, tasks, machineId, machine, buttonBlock, useRotatingSound);
-        }, totalShuffleTicks);
+                },
+                // reelStopSound
+                () -> playSound(player, buttonBlock, slot.getReelStopSound()),
+                () -> {
+                    // finish
+                    finishSlot(player, machineId, machine, slot, buttonBlock, eventPayout);
+                    endSpin(player.getUniqueId(), machineId);
+                    // ★ 回転終了後に setSilent(false) して通常音に戻す
+                    if (useRotatingSound) {
+                        for (ItemFrame ff : frames) {
+                            ff.setSilent(false);
+                        }
+                    }
+                },
+                () -> {
+                    endSpin(player.getUniqueId(), machineId);
+                    for (ItemFrame ff : frames) {
+                        ff.setSilent(false);
+                    }
+                }));
     }
 
     private int countMaterial(Player player, Material mat) {
@@ -404,80 +442,22 @@ public class SlotMachineListener implements Listener {
             }
         }
     }
-    private void stopFramesOneByOne(Player player,
-                                    List<ItemFrame> frames,
-                                    SlotConfig config,
-                                    List<String> finalItems,
-                                    List<Integer> shuffleTasks,
-                                    String machineId,
-                                    MachineManager.MachineData machine,
-                                    Block buttonBlock,
-                                    boolean useRotatingSound) {
-
-        double spinSpeed = parseDoubleExpression(config.getSpinSpeed(), machine);
-        if (spinSpeed <= 0) spinSpeed = 1.0;
-        long baseDelay = (long) (10L / spinSpeed);
-
-        long delay = 0;
-        for (int i = 0; i < frames.size(); i++) {
-            final int idx = i;
-            plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
-                // シャッフル停止
-                plugin.getServer().getScheduler().cancelTask(shuffleTasks.get(idx));
-
-                ItemFrame frame = frames.get(idx);
-
-                String itemName = (idx < finalItems.size()) ? finalItems.get(idx) : "STONE";
-                ItemStack custom = plugin.getItemConfigManager().getItemByKey(itemName);
-                if (custom != null) {
-                    ItemStack clone = custom.clone();
-                    setSlotMachineItemKey(clone, itemName);
-                    frame.setItem(clone);
-                } else {
-                    Material mat = Material.matchMaterial(itemName);
-                    if (mat == null) mat = Material.STONE;
-                    ItemStack matStack = new ItemStack(mat);
-                    setSlotMachineItemKey(matStack, itemName);
-                    frame.setItem(matStack);
-                }
-
-// reelStopSound
-                if (config.getDefaultSoundSettings() != null
-                        && config.getDefaultSoundSettings().getReelStopSound() != null) {
-                    var ss = config.getDefaultSoundSettings().getReelStopSound();
-                    String soundKey = ss.getType();
-                    double vol = (ss.getVolume() > 0) ? ss.getVolume() : defaultVolume;
-                    double pitch = (ss.getPitch() > 0) ? ss.getPitch() : defaultPitch;
-                    double rad = (ss.getRadius() != 0) ? ss.getRadius() : defaultRadius;
-                    playSoundWithRadius(player, buttonBlock, soundKey, vol, pitch, rad);
-                }
-
-
-                if (idx == frames.size() - 1) {
-                    // finish
-                    finishSlot(player, machineId, machine, config, buttonBlock);
-                    endSpin(player.getUniqueId(), machineId);
-                    // ★ 回転終了後に setSilent(false) して通常音に戻す
-                    if (useRotatingSound) {
-                        for (ItemFrame ff : frames) {
-                            ff.setSilent(false);
-                        }
-                    }
-                }
-            }, delay);
-            delay += baseDelay;
-        }
-    }
 
 
+    /**
+     * @param eventPayout 回転開始時のイベントで払い出した金額 (この回転の払い出しに含める)
+     */
     private void finishSlot(Player player,
                             String machineId,
                             MachineData machine,
-                            SlotConfig config,
-                            Block buttonBlock) {
-        var frames = findFrames(buttonBlock, findOffsetDefinition(buttonBlock));
-        if (frames.size() < 3) {
-            doLose(player, machineId, machine, config);
+                            CompiledSlotConfig slot,
+                            Block buttonBlock,
+                            double eventPayout) {
+        SlotConfig config = slot.getConfig();
+        var frames = getReelFrames(machineId, buttonBlock);
+        if (frames == null || frames.size() < SlotConfig.DISPLAYED_REELS) {
+            doLose(player, machineId, machine, slot);
+            SlotMachinePlugin.recordSpin(player.getUniqueId(), machineId, 0, eventPayout, SpinRecordBuffer.NO_PATTERN);
             updateSignStock(machineId, buttonBlock);
             return;
         }
@@ -496,44 +476,29 @@ public class SlotMachineListener implements Listener {
             }
         }
         var realPat = checkWhichPattern(config, actual);
+        double payout = eventPayout;
+        int patternIndex = SpinRecordBuffer.NO_PATTERN;
         if (realPat == null) {
-            doLose(player, machineId, machine, config);
+            doLose(player, machineId, machine, slot);
         } else {
-            doWin(player, machineId, machine, realPat);
+            payout += doWin(player, machineId, machine, slot, realPat);
+            patternIndex = config.getPatterns().indexOf(realPat);
         }
-        double spinCost = parseDoubleExpression(config.getSpinCost(), machine);
-        SlotMachinePlugin.addProfit(player.getUniqueId(), machineId, -spinCost);
+        // 回転ごとに1件 (時刻はこの時点)
+        double spinCost = config.getSpinCost();
+        SlotMachinePlugin.recordSpin(player.getUniqueId(), machineId, spinCost, payout, patternIndex);
         updateSignStock(machineId, buttonBlock);
     }
 
     // ★ 新規追加
 // SlotMachineListener や共通ユーティリティ等で:
-    private String translateColorAndNewline(String text, MachineManager.MachineData machine) {
-        if (text == null) return "";
-
-        // \n → 改行
-        text = text.replace("\\n", "\n");
-        // <[varName]> → varValue
-        if (machine != null && machine.getVariables() != null) {
-            for (Map.Entry<String, Double> e : machine.getVariables().entrySet()) {
-                String placeholder = "<" + e.getKey() + ">";
-                text = text.replace(placeholder, String.valueOf(e.getValue().longValue()));
-            }
-        }
-
-        // & → カラーコード
-        return ChatColor.translateAlternateColorCodes('&', text);
+    private String renderMessage(MessageTemplate template, MachineManager.MachineData machine) {
+        if (template == null) return "";
+        return template.render(machine);
     }
 
 
-    // ★ 新規追加
-    // ★ CHANGED CODE START
-    private void spawnWinParticles(Block buttonBlock, SlotConfig.ParticleSetting ps, Player player) {
-        // "particle" が空なら終了
-        if (ps.getParticle().isEmpty()) {
-            return;
-        }
-
+    private void spawnParticles(Block buttonBlock, ParticleEmitter pe, Player player) {
         // 1) ボタンがSwitch(ボタン)かどうか
         BlockData bd = buttonBlock.getBlockData();
         if (!(bd instanceof Switch sw)) {
@@ -552,150 +517,75 @@ public class SlotMachineListener implements Listener {
             return;
         }
 
-        // 4) パーティクル設定 (Particle, count, offset, speed, color etc.)
-        Particle particle;
-        try {
-            particle = Particle.valueOf(ps.getParticle().toUpperCase());
-        } catch (Exception ex) {
-            plugin.getLogger().warning("[spawnWinParticles] Particle設定が不正: " + ex.getMessage());
-            return;
-        }
-        int count = ps.getCount();
-        double speed = ps.getSpeed();
-        double offX = transformOffset(ps.getOffset(), facing)[0];
-        double offY = transformOffset(ps.getOffset(), facing)[1];
-        double offZ = transformOffset(ps.getOffset(), facing)[2];
+        // 4) パーティクル設定 (ロード時に解決済み、オフセットは向きごとに変換済み)
+        double[] off = pe.offsetFor(facing);
 
-        if (Objects.equals(ps.getPoint(), "button") || Objects.equals(ps.getPoint(), "BUTTON")|| Objects.equals(ps.getPoint(), "Button")) {
+        if (pe.atButton()) {
             // ボタン中心でパーティクルを発生
-            Location baseLoc = buttonBlock.getLocation().add(0.5, 0.5, 0.5);
-            // REDSTONE の色指定対応
-            if (particle == Particle.DUST && ps.getColor() != null) {
-                float r = (float) ps.getColor()[0];
-                float g = (float) ps.getColor()[1];
-                float b = (float) ps.getColor()[2];
-                Particle.DustOptions dust = new Particle.DustOptions(
-                        Color.fromRGB((int) (r * 255), (int) (g * 255), (int) (b * 255)), 1.0F
-                );
-                player.getWorld().spawnParticle(particle,
-                        baseLoc.getX(), baseLoc.getY(), baseLoc.getZ(),
-                        count, offX, offY, offZ, speed, dust
-                );
-            } else {
-                // 通常パーティクル
-                player.getWorld().spawnParticle(particle,
-                        baseLoc.getX(), baseLoc.getY(), baseLoc.getZ(),
-                        count, offX, offY, offZ, speed
-                );
-            }
-        } else if(Objects.equals(ps.getPoint(), "frame")||Objects.equals(ps.getPoint(), "FRAME")||Objects.equals(ps.getPoint(), "Frame")) {        // 5) 各オフセット位置のブロック中心付近でパーティクルを発生
+            spawnParticleAt(player.getWorld(), pe, off,
+                    buttonBlock.getX() + 0.5, buttonBlock.getY() + 0.5, buttonBlock.getZ() + 0.5);
+        } else {
+            // 5) 各オフセット位置のブロック中心付近でパーティクルを発生
             for (BlockPos offset : offDef.reelOffsets) {
-                // ボタン基準に相対ブロックを取得
-                Block target = buttonBlock.getRelative(offset.dx, offset.dy, offset.dz);
-
-                // ブロックの中心位置 (x+0.5, y+0.5, z+0.5)
-                Location baseLoc = target.getLocation().add(0.5, 0.5, 0.5);
-
-                // REDSTONE の色指定対応
-                if (particle == Particle.DUST && ps.getColor() != null) {
-                    float r = (float) ps.getColor()[0];
-                    float g = (float) ps.getColor()[1];
-                    float b = (float) ps.getColor()[2];
-                    Particle.DustOptions dust = new Particle.DustOptions(
-                            Color.fromRGB((int) (r * 255), (int) (g * 255), (int) (b * 255)), 1.0F
-                    );
-                    player.getWorld().spawnParticle(particle,
-                            baseLoc.getX(), baseLoc.getY(), baseLoc.getZ(),
-                            count, offX, offY, offZ, speed, dust
-                    );
-                } else {
-                    // 通常パーティクル
-                    player.getWorld().spawnParticle(particle,
-                            baseLoc.getX(), baseLoc.getY(), baseLoc.getZ(),
-                            count, offX, offY, offZ, speed
-                    );
-                }
+                spawnParticleAt(player.getWorld(), pe, off,
+                        buttonBlock.getX() + offset.dx + 0.5,
+                        buttonBlock.getY() + offset.dy + 0.5,
+                        buttonBlock.getZ() + offset.dz + 0.5);
             }
         }
-
     }
-// ★ CHANGED CODE END
-
-    private Double[] transformOffset(double[] offset,
-                                     BlockFace face) {
-        // 回転結果
-        double rx = 0, ry = 0, rz = 0;
-        double lx = offset[0], ly = offset[1], lz = offset[2];
-        switch (face) {
-            case NORTH -> {
-                rx = -lx;       // x→world x
-                ry = ly;       // y→world y
-                rz = lz;       // z→world z
-            }
-            case SOUTH -> {
-                rx = lx;
-                ry = ly;
-                rz = -lz;
-            }
-            case EAST -> {
-                rx = lz;
-                ry = ly;
-                rz = -lx;
-            }
-            case WEST -> {
-                rx = lz;
-                ry = ly;
-                rz = lx;
-            }
-            default -> {
-                // 想定外
-            }
-        }
-
 
-        // 戻り値 ダブル型で返す
-        return new Double[]{rx, ry, rz};
+    private void spawnParticleAt(World world, ParticleEmitter pe, double[] off, double x, double y, double z) {
+        if (pe.dust() != null) {
+            // DUST の色指定
+            world.spawnParticle(pe.particle(), x, y, z, pe.count(), off[0], off[1], off[2], pe.speed(), pe.dust());
+        } else {
+            // 通常パーティクル
+            world.spawnParticle(pe.particle(), x, y, z, pe.count(), off[0], off[1], off[2], pe.speed());
+        }
     }
 
+
     private void doLose(Player player,
                         String machineId,
                         MachineData machine,
-                        SlotConfig config) {
+                        CompiledSlotConfig slot) {
+        SlotConfig config = slot.getConfig();
         // ★ カラー＆改行対応
         if (config.getLoseMessage() != null && !config.getLoseMessage().isEmpty()) {
-            String msg = translateColorAndNewline(config.getLoseMessage(), machine);
+            String msg = renderMessage(config.getCompiledLoseMessage(), machine);
             player.sendMessage(msg);
         }
-        if (config.getDefaultSoundSettings() != null
-                && config.getDefaultSoundSettings().getEndLoseSound() != null) {
-            var sParam = config.getDefaultSoundSettings().getEndLoseSound();
-            String soundKey = sParam.getType();
-            double vol = (sParam.getVolume() > 0) ? sParam.getVolume() : defaultVolume;
-            double pitch = (sParam.getPitch() > 0) ? sParam.getPitch() : defaultPitch;
-            double rad = (sParam.getRadius() != 0) ? sParam.getRadius() : defaultRadius;
+        if (slot.getEndLoseSound() != null) {
             World machineWorld = Bukkit.getWorld(machine.getWorldName());
             Location buttonLoc = new Location(machineWorld, machine.getX(), machine.getY(), machine.getZ());
             Block buttonBlock = buttonLoc.getBlock();
-            playSoundWithRadius(player, buttonBlock, soundKey, vol, pitch, rad);
+            playSound(player, buttonBlock, slot.getEndLoseSound());
         }
 
         applyLoseStockOperation(machineId, config);
     }
 
 
-    private void doWin(Player player,
+    /**
+     * @return 払い出した金額 (パターンの報酬とパターンイベントの報酬の合計)
+     */
+    private double doWin(Player player,
                        String machineId,
                        MachineData machine,
+                       CompiledSlotConfig slot,
                        SlotConfig.PatternConfig pattern) {
+        CompiledSlotConfig.PatternEffects effects = slot.getPatternEffects(pattern);
         // 報酬計算
         List<SlotConfig.Reward> rewardList = pattern.getRewards();
         double moneyWon = 0;
+        double paid = 0;
         if (rewardList != null) {
             for (SlotConfig.Reward rw : rewardList) {
                 if (rw != null && rw.getType().equalsIgnoreCase("money")) {
-                    moneyWon = parseRewardValue(rw.getValue(), machine);
+                    moneyWon = evalExpression(rw.getCompiledValue(), machine);
                 }
-                giveReward(player, machine, rw,machineId);
+                paid += giveReward(player, machine, rw, slot);
             }
         }
 
@@ -706,312 +596,172 @@ public class SlotMachineListener implements Listener {
 
         // (2) pattern.winMessage で "<>" を moneyWon に置き換え
         if (pattern.getWinMessage() != null && !pattern.getWinMessage().isEmpty()) {
-            String localMsg = pattern.getWinMessage().replace("<profit>", String.valueOf((int)moneyWon));
-            // カラーコード対応など行うなら:
-            localMsg = translateColorAndNewline(localMsg, machine);
+            String localMsg = renderMessage(pattern.getCompiledWinMessage(), machine)
+                    .replace("<profit>", String.valueOf((int)moneyWon));
             player.sendMessage(localMsg);
         }
 
-        SlotConfig.PatternConfig.PatternSoundParam patternSound = pattern.getPatternSound();
         // (3) pattern.winSound
-        if (patternSound != null && !patternSound.getType().isEmpty()) {
-            double vol = (patternSound.getVolume() > 0) ? patternSound.getVolume() : defaultVolume;
-            double pitch = (patternSound.getPitch() > 0) ? patternSound.getPitch() : defaultPitch;
-            double rad = (patternSound.getRadius() != 0) ? patternSound.getRadius() : defaultRadius;
-
-            playSoundWithRadius(player, buttonBlock, patternSound.getType(), vol, pitch, rad);
-        }
+        playSound(player, buttonBlock, effects.winSound());
         // (6) broadcast設定チェック
         SlotConfig.BroadcastSettings bs = pattern.getBroadcastSettings();
         if (bs != null) {
-            broadcastWinToAll(player, machine, bs, moneyWon);
+            broadcastWinToAll(player, machine, bs, effects.broadcastSound(), moneyWon);
         }
 
         applyWinStockOperation(machineId, pattern);
 
         // pattern event
         if (pattern.getEvent() != null && !pattern.getEvent().isEmpty()) {
-            runPatternEventsIfNeeded(machine, pattern.getEvent(), player,machineId);
+            paid += runPatternEventsIfNeeded(machine, slot, pattern.getEvent(), player);
         }
         // changeVars
 
 
         // ★ パーティクル生成を追加(後述)
-        if (pattern.getParticleSettings() != null && !pattern.getParticleSettings().isEmpty()) {
-            for (SlotConfig.ParticleSetting ps : pattern.getParticleSettings()) {
-                spawnWinParticles(buttonBlock, ps, player);
-            }
+        for (ParticleEmitter pe : effects.particles()) {
+            spawnParticles(buttonBlock, pe, player);
         }
 
         String next = pattern.getNextSlotOnWin();
         if (next != null && !next.isEmpty()) {
             machine.setSlotConfigName(next);
-            MachineManager.saveAllMachines();
         }
+        return paid;
     }
 
     private void broadcastWinToAll(Player winner,
                                    MachineData machine,
                                    SlotConfig.BroadcastSettings bs,
+                                   SoundEffect bSound,
                                    double moneyWon) {
-        String rawMsg = bs.getMessage();
-        if (rawMsg == null) rawMsg = "";
-        rawMsg = rawMsg
+        String finalMsg = renderMessage(bs.getCompiledMessage(), machine)
                 .replace("<playerName>", winner.getName())
                 .replace("<profit>", String.valueOf((int)moneyWon))
                 .replace("<slotName>", machine.getSlotConfigName());
-        String finalMsg = translateColorAndNewline(rawMsg, machine);
-
-        SlotConfig.BroadcastSettings.BroadcastSoundParam bSound = bs.getBroadcastSound();
 
         for (Player p : Bukkit.getOnlinePlayers()) {
             if (!finalMsg.isEmpty()) {
                 p.sendMessage(finalMsg);
             }
-            if (bSound != null && !bSound.getType().isEmpty()) {
-                double vol = (bSound.getVolume() > 0) ? bSound.getVolume() : defaultVolume;
-                double pitch = (bSound.getPitch() > 0) ? bSound.getPitch() : defaultPitch;
-                double rad = (bSound.getRadius() != 0) ? bSound.getRadius() : defaultRadius;
-                playSoundWithRadius(winner, null, bSound.getType(), vol, pitch, rad);
-            }
+            playSound(winner, null, bSound);
         }
     }
 
-    private void runEventsIfNeeded(MachineData machine, SlotConfig config, Player player,String machineId) {
+    /**
+     * @return イベントの報酬で払い出した金額
+     */
+    private double runEventsIfNeeded(MachineData machine, CompiledSlotConfig slot, Player player) {
+        SlotConfig config = slot.getConfig();
         // イベントが無いならreturn
-        if (config.getEvent() == null || config.getEvent().isEmpty()) return;
-
-        // 変数マップ確保
-        var varMap = machine.getVariables();
-        if (varMap == null) {
-            varMap = new HashMap<>();
-            machine.setVariables(varMap);
-        }
+        if (config.getEvent() == null || config.getEvent().isEmpty()) return 0;
 
         // ボタン位置(サウンド再生用)
         World machineWorld = Bukkit.getWorld(machine.getWorldName());
         Location buttonLoc = new Location(machineWorld, machine.getX(), machine.getY(), machine.getZ());
         Block buttonBlock = buttonLoc.getBlock();
 
+        double paid = 0;
         for (SlotConfig.EventDefinition evt : config.getEvent()) {
             // conditionチェック
-            if (checkCondition(evt.getCondition(), machine)) {
+            if (checkCondition(evt, machine)) {
                 // varCalc
-                if (evt.getVarCalc() != null && !evt.getVarCalc().isEmpty()) {
-                    applyVarCalc(evt.getVarCalc(), machine);
-                }
+                applyVarCalc(evt, machine);
 
                 // eventSound
-                SlotConfig.EventDefinition.EventSoundParam es = evt.getEventSound();
-                if (es != null && es.getType() != null && !es.getType().isEmpty()) {
-                    double vol = (es.getVolume() > 0) ? es.getVolume() : defaultVolume;
-                    double pitch = (es.getPitch() > 0) ? es.getPitch() : defaultPitch;
-                    double rad = (es.getRadius() != 0) ? es.getRadius() : defaultRadius;
-                    playSoundWithRadius(player, buttonBlock, es.getType(), vol, pitch, rad);
-                }
+                playSound(player, buttonBlock, slot.getEventSound(evt));
 
                 // message
                 if (evt.getMessage() != null && !evt.getMessage().isEmpty()) {
-                    String msg = translateColorAndNewline(evt.getMessage(), machine);
+                    String msg = renderMessage(evt.getCompiledMessage(), machine);
                     player.sendMessage(msg);
                 }
 
                 // ★ 報酬(複数対応) → giveReward
                 //   例: evt.getRewards() が List<Reward>
                 for (SlotConfig.Reward rw : evt.getRewards()) {
-                    giveReward(player, machine, rw,machineId);
+                    paid += giveReward(player, machine, rw, slot);
                 }
 
                 // nextSlotOnWin
                 if (evt.getNextSlotOnWin() != null && !evt.getNextSlotOnWin().isEmpty()) {
                     machine.setSlotConfigName(evt.getNextSlotOnWin());
-                    MachineManager.saveAllMachines();
                 }
             }
         }
-        MachineManager.saveAllMachines();
+        return paid;
     }
 
-    private void runPatternEventsIfNeeded(MachineData machine, List<SlotConfig.EventDefinition> events, Player player,String machineId) {
-        if (events == null || events.isEmpty()) return;
-
-        var varMap = machine.getVariables();
-        if (varMap == null) {
-            varMap = new HashMap<>();
-            machine.setVariables(varMap);
-        }
+    /**
+     * @return イベントの報酬で払い出した金額
+     */
+    private double runPatternEventsIfNeeded(MachineData machine, CompiledSlotConfig slot, List<SlotConfig.EventDefinition> events, Player player) {
+        if (events == null || events.isEmpty()) return 0;
 
         World machineWorld = Bukkit.getWorld(machine.getWorldName());
         Location buttonLoc = new Location(machineWorld, machine.getX(), machine.getY(), machine.getZ());
         Block buttonBlock = buttonLoc.getBlock();
 
+        double paid = 0;
         for (SlotConfig.EventDefinition evt : events) {
             // condition check
-            if (checkCondition(evt.getCondition(), machine)) {
+            if (checkCondition(evt, machine)) {
                 // varCalc
-                if (evt.getVarCalc() != null && !evt.getVarCalc().isEmpty()) {
-                    applyVarCalc(evt.getVarCalc(), machine);
-                }
+                applyVarCalc(evt, machine);
 
                 // eventSound
-                SlotConfig.EventDefinition.EventSoundParam es = evt.getEventSound();
-                if (es != null && es.getType() != null && !es.getType().isEmpty()) {
-                    double vol = (es.getVolume() > 0) ? es.getVolume() : defaultVolume;
-                    double pitch = (es.getPitch() > 0) ? es.getPitch() : defaultPitch;
-                    double rad = (es.getRadius() != 0) ? es.getRadius() : defaultRadius;
-                    playSoundWithRadius(player, buttonBlock, es.getType(), vol, pitch, rad);
-                }
+                playSound(player, buttonBlock, slot.getEventSound(evt));
 
                 // message
                 if (evt.getMessage() != null && !evt.getMessage().isEmpty()) {
-                    String msg = translateColorAndNewline(evt.getMessage(), machine);
+                    String msg = renderMessage(evt.getCompiledMessage(), machine);
                     player.sendMessage(msg);
                 }
 
                 // ★ 報酬(複数) → giveReward
                 for (SlotConfig.Reward rw : evt.getRewards()) {
-                    giveReward(player, machine, rw,machineId);
+                    paid += giveReward(player, machine, rw, slot);
                 }
 
                 // nextSlotOnWin
                 if (evt.getNextSlotOnWin() != null && !evt.getNextSlotOnWin().isEmpty()) {
                     machine.setSlotConfigName(evt.getNextSlotOnWin());
-                    MachineManager.saveAllMachines();
                 }
             }
         }
-        MachineManager.saveAllMachines();
+        return paid;
     }
 
 
-    private boolean checkCondition(String cond, MachineManager.MachineData machine) {
-        if (cond == null || cond.isEmpty()) return false;
-        // "1" → 常に true
-        if (cond.equals("1")) return true;
+    private boolean checkCondition(SlotConfig.EventDefinition evt, MachineManager.MachineData machine) {
+        // 条件未設定なら不成立 ("1" は定数として常に true)
+        CompiledExpression cond = evt.getCompiledCondition();
+        if (cond == null) return false;
 
-        // 1) 変数置換
-        Map<String, Double> varMap = machine.getVariables();
-        if (varMap == null) varMap = new HashMap<>();
-
-        String replaced = cond;
-        for (var entry : varMap.entrySet()) {
-            String varName = entry.getKey();
-            double varVal = entry.getValue();
-            // \b<varName>\b を数値文字列に置換
-            replaced = replaced.replaceAll("\\b" + varName + "\\b", String.valueOf(varVal));
-        }
-
-        // 2) stock 置換
-        replaced = replaced.replaceAll("\\bstock\\b", String.valueOf(machine.getStock()));
-        // 3) 数式(＋論理演算)として eval
-        try {
-            double val = ExpressionParser.eval(replaced);
-            // 評価結果が 0 なら false, それ以外は true
-            return (Math.abs(val) > 1.0e-7);
-        } catch (Exception e) {
-            plugin.getLogger().warning("[checkCondition] eval error: " + e.getMessage());
-            return false;
-        }
+        // 評価結果が 0 なら false, それ以外は true
+        return (Math.abs(evalExpression(cond, machine)) > 1.0e-7);
     }
 
 
-    private void applyVarCalc(String expr, MachineManager.MachineData machine) {
-        // exprに "varName=式" の形が必須
-        if (expr == null || !expr.contains("=")) {
-            return;
-        }
-        String[] sp = expr.split("=");
-        if (sp.length != 2) {
-            return;
-        }
-        String varName = sp[0].trim();  // 左辺
-        String right = sp[1].trim();  // 右辺
-
-        Map<String, Double> varMap = machine.getVariables();
-        if (varMap == null) {
-            varMap = new HashMap<>();
-            machine.setVariables(varMap);
-        }
-
-        // 右辺に含まれる 変数名/stock を置換
-        String replaced = right;
-        for (var e : varMap.entrySet()) {
-            String k = e.getKey();
-            double v = e.getValue();
-            replaced = replaced.replaceAll("\\b" + k + "\\b", String.valueOf(v));
-        }
-        // stock の置換
-        replaced = replaced.replaceAll("\\bstock\\b", String.valueOf(machine.getStock()));
-
-        // 式をeval
-        double newVal;
-        try {
-            newVal = ExpressionParser.eval(replaced);
-        } catch (Exception ex) {
-            plugin.getLogger().warning("[applyVarCalc] error: " + ex.getMessage());
+    private void applyVarCalc(SlotConfig.EventDefinition evt, MachineManager.MachineData machine) {
+        // varCalc "varName=式" がコンパイル済みの場合のみ
+        int target = evt.getVarCalcTarget();  // 左辺の変数ID
+        if (target < 0) {
             return;
         }
-
-        // 左辺が "stock" なら machine.setStock((int)newVal)
-        if (varName.equals("stock")) {
-            // stock を整数扱いする例
-            int s = (int) newVal;
-            machine.setStock(s);
-        } else {
-            // 通常変数
-            if (!varMap.containsKey(varName)) {
-                varMap.put(varName, 0.0);
-            }
-            varMap.put(varName, newVal);
-        }
+        // 左辺が "stock" なら整数に切り捨ててストックへ、それ以外は通常変数 (評価から書き込みまで台のロックの中で)
+        machine.modify(m -> m.setVariable(target, evalExpression(evt.getCompiledVarCalc(), m)));
     }
 
 
-    /**
-     * 文字列内の変数名を varMap の値に置き換える
-     */
-    private String replaceVariables(String expr, @NotNull Map<String, Double> varMap) {
-        String replaced = expr;
-        for (var e : varMap.entrySet()) {
-            // \bvarName\b => e.getValue()
-            replaced = replaced.replaceAll("\\b" + e.getKey() + "\\b", e.getValue().toString());
-        }
-        // "stock" はここで置換しない( parseRewardValue など別)
-        return replaced;
-    }
-
     //========================
     // pattern抽選
     //========================
     private SlotConfig.PatternConfig drawPatternOrMiss(SlotConfig config, MachineData machine) {
-        var list = config.getPatterns();
-        if (list == null || list.isEmpty()) return null;
-
-        double sum = 0;
-        for (var pc : list) {
-            double prob = parseDoubleExpression(pc.getProbability(), machine);
-            if (prob < 0 || prob > 100) {
-                throw new RuntimeException("確率範囲外:" + prob);
-            }
-            sum += prob;
-        }
-        if (sum > 100) {
-            throw new RuntimeException("合計>100");
-        }
-
-        // 修正: 0〜100 の範囲で乱数を取り、sum未満ならパターン、それ以外はハズレ
-        double r = ThreadLocalRandom.current().nextDouble(100.0);
-
-        double cum = 0;
-        for (var pc : list) {
-            double p = parseDoubleExpression(pc.getProbability(), machine);
-            cum += p;
-            if (r < cum) {
-                return pc;
-            }
-        }
-        // ここまでマッチしなければハズレ
-        return null;
+        // 確率の範囲・合計チェックはロード時に済んでいる (0〜100 の範囲で、合計未満ならパターン、それ以外はハズレ)
+        PatternSampler sampler = config.getPatternSampler();
+        if (sampler == null) return null;
+        return sampler.draw(machine);
     }
 
 
@@ -1021,155 +771,88 @@ public class SlotMachineListener implements Listener {
     private void applyLoseStockOperation(String machineId, SlotConfig config) {
         var md = MachineManager.getMachine(machineId);
         if (md == null) return;
-        int cur = md.getStock();
-
-        String op = config.getLoseStockOperation();
-        if (op == null) op = "ADD";
-        int val = config.getLoseStockValue();
-        switch (op.toUpperCase()) {
-            case "ADD" -> cur += val;
-            case "SUB" -> cur -= val;
-            case "SET" -> cur = val;
-        }
-        md.setStock(cur);
-        MachineManager.saveAllMachines();
+        applyStockOperation(md, config.getLoseStockOperation(), config.getLoseStockValue());
     }
 
     private void applyWinStockOperation(String machineId, SlotConfig.PatternConfig pc) {
         var md = MachineManager.getMachine(machineId);
         if (md == null) return;
-        int cur = md.getStock();
-
-        String op = pc.getStockOperation();
-        if (op == null) op = "ADD";
-        int val = pc.getStockValue();
-        switch (op.toUpperCase()) {
-            case "ADD" -> cur += val;
-            case "SUB" -> cur -= val;
-            case "SET" -> cur = val;
-        }
-        md.setStock(cur);
-        MachineManager.saveAllMachines();
+        applyStockOperation(md, pc.getStockOperation(), pc.getStockValue());
+    }
+
+    private void applyStockOperation(MachineData md, String operation, int val) {
+        String op = (operation == null) ? "ADD" : operation;
+        // 読んでから書くまでを台のロックの中で
+        md.modify(m -> {
+            int cur = m.getStock();
+            switch (op.toUpperCase()) {
+                case "ADD" -> cur += val;
+                case "SUB" -> cur -= val;
+                case "SET" -> cur = val;
+            }
+            m.setStock(cur);
+        });
     }
 
     //========================
     // 報酬
     //========================
-    private void giveReward(Player player, MachineData machine, Reward rw,String machineID) {
-        if (rw == null) return;
+    /**
+     * @return 払い出した金額 (お金以外の報酬は 0)
+     */
+    private double giveReward(Player player, MachineData machine, Reward rw, CompiledSlotConfig slot) {
+        if (rw == null) return 0;
 
         switch (rw.getType().toLowerCase()) {
             case "money" -> {
-                double val = parseRewardValue(rw.getValue(), machine);
+                double val = evalExpression(rw.getCompiledValue(), machine);
                 if (plugin.getVaultIntegration() != null && val > 0) {
                     plugin.getVaultIntegration().deposit(player, val);
                 }
                 if (val > 0) {
-                    SlotMachinePlugin.addProfit(player.getUniqueId(),machineID, val);
+                    return val;
                 }
             }
             case "item" -> {
-                // ★ 変更: "value" が「変数名」か「Material名」かを判定
-                String rawVal = rw.getValue();
-                double qDouble = parseRewardValue(rw.getQuantity(), machine);
+                double qDouble = evalExpression(rw.getCompiledQuantity(), machine);
                 if (qDouble < 1) qDouble = 1;
                 int q = (int) qDouble;
-                // 1) itemConfigs から探す
-                ItemStack stack = plugin.getItemConfigManager().getItemByKey(rawVal);
-                if (stack != null) {
-                    ItemStack copy = stack.clone();
-                    copy.setAmount(q);
-                    player.getInventory().addItem(copy);
-                } else {
-                    // fallback: Material として
-                    Material mat = Material.matchMaterial(rawVal);
-                    if (mat == null) mat = Material.STONE;
-                    player.getInventory().addItem(new ItemStack(mat, q));
-                }
+                // itemConfigs の変数名 or Material名 (ロード時に解決済み)
+                ItemStack copy = slot.getRewardItem(rw).clone();
+                copy.setAmount(q);
+                player.getInventory().addItem(copy);
             }
         }
+        return 0;
     }
 
 
-    private double parseRewardValue(String expr, MachineData machine) {
-        if (machine == null) return 0;
-        // stock置換
-        expr = expr.replace("stock", String.valueOf(machine.getStock()));
-
-        // 変数置換
-        // 変数置換
-        Map<String, Double> varMap = machine.getVariables();
-        if (varMap == null) varMap = new HashMap<>();
-
-        for (var e : varMap.entrySet()) {
-            expr = expr.replaceAll("\\b" + e.getKey() + "\\b", e.getValue().toString());
-        }
-
-        return ExpressionParser.eval(expr);
-    }
-
     //========================
     // ハズレ用
     //========================
-    private List<String> pickNonWinning3(List<String> pool, SlotConfig config) {
-        for (int tries = 0; tries < 500; tries++) {
-            List<String> candidate = new ArrayList<>();
-            for (int i = 0; i < 3; i++) {
-                candidate.add(pickRandom(pool));
-            }
-            if (!matchesAnyPattern(candidate, config.getPatterns())) {
-                return candidate;
-            }
-        }
-        return Arrays.asList("STONE", "STONE", "STONE");
-    }
-
-    private boolean matchesAnyPattern(List<String> items, List<SlotConfig.PatternConfig> patterns) {
-        if (patterns == null) return false;
-        for (var pc : patterns) {
-            List<String> p = pc.getItems();
-            if (p.size() == 3) {
-                if (p.get(0).equalsIgnoreCase(items.get(0))
-                        && p.get(1).equalsIgnoreCase(items.get(1))
-                        && p.get(2).equalsIgnoreCase(items.get(2))) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    private List<String> pickNonWinning(SlotConfig config) {
+        // どのパターンにも一致しない出目を一様に選ぶ (ロード時に作った順位表から直接)
+        return config.getLosingTupleSampler().draw();
     }
 
     private SlotConfig.PatternConfig checkWhichPattern(SlotConfig config, List<String> items) {
-        if (config.getPatterns() == null) return null;
-        for (var pc : config.getPatterns()) {
-            List<String> p = pc.getItems();
-            if (p.size() == 3) {
-                if (p.get(0).equalsIgnoreCase(items.get(0))
-                        && p.get(1).equalsIgnoreCase(items.get(1))
-                        && p.get(2).equalsIgnoreCase(items.get(2))) {
-                    return pc;
-                }
-            }
-        }
-        return null;
+        return config.getPatternIndex().find(items);
     }
 
     //========================
     // Utility
     //========================
-    private List<String> collectAllItemsFromPatterns(SlotConfig config) {
-        List<String> result = new ArrayList<>();
-        if (config.getPatterns() != null) {
-            for (var pc : config.getPatterns()) {
-                result.addAll(pc.getItems());
-            }
-        }
-        if (result.isEmpty()) result.add("STONE");
-        return result;
-    }
-
-    private String pickRandom(List<String> list) {
-        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+    /**
+     * 停止時の表示アイテム (ロード時に解決済み、見つからなければその場で作る)
+     */
+    private ItemStack reelItem(CompiledSlotConfig slot, String itemName) {
+        ItemStack stack = slot.getReelItem(itemName);
+        if (stack != null) return stack;
+        ItemStack custom = plugin.getItemConfigManager().getItemByKey(itemName);
+        Material mat = Material.matchMaterial(itemName);
+        stack = (custom != null) ? custom.clone() : new ItemStack((mat != null) ? mat : Material.STONE);
+        setSlotMachineItemKey(stack, itemName);
+        return stack;
     }
 
     private void endSpin(UUID uuid, String machineId) {
@@ -1199,61 +882,13 @@ public class SlotMachineListener implements Listener {
         return null;
     }
 
-    private List<ItemFrame> findFrames(Block buttonBlock, List<BlockPos> offsets) {
-        List<ItemFrame> result = new ArrayList<>();
-
-        // ボタンのBlockDataをチェック
-        BlockData bd = buttonBlock.getBlockData();
-        if (!(bd instanceof Switch sw)) {
-            return result; // スイッチ(ボタン)でない
-        }
-
-        // ボタンが向いている方向 (壁なら NORTH/EAST/SOUTH/WEST、天井=DOWN、床=UP)
-        BlockFace facing = sw.getFacing();
-
-        // offsets をもとに「探すべきブロック位置」それぞれで近接するアイテムフレームを検索
-        for (BlockPos off : offsets) {
-            Block targetBlock = buttonBlock.getRelative(off.dx, off.dy, off.dz);
-
-            // targetBlock の近辺(少し余裕を持たせる)にあるエンティティの中で ItemFrame を抽出
-            targetBlock.getWorld().getNearbyEntities(targetBlock.getBoundingBox().expand(0.1),
-                    e -> e instanceof ItemFrame).forEach(e -> {
-
-                ItemFrame frame = (ItemFrame) e;
-                // frame.getFacing() が requiredFrameFacing と一致する (= 同じ面)
-                // → 採用
-                if (frame.getFacing() == facing) {
-                    result.add(frame);
-                }
-            });
-        }
-
-        return result;
-    }
-
-
-    private List<BlockPos> findOffsetDefinition(Block buttonBlock) {
-        var bd = buttonBlock.getBlockData();
-        if (!(bd instanceof Switch sw)) return Collections.emptyList();
-        FaceAttachable.AttachedFace face = sw.getAttachedFace();
-        var facing = sw.getFacing();
-        String key = face + "_" + facing;
-        var offDef = OFFSET_MAP.get(key);
-        if (offDef == null) return Collections.emptyList();
-        return offDef.reelOffsets;
-    }
-
     /**
-     * 変数式を評価 (double)
-     * 例: "var1+20", "30", "var2*2.5"
+     * コンパイル済みの式をマシンの変数で評価 (double)
+     * 例: "var1+20", "30", "stock*2.5"
      */
-    private double parseDoubleExpression(Object maybeExpr, MachineData machine) {
-        // config定義が数値 or 文字列かもしれない → unify as string
-        if (maybeExpr == null) return 0;
-        String str = String.valueOf(maybeExpr);
-        // 変数置換
-        String replaced = replaceVariables(str, machine.getVariables());
-        return ExpressionParser.eval(replaced);
+    private double evalExpression(CompiledExpression expr, MachineData machine) {
+        if (expr == null || machine == null) return 0;
+        return expr.eval(machine);
     }
 
     private void setSlotMachineItemKey(ItemStack stack, String varName) {
@@ -1261,8 +896,7 @@ public class SlotMachineListener implements Listener {
         var meta = stack.getItemMeta();
         if (meta == null) return;
         var pdc = meta.getPersistentDataContainer();
-        NamespacedKey key = new NamespacedKey(plugin, "SlotMachineItemKey");
-        pdc.set(key, PersistentDataType.STRING, varName);
+        pdc.set(plugin.getSlotManager().getItemKey(), PersistentDataType.STRING, varName);
         stack.setItemMeta(meta);
     }
 
@@ -1272,37 +906,22 @@ public class SlotMachineListener implements Listener {
         var meta = stack.getItemMeta();
         if (meta == null) return null;
         var pdc = meta.getPersistentDataContainer();
-        NamespacedKey key = new NamespacedKey(plugin, "SlotMachineItemKey");
-        return pdc.get(key, PersistentDataType.STRING);
+        return pdc.get(plugin.getSlotManager().getItemKey(), PersistentDataType.STRING);
     }
 
-    private void playSoundWithRadius(Player player, Block buttonBlock,
-                                     String soundKey,
-                                     double volume,
-                                     double pitch,
-                                     double radius) {
-        // ボタンブロックのワールド/座標を使う
-        if (soundKey == null || soundKey.isEmpty()) return;
-        Sound snd;
-        try {
-            String sname = soundKey
-                    .replace("minecraft:", "")
-                    .toUpperCase()
-                    .replace(".", "_");
-            snd = Sound.valueOf(sname);
-        } catch (Exception ex) {
-            plugin.getLogger().warning("[Slot] Unknown sound:" + soundKey);
-            return;
-        }
-
+    private void playSound(Player player, Block buttonBlock, SoundEffect se) {
+        // ボタンブロックのワールド/座標を使う (サウンドはロード時に解決済み、null なら鳴らさない)
+        if (se == null) return;
+        Sound snd = se.sound();
+        double radius = se.radius();
 
         if (radius == -2 || buttonBlock == null) {
             // 全員
             for (Player p : player.getWorld().getPlayers()) {
-                p.playSound(p.getLocation(), snd, (float) volume, (float) pitch);
+                p.playSound(p.getLocation(), snd, se.volume(), se.pitch());
             }
         } else if (radius == -1) {
-            player.playSound(player.getLocation(), snd, (float) volume, (float) pitch);
+            player.playSound(player.getLocation(), snd, se.volume(), se.pitch());
         } else {
             // 半径内プレイヤー
             for (Player p : buttonBlock.getWorld().getPlayers()) {
@@ -1310,8 +929,8 @@ public class SlotMachineListener implements Listener {
                 Location center = buttonBlock.getLocation().add(0.5, 0.5, 0.5);
                 // プレイヤーとの距離
                 double d = p.getLocation().distance(center);
-                float vol = (float) (1 - (d / radius)) * (float) volume;
-                p.playSound(p.getLocation(), snd, vol, (float) pitch);
+                float vol = (float) (1 - (d / radius)) * se.volume();
+                p.playSound(p.getLocation(), snd, vol, se.pitch());
 
             }
         }
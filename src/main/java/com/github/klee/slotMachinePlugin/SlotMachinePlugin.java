@@ -3,28 +3,26 @@ package com.github.klee.slotMachinePlugin;
 import com.github.klee.slotMachinePlugin.commands.*;
 import com.github.klee.slotMachinePlugin.utils.VaultIntegration;
 import org.bukkit.Bukkit;
-import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.time.LocalTime;
 import java.util.*;
-import java.util.logging.Level;
 
 /**
  * メインプラグインクラス
  */
 public class SlotMachinePlugin extends JavaPlugin {
     private static SlotMachinePlugin instance;
-    private static final Map<UUID, Map<String, List<Double>>> ephemeralProfitMap = new HashMap<>();
     private ItemConfigManager itemConfigManager;
     private SlotManager slotManager;
     private VaultIntegration vaultIntegration;
     private SlotDatabase slotDatabase;
+    private SpinRecordWriter spinRecordWriter;
+    private SlotRetention slotRetention;
+    private LegacyRecordMigrator legacyRecordMigrator;
+    private SpinAnimator spinAnimator;
+    private final FrameCache frameCache = new FrameCache();
+    private final MachineLocationIndex machineLocationIndex = new MachineLocationIndex();
     public static SlotMachinePlugin getInstance() {
         return instance;
     }
@@ -33,35 +31,41 @@ public class SlotMachinePlugin extends JavaPlugin {
     public void onEnable() {
         instance = this;
 
-        // DB init (CREATE TABLE IF NOT EXISTS) だけ
+        setupVault();
+        createDefaultFolders();
+
+        // config.yml (回転アニメーションの負荷制限など)
+        saveDefaultConfig();
+
+        // DB init (保存先は config.yml の storage。スキーマを最新の版にするだけ)
         slotDatabase = new SlotDatabase(this);
         slotDatabase.init();
 
+        spinAnimator = new SpinAnimator(this);
+        spinAnimator.loadSettings(getConfig());
 
-        // 6:00,18:00 にセーブ
-        Bukkit.getScheduler().runTaskTimer(this, () -> {
-            LocalTime now = LocalTime.now();
-            if (now.getHour() == 6 && now.getMinute() == 0) {
-                saveSlotDataScheduled();
-            } else if (now.getHour() == 18 && now.getMinute() == 0) {
-                saveSlotDataScheduled();
-            }
-        }, 20L * 60, 20L * 60);
-
-        setupVault();
-        createDefaultFolders();
+        // 回転ごとの損益は別スレッドで数秒ごとに DB へ書き込む
+        spinRecordWriter = new SpinRecordWriter(slotDatabase, getDataFolder(), getLogger(), getConfig());
+        spinRecordWriter.start(getConfig());
+        // 保存期間を過ぎた記録の削除 (非同期で定期的に)
+        slotRetention = new SlotRetention(this, slotDatabase);
+        slotRetention.start(getConfig());
+        // 文字列のまま保存された以前の記録があれば、番号の形式に少しずつ移す
+        legacyRecordMigrator = new LegacyRecordMigrator(this, slotDatabase);
+        legacyRecordMigrator.start();
 
         // MachineManager
-        MachineManager.init(getDataFolder());
+        MachineManager.init(getDataFolder(), getLogger());
         MachineManager.loadAllMachines();
+        MachineManager.startWriteBehind(getConfig());
 
-        // SlotManager
-        slotManager = new SlotManager(this);
-        slotManager.loadAllSlotConfigs();
+        // ItemConfig → SlotManager (スロット設定のアイテム解決に itemConfigs を使う)
         itemConfigManager = new ItemConfigManager(this);
         itemConfigManager.loadAllItemConfigs();
-        // ボタンにメタデータ再付与
-        rebindAllMachineMetadata();
+        slotManager = new SlotManager(this, itemConfigManager);
+        slotManager.loadAllSlotConfigs();
+        // ボタン座標 → 台ID の索引 (チャンクは読み込まず、読み込み済みのチャンクの台だけ有効にする)
+        machineLocationIndex.rebuild(MachineManager.getAllMachines());
 
         // リスナー
         getServer().getPluginManager().registerEvents(new SlotMachineListener(this), this);
@@ -87,8 +91,16 @@ public class SlotMachinePlugin extends JavaPlugin {
     @Override
     public void onDisable() {
         shuttingDown = true;
-        MachineManager.saveAllMachines();
-        saveSlotDataScheduled();
+        MachineManager.shutdown();
+        if (slotRetention != null) {
+            slotRetention.stop();
+        }
+        if (legacyRecordMigrator != null) {
+            legacyRecordMigrator.stop();
+        }
+        if (spinRecordWriter != null) {
+            spinRecordWriter.shutdown();
+        }
         if (slotDatabase != null) {
             slotDatabase.close();
         }
@@ -114,6 +126,18 @@ public class SlotMachinePlugin extends JavaPlugin {
         return itemConfigManager;
     }
 
+    public SpinAnimator getSpinAnimator() {
+        return spinAnimator;
+    }
+
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    public MachineLocationIndex getMachineLocationIndex() {
+        return machineLocationIndex;
+    }
+
     private void createDefaultFolders() {
         File folder = getDataFolder();
         if (!folder.exists()) folder.mkdirs();
@@ -122,101 +146,28 @@ public class SlotMachinePlugin extends JavaPlugin {
     }
 
     /**
-     * マシン情報を読み込み→ボタン再bind
+     * 1回転分の損益を記録する (回転の終了時に1回)
+     *
+     * @param cost    回転のコスト
+     * @param payout  回転中に払い出した金額の合計
+     * @param pattern 当たったパターンの番号 (ハズレは {@link SpinRecordBuffer#NO_PATTERN})
      */
-    private void rebindAllMachineMetadata() {
-        for (Map.Entry<String, MachineManager.MachineData> e : MachineManager.getAllMachines().entrySet()) {
-            String machineId = e.getKey();
-            MachineManager.MachineData md = e.getValue();
-
-            World w = Bukkit.getWorld(md.getWorldName());
-            if (w == null) {
-                getLogger().warning("ワールドが無効: " + md.getWorldName());
-                continue;
-            }
-            Block b = w.getBlockAt(md.getX(), md.getY(), md.getZ());
-            if (!b.getType().name().endsWith("_BUTTON")) {
-                continue;
-            }
-            b.setMetadata("MachineId", new FixedMetadataValue(this, machineId));
-        }
-    }
-
-    public static void addProfit(UUID playerUuid, String slotId, double profit) {
-        if (shuttingDown) {
+    public static void recordSpin(UUID playerUuid, String slotId, double cost, double payout, int pattern) {
+        if (shuttingDown || instance == null || instance.spinRecordWriter == null) {
             return;
         }
-        // 例: profit= -500 (コスト), +1000 (報酬) etc.
-        ephemeralProfitMap
-                .computeIfAbsent(playerUuid, k -> new HashMap<>())
-                .computeIfAbsent(slotId, k -> new ArrayList<>())
-                .add(profit);
+        instance.spinRecordWriter.submit(playerUuid, slotId, cost, payout, pattern);
     }
 
-    /**
-     * 定期的 or サーバ終了時に呼ばれ、
-     * ephemeralProfitMap にある全レコードをDBへ書き込み、
-     * メモリをクリアする
-     */
-    public void saveSlotDataScheduled() {
-        long timestamp = System.currentTimeMillis();
-
-        // スナップショット
-        Map<UUID, Map<String, List<Double>>> snapshot;
-        synchronized (ephemeralProfitMap) {
-            snapshot = new HashMap<>();
-            for (var e : ephemeralProfitMap.entrySet()) {
-                UUID user = e.getKey();
-                Map<String, List<Double>> slotMap = e.getValue();
-
-                Map<String, List<Double>> slotMapCopy = new HashMap<>();
-                for (var sEntry : slotMap.entrySet()) {
-                    slotMapCopy.put(sEntry.getKey(), new ArrayList<>(sEntry.getValue()));
-                }
-                snapshot.put(user, slotMapCopy);
-            }
-            ephemeralProfitMap.clear();
-        }
-
-        // ★ 1) まとめて Connection を取得
-        try (Connection conn = slotDatabase.getConnection()) {
-            if(conn==null || conn.isClosed()){
-                return;
-            }
-
-            // ★ 2) ここで PreparedStatement を先に作っておく (バインドだけ変える)
-            String sql = "INSERT INTO slot_records (uuid, slot_id, timestamp, profit) VALUES (?,?,?,?)";
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-
-                // ★ 3) スナップショットをループし、同じpsを使って複数INSERT
-                for (var userEntry : snapshot.entrySet()) {
-                    UUID user = userEntry.getKey();
-                    Map<String, List<Double>> slotMap = userEntry.getValue();
-
-                    for (var slotEntry : slotMap.entrySet()) {
-                        String slotId = slotEntry.getKey();
-                        List<Double> profits = slotEntry.getValue();
-
-                        for (double profit : profits) {
-                            ps.setString(1, user.toString());
-                            ps.setString(2, slotId);
-                            ps.setLong(3, timestamp);
-                            ps.setDouble(4, profit);
-
-                            ps.addBatch();
-                            // or batch: ps.addBatch();  → まとめて ps.executeBatch();
-                        }
-                        ps.executeBatch();
-                    }
-                }
-            }
-
-        } catch (Exception ex) {
-            getLogger().log(Level.SEVERE, "[SlotMachinePlugin] DBへの書き込み失敗", ex);
-        }
-
-    }
     public SlotDatabase getSlotDatabase() {
         return slotDatabase;
     }
+
+    public SpinRecordWriter getSpinRecordWriter() {
+        return spinRecordWriter;
+    }
+
+    public SlotRetention getSlotRetention() {
+        return slotRetention;
+    }
 }
@@ -2,6 +2,7 @@ package com.github.klee.slotMachinePlugin;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.bukkit.NamespacedKey;
 import org.bukkit.plugin.Plugin;
 
 import java.io.File;
@@ -15,15 +16,24 @@ import java.util.Map;
 public class SlotManager {
 
     private final Plugin plugin;
+    private final ItemConfigManager itemConfigManager;
+    private final NamespacedKey itemKey;
     private final Map<String, SlotConfig> cacheMap = new HashMap<>();
+    private final Map<String, CompiledSlotConfig> compiledMap = new HashMap<>();
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-    public SlotManager(Plugin plugin) {
+    /**
+     * @param itemConfigManager 読み込み済みの itemConfigs (リールの表示アイテムの解決に使う)
+     */
+    public SlotManager(Plugin plugin, ItemConfigManager itemConfigManager) {
         this.plugin = plugin;
+        this.itemConfigManager = itemConfigManager;
+        this.itemKey = new NamespacedKey(plugin, "SlotMachineItemKey");
     }
 
     public void loadAllSlotConfigs() {
         cacheMap.clear();
+        compiledMap.clear();
 
         File folder = new File(plugin.getDataFolder(), "slotConfigs");
         if (!folder.exists()) {
@@ -37,6 +47,28 @@ public class SlotManager {
 
         // ディレクトリ再帰
         loadRecursively(folder, folder);
+
+        // メッセージは全設定の変数が登録されてからコンパイル
+        for (SlotConfig cfg : cacheMap.values()) {
+            cfg.compileMessages();
+        }
+
+        // 設定ごとの変数スキーマを差し替え、台の変数を今の設定の並びに移す
+        Map<String, VariableSchema> schemas = new HashMap<>();
+        for (var e : cacheMap.entrySet()) {
+            schemas.put(e.getKey(), e.getValue().getSchema());
+        }
+        VariableSchema.publish(schemas);
+        MachineManager.bindSchemas();
+
+        // Material / Sound / Particle などを解決 (不正な名前はここで報告)
+        for (var e : cacheMap.entrySet()) {
+            CompiledSlotConfig compiled = new CompiledSlotConfig(e.getValue(), itemConfigManager, itemKey);
+            for (String w : compiled.getWarnings()) {
+                plugin.getLogger().warning("[SlotManager] " + e.getKey() + ": " + w);
+            }
+            compiledMap.put(e.getKey(), compiled);
+        }
     }
 
     private void loadRecursively(File root, File current) {
@@ -63,11 +95,19 @@ public class SlotManager {
                         // 3) Gson パース
                         SlotConfig cfg = gson.fromJson(content, SlotConfig.class);
                         if (cfg != null) {
+                            // 4) 式をコンパイル (回転時には再パースしない)
+                            cfg.compileExpressions();
+                            if (cfg.getLosingTupleSampler().getFiller() != null) {
+                                plugin.getLogger().warning("全ての出目が当たりになるため、ハズレ用の絵柄 "
+                                        + cfg.getLosingTupleSampler().getFiller() + " を追加しました: " + f.getName());
+                            }
                             cacheMap.put(relativePath, cfg);
                         }
                     } catch (IOException e) {
                         plugin.getLogger().warning("設定ファイル読み込みエラー: " + f.getName());
                         e.printStackTrace();
+                    } catch (IllegalArgumentException ex) {
+                        plugin.getLogger().warning("式のエラー: " + f.getName() + " : " + ex.getMessage());
                     } catch (Exception ex) {
                         plugin.getLogger().warning("JSONパースエラー: " + f.getName() + " : " + ex.getMessage());
                     }
@@ -109,4 +149,18 @@ public class SlotManager {
     public SlotConfig getSlotConfig(String relativePath) {
         return cacheMap.get(relativePath);
     }
+
+    /**
+     * 回転処理用に解決済みの設定を相対パスで検索
+     */
+    public CompiledSlotConfig getCompiledSlotConfig(String relativePath) {
+        return compiledMap.get(relativePath);
+    }
+
+    /**
+     * リールの表示アイテムに付けるキー
+     */
+    public NamespacedKey getItemKey() {
+        return itemKey;
+    }
 }
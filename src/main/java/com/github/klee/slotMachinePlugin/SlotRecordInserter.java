@@ -0,0 +1,119 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * slot_records への複数行 INSERT。
+ * <p>
+ * ・行を列ごとの配列に溜め、{@link StorageDialect#insertRowsPerStatement} 行ずつ1つの INSERT ... VALUES (...),(...) にしてバッチで送る
+ * ・端数の行は1行の INSERT のバッチで送る (行数ごとに違う SQL をキャッシュに増やさない)
+ * ・パターンが無い行 ({@link SpinRecordBuffer#NO_PATTERN}) の pattern_index は NULL
+ * {@link #execute} は SlotDatabase のロックを持った状態 (withConnection の中) で呼ぶ。1つのスレッドだけが使う。
+ */
+final class SlotRecordInserter {
+
+    private static final String INSERT_SQL = "INSERT INTO slot_records (player_id, machine_id, timestamp, profit, pattern_index) VALUES ";
+    private static final String ROW = "(?,?,?,?,?)";
+    // 1行のパラメータ数
+    static final int COLUMNS = 5;
+
+    private final SlotDatabase database;
+    private int[] player = new int[256];
+    private int[] machine = new int[256];
+    private long[] time = new long[256];
+    private double[] profit = new double[256];
+    private int[] pattern = new int[256];
+    private int size;
+
+    // 複数行の INSERT 文 (行数が変わったら作り直す)
+    private String multiSql;
+    private int multiRows;
+
+    SlotRecordInserter(SlotDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * パターンの無い行 (以前の記録の移行など)
+     */
+    void add(int playerId, int machineId, long timestamp, double value) {
+        add(playerId, machineId, timestamp, value, SpinRecordBuffer.NO_PATTERN);
+    }
+
+    void add(int playerId, int machineId, long timestamp, double value, int patternIndex) {
+        if (size == time.length) {
+            int n = size * 2;
+            player = Arrays.copyOf(player, n);
+            machine = Arrays.copyOf(machine, n);
+            time = Arrays.copyOf(time, n);
+            profit = Arrays.copyOf(profit, n);
+            pattern = Arrays.copyOf(pattern, n);
+        }
+        player[size] = playerId;
+        machine[size] = machineId;
+        time[size] = timestamp;
+        profit[size] = value;
+        pattern[size] = patternIndex;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * 溜めた行を書き込んで空にする
+     */
+    void execute() throws SQLException {
+        int rowsPer = Math.max(1, database.getDialect().insertRowsPerStatement());
+        int full = size / rowsPer * rowsPer;
+        if (full > 0) {
+            PreparedStatement ps = database.prepare(multiSql(rowsPer));
+            for (int i = 0; i < full; i++) {
+                bind(ps, (i % rowsPer) * COLUMNS, i);
+                if ((i + 1) % rowsPer == 0) {
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        if (full < size) {
+            PreparedStatement ps = database.prepare(INSERT_SQL + ROW);
+            for (int i = full; i < size; i++) {
+                bind(ps, 0, i);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        size = 0;
+    }
+
+    private void bind(PreparedStatement ps, int offset, int i) throws SQLException {
+        ps.setInt(offset + 1, player[i]);
+        ps.setInt(offset + 2, machine[i]);
+        ps.setLong(offset + 3, time[i]);
+        ps.setDouble(offset + 4, profit[i]);
+        if (pattern[i] == SpinRecordBuffer.NO_PATTERN) {
+            ps.setNull(offset + 5, Types.INTEGER);
+        } else {
+            ps.setInt(offset + 5, pattern[i]);
+        }
+    }
+
+    private String multiSql(int rows) {
+        if (multiSql == null || multiRows != rows) {
+            StringBuilder sb = new StringBuilder(INSERT_SQL.length() + rows * (ROW.length() + 1));
+            sb.append(INSERT_SQL);
+            for (int i = 0; i < rows; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(ROW);
+            }
+            multiSql = sb.toString();
+            multiRows = rows;
+        }
+        return multiSql;
+    }
+}
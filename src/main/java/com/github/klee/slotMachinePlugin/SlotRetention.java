@@ -0,0 +1,210 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * slot_records の保存期間の管理 (非同期で定期的に実行)。
+ * <p>
+ * ・保存期間より古い回転ごとの行を、少しずつ (1トランザクション数千行) 消す
+ *   (1時間ごとの集計 slot_hourly / user_hourly には書き込み時に足し込み済みなので、集計は変わらない)
+ * ・消した分の空きページは PRAGMA incremental_vacuum で少しずつファイルから返す (SQLite のとき)
+ * ・一度に長くロックを持たないよう、1回ごとに間を空けて書き込みスレッドに譲る
+ * ・auto_vacuum が INCREMENTAL でない以前の DB はファイルを縮めない (空きページは SQLite が使い回すので、それ以上は大きくならない)。
+ *   VACUUM での切り替えは書き込みを長く止めるため、records.convertToIncrementalVacuum を true にしたときだけ一度行う
+ */
+public class SlotRetention implements Runnable {
+
+    // 1回の削除・vacuum の後に空ける時間 (ms)
+    private static final long PAUSE_MS = 50L;
+    private static final long DAY_MS = 24L * SlotDatabase.HOUR_MS;
+    // PRAGMA auto_vacuum の値
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Plugin plugin;
+    private final SlotDatabase database;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile double retentionDays;
+    private volatile int batchSize;
+    private volatile int vacuumPagesPerSlice;
+    private volatile boolean convertToIncremental;
+    private volatile boolean stopped;
+    // 切り替えない旨のお知らせ (起動中に一度だけ)
+    private volatile boolean notifiedNonIncremental;
+    private BukkitTask task;
+
+    public SlotRetention(Plugin plugin, SlotDatabase database) {
+        this.plugin = plugin;
+        this.database = database;
+    }
+
+    /**
+     * 設定を読み、定期実行を (再) 開始する。保存期間が 0 以下なら何もしない
+     */
+    public synchronized void start(ConfigurationSection config) {
+        retentionDays = config.getDouble("records.retentionDays", 90.0);
+        batchSize = Math.max(100, config.getInt("records.retentionBatchSize", 5000));
+        vacuumPagesPerSlice = Math.max(10, config.getInt("records.vacuumPagesPerSlice", 1000));
+        convertToIncremental = config.getBoolean("records.convertToIncrementalVacuum", false);
+        long intervalTicks = Math.max(1L, config.getLong("records.retentionIntervalMinutes", 60L)) * 60L * 20L;
+        stopped = false;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        if (retentionDays <= 0) return;
+        // 起動直後は避けて、1分後から
+        task = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this, 20L * 60, intervalTicks);
+    }
+
+    /**
+     * 定期実行を止める (実行中の処理は次の区切りで終わる。onDisable 用)
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) return;
+        try {
+            long deleted = deleteExpired();
+            if (stopped || !database.getDialect().incrementalVacuum()) return;
+            reclaimSpace(deleted);
+        } catch (SQLException | RuntimeException e) {
+            if (!stopped) {
+                plugin.getLogger().log(Level.WARNING, "[SlotRetention] 古い記録の削除に失敗しました", e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 保存期間より古い行を少しずつ消す
+     *
+     * @return 消した行数
+     */
+    private long deleteExpired() throws SQLException, InterruptedException {
+        // 1時間の区切りに揃える (消した範囲は集計テーブルだけで答えられる)
+        long cutoff = Math.floorDiv(System.currentTimeMillis() - (long) (retentionDays * DAY_MS), SlotDatabase.HOUR_MS)
+                * SlotDatabase.HOUR_MS;
+        int limit = batchSize;
+        String deleteSql = database.getDialect().deleteExpiredSql();
+        long total = 0;
+        while (!stopped) {
+            int n = database.withTransaction(conn -> {
+                PreparedStatement ps = database.prepare(deleteSql);
+                ps.setLong(1, cutoff);
+                ps.setInt(2, limit);
+                return ps.executeUpdate();
+            });
+            total += n;
+            if (n < limit) break;
+            Thread.sleep(PAUSE_MS);
+        }
+        if (total > 0) {
+            plugin.getLogger().info("[SlotRetention] " + retentionDays + "日より古い記録を " + total + " 行削除しました");
+        }
+        return total;
+    }
+
+    /**
+     * 空きページをファイルから返し、WAL を切り詰める
+     */
+    private void reclaimSpace(long deleted) throws SQLException, InterruptedException {
+        int mode = pragmaInt("PRAGMA auto_vacuum");
+        if (mode != AUTO_VACUUM_INCREMENTAL) {
+            if (!convertToIncremental) {
+                // 以前の DB: 空きページは使い回されるので、ファイルは縮めずに WAL だけ切り詰める
+                if (!notifiedNonIncremental) {
+                    notifiedNonIncremental = true;
+                    plugin.getLogger().info("[SlotRetention] slotData.db は incremental vacuum ではないため、削除した分の空き領域はファイルから返さず再利用します"
+                            + " (縮めるには records.convertToIncrementalVacuum: true。一度だけ VACUUM を実行します)");
+                }
+                if (deleted > 0) checkpoint();
+                return;
+            }
+            // 設定で許可されたときだけ、一度 VACUUM で incremental に切り替える
+            // (終わるまで記録の書き込みが待ち、DB と同じ大きさの空きディスクが要る)
+            plugin.getLogger().warning("[SlotRetention] slotData.db を incremental vacuum に切り替えます"
+                    + " (VACUUM の間は記録の書き込みが止まり、DB と同じ大きさの空きディスクを使います)");
+            long start = System.currentTimeMillis();
+            database.withConnection(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                    st.execute("VACUUM");
+                }
+                return null;
+            });
+            plugin.getLogger().info("[SlotRetention] VACUUM 完了 (" + (System.currentTimeMillis() - start) + "ms)。"
+                    + "records.convertToIncrementalVacuum は false に戻してください");
+            return;
+        }
+
+        int pages = vacuumPagesPerSlice;
+        long freed = 0;
+        int lastFree = Integer.MAX_VALUE;
+        while (!stopped) {
+            int free = pragmaInt("PRAGMA freelist_count");
+            // 減らなくなったら (他の書き込みで使われている等) 次の回に回す
+            if (free <= 0 || free >= lastFree) break;
+            lastFree = free;
+            database.withConnection(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    // 1行進めるごとに1ページ返すため、結果を最後まで読む
+                    if (st.execute("PRAGMA incremental_vacuum(" + pages + ")")) {
+                        try (ResultSet rs = st.getResultSet()) {
+                            while (rs.next()) {
+                                // 読み捨て
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+            freed += Math.min(free, pages);
+            Thread.sleep(PAUSE_MS);
+        }
+        if (deleted > 0 || freed > 0) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * 削除で膨らんだ -wal ファイルを縮める
+     */
+    private void checkpoint() throws SQLException {
+        database.withConnection(conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+            }
+            return null;
+        });
+    }
+
+    private int pragmaInt(String sql) throws SQLException {
+        return database.withConnection(conn -> {
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery(sql)) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * 記録用 DB のスキーマの版管理。
+ * <p>
+ * ・DB の版は {@link StorageDialect#readSchemaVersion} から読む (SQLite は PRAGMA user_version。0 = 何もしていない DB)
+ * ・版 n への更新は MIGRATIONS の n 番目 (1始まり) の SQL を順に流す
+ * ・1つの版の更新は1トランザクションで、成功したら版を上げる
+ * ・新しい版は末尾に足すだけ (既存の版の SQL は変えない)
+ * MIGRATIONS は SQLite の SQL。SQLite 以外の空の DB には、版 BASELINE_VERSION のテーブルを
+ * {@link #baseline} でまとめて作り、その先の版だけを流す (以降の版はどの DB でも通る SQL で書く)。
+ * MySQL・H2 の DDL はトランザクションの途中でもコミットされるため、baseline は途中で失敗してもやり直せるように
+ * 書く (テーブルは IF NOT EXISTS、インデックスは {@link #indexExists} で確かめてから作る)。
+ */
+final class SlotSchema {
+
+    /**
+     * 1つの版の更新
+     */
+    private record Migration(String description, String... statements) {
+    }
+
+    /**
+     * 無ければ作るインデックス (MySQL は CREATE INDEX IF NOT EXISTS を持たないため、有無を確かめてから作る)
+     */
+    private record Index(String name, String table, String columns) {
+        String createSql() {
+            return "CREATE INDEX " + name + " ON " + table + " (" + columns + ")";
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            // 1: 回転ごとの損益
+            new Migration("slot_records テーブル", """
+                    CREATE TABLE IF NOT EXISTS slot_records (
+                       id INTEGER PRIMARY KEY AUTOINCREMENT,
+                       uuid TEXT NOT NULL,
+                       slot_id TEXT NOT NULL,
+                       timestamp BIGINT NOT NULL,
+                       profit DOUBLE NOT NULL
+                    )
+                    """),
+            // 2: /slot analytics の期間指定の集計を、テーブルを読まずにインデックスだけで済ませる
+            new Migration("集計用のインデックス",
+                    "CREATE INDEX IF NOT EXISTS idx_slot_records_time_slot ON slot_records (timestamp, slot_id, profit)",
+                    "CREATE INDEX IF NOT EXISTS idx_slot_records_time_uuid ON slot_records (timestamp, uuid, profit)",
+                    "ANALYZE slot_records"),
+            // 3: 1時間ごとの集計 (hour_bucket = timestamp / 3600000)。既存の記録から作り、以降は書き込みと同じトランザクションで足す
+            new Migration("1時間ごとの集計テーブル", """
+                    CREATE TABLE IF NOT EXISTS slot_hourly (
+                       hour_bucket INTEGER NOT NULL,
+                       slot_id TEXT NOT NULL,
+                       income DOUBLE NOT NULL,
+                       cost DOUBLE NOT NULL,
+                       spins INTEGER NOT NULL,
+                       PRIMARY KEY (hour_bucket, slot_id)
+                    ) WITHOUT ROWID
+                    """, """
+                    CREATE TABLE IF NOT EXISTS user_hourly (
+                       hour_bucket INTEGER NOT NULL,
+                       uuid TEXT NOT NULL,
+                       income DOUBLE NOT NULL,
+                       cost DOUBLE NOT NULL,
+                       spins INTEGER NOT NULL,
+                       PRIMARY KEY (hour_bucket, uuid)
+                    ) WITHOUT ROWID
+                    """,
+                    // 以前の記録は回転ごとのまとまりが無いため、コストの行の数を回転数とする
+                    """
+                    INSERT OR REPLACE INTO slot_hourly (hour_bucket, slot_id, income, cost, spins)
+                    SELECT timestamp / 3600000, slot_id,
+                           sum(CASE WHEN profit>0 THEN profit ELSE 0 END),
+                           -sum(CASE WHEN profit<0 THEN profit ELSE 0 END),
+                           sum(CASE WHEN profit<0 THEN 1 ELSE 0 END)
+                    FROM slot_records
+                    GROUP BY timestamp / 3600000, slot_id
+                    """, """
+                    INSERT OR REPLACE INTO user_hourly (hour_bucket, uuid, income, cost, spins)
+                    SELECT timestamp / 3600000, uuid,
+                           sum(CASE WHEN profit>0 THEN profit ELSE 0 END),
+                           -sum(CASE WHEN profit<0 THEN profit ELSE 0 END),
+                           sum(CASE WHEN profit<0 THEN 1 ELSE 0 END)
+                    FROM slot_records
+                    GROUP BY timestamp / 3600000, uuid
+                    """),
+            // 4: プレイヤー (UUID 16バイト) と台IDを番号にして、行を小さく・集計を整数の比較にする。
+            //    以前の行は slot_records_legacy に名前を変えて残し、LegacyRecordMigrator が少しずつ移す
+            new Migration("プレイヤー・台の番号化",
+                    "CREATE TABLE IF NOT EXISTS players (id INTEGER PRIMARY KEY, uuid BLOB NOT NULL UNIQUE)",
+                    "CREATE TABLE IF NOT EXISTS machines (id INTEGER PRIMARY KEY, machine_id TEXT NOT NULL UNIQUE)",
+                    "ALTER TABLE slot_records RENAME TO slot_records_legacy",
+                    """
+                    CREATE TABLE slot_records (
+                       id INTEGER PRIMARY KEY,
+                       player_id INTEGER NOT NULL,
+                       machine_id INTEGER NOT NULL,
+                       timestamp INTEGER NOT NULL,
+                       profit DOUBLE NOT NULL
+                    )
+                    """,
+                    "CREATE INDEX idx_records_time_machine ON slot_records (timestamp, machine_id, profit)",
+                    "CREATE INDEX idx_records_time_player ON slot_records (timestamp, player_id, profit)"),
+            // 5: 当たったパターンの番号 (その台の設定の patterns の何番目か。ハズレ・以前の行・まとめた行は NULL)
+            new Migration("当たったパターンの列",
+                    "ALTER TABLE slot_records ADD COLUMN pattern_index INTEGER")
+    );
+
+    /**
+     * {@link #baseline} で作るテーブルの版
+     */
+    private static final int BASELINE_VERSION = 5;
+
+    /**
+     * {@link #baseline} のインデックス (版 4 で作ったものと同じ)
+     */
+    private static final List<Index> BASELINE_INDEXES = List.of(
+            new Index("idx_records_time_machine", "slot_records", "timestamp, machine_id, profit"),
+            new Index("idx_records_time_player", "slot_records", "timestamp, player_id, profit"));
+
+    private SlotSchema() {
+    }
+
+    /**
+     * 版 BASELINE_VERSION と同じテーブル (SQLite 以外の空の DB 用。型は方言に合わせる。インデックスは BASELINE_INDEXES)
+     */
+    private static Migration baseline(StorageDialect dialect) {
+        String key = "VARCHAR(191) NOT NULL";
+        return new Migration("初期スキーマ (版 " + BASELINE_VERSION + ")",
+                "CREATE TABLE IF NOT EXISTS players (id " + dialect.identityColumn("INTEGER")
+                        + ", uuid " + dialect.binaryType(16) + " NOT NULL UNIQUE)",
+                "CREATE TABLE IF NOT EXISTS machines (id " + dialect.identityColumn("INTEGER")
+                        + ", machine_id " + key + " UNIQUE)",
+                "CREATE TABLE IF NOT EXISTS slot_records (id " + dialect.identityColumn("BIGINT") + ","
+                        + " player_id INTEGER NOT NULL, machine_id INTEGER NOT NULL,"
+                        + " timestamp BIGINT NOT NULL, profit DOUBLE PRECISION NOT NULL, pattern_index INTEGER)",
+                "CREATE TABLE IF NOT EXISTS slot_hourly (hour_bucket BIGINT NOT NULL, slot_id " + key + ","
+                        + " income DOUBLE PRECISION NOT NULL, cost DOUBLE PRECISION NOT NULL, spins INTEGER NOT NULL,"
+                        + " PRIMARY KEY (hour_bucket, slot_id))",
+                "CREATE TABLE IF NOT EXISTS user_hourly (hour_bucket BIGINT NOT NULL, uuid VARCHAR(36) NOT NULL,"
+                        + " income DOUBLE PRECISION NOT NULL, cost DOUBLE PRECISION NOT NULL, spins INTEGER NOT NULL,"
+                        + " PRIMARY KEY (hour_bucket, uuid))");
+    }
+
+    /**
+     * 最新の版
+     */
+    static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    /**
+     * DB を最新の版まで更新する (自動コミットの接続で呼ぶ)
+     */
+    static void migrate(Connection conn, StorageDialect dialect, Logger logger) throws SQLException {
+        int current = dialect.readSchemaVersion(conn);
+        if (current > latestVersion()) {
+            logger.warning("[SlotSchema] " + dialect.name() + " の版 (" + current + ") がこのプラグインより新しいため、そのまま使います");
+            return;
+        }
+        if (current == 0) {
+            dialect.prepareNewDatabase(conn);
+            if (!dialect.replaysHistory()) {
+                apply(conn, dialect, logger, BASELINE_VERSION, baseline(dialect), BASELINE_INDEXES);
+                current = BASELINE_VERSION;
+            }
+        }
+        for (int v = current + 1; v <= latestVersion(); v++) {
+            apply(conn, dialect, logger, v, MIGRATIONS.get(v - 1), List.of());
+        }
+    }
+
+    /**
+     * 1つの版の更新を1トランザクションで流し、版を v にする (indexes は無いものだけ作る)
+     */
+    private static void apply(Connection conn, StorageDialect dialect, Logger logger, int v, Migration m,
+                              List<Index> indexes) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            for (String sql : m.statements()) {
+                st.execute(sql);
+            }
+            for (Index index : indexes) {
+                if (!indexExists(conn, index.table(), index.name())) {
+                    st.execute(index.createSql());
+                }
+            }
+            dialect.writeSchemaVersion(st, v);
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException ignored) {
+            }
+            throw new SQLException(dialect.name() + " を版 " + v + " (" + m.description() + ") に更新できません", e);
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        logger.info("[SlotSchema] " + dialect.name() + " を版 " + v + " に更新しました: " + m.description());
+    }
+
+    /**
+     * テーブルがあるか (名前の大文字・小文字の扱いは DB ごとに違うため、そのまま・大文字・小文字で探す)
+     */
+    static boolean tableExists(Connection conn, String table) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = meta.getTables(null, null, name, new String[]{"TABLE"})) {
+                if (rs.next()) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * テーブルにその名前のインデックスがあるか (名前の大文字・小文字は区別しない)
+     */
+    static boolean indexExists(Connection conn, String table, String index) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = meta.getIndexInfo(null, null, name, false, true)) {
+                while (rs.next()) {
+                    if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) return true;
+                }
+            }
+        }
+        return false;
+    }
+}
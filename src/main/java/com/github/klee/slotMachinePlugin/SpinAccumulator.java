@@ -0,0 +1,137 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * (プレイヤー, 台) ごとのコスト・払い出し・回転数の合計 (リングバッファが満杯のときの受け皿)。
+ * <p>
+ * ・1つの (プレイヤー, 台) の合計をスレッドごとの枠 (ストライプ) に分けて持ち、書き手どうしが同じ枠を取り合わないようにする
+ * ・枠の中の3つの値は1回の add でまとめて変わる (枠ごとの短い CAS ロック)
+ * ・書き込みスレッドは {@link #drainTo} で枠を1つずつ読んでゼロにする (どの add も必ずどれか1回の drain に丸ごと入る)
+ * ・1回の間に何も足されなかった (プレイヤー, 台) は表から外す。外す途中の合計に書こうとした add は、新しい合計でやり直す
+ */
+public final class SpinAccumulator {
+
+    private static final int STRIPES = stripeCount();
+    // スレッドごとに一度だけ決める乱数 (枠の選択に使う)
+    private static final ThreadLocal<int[]> PROBE =
+            ThreadLocal.withInitial(() -> new int[]{ThreadLocalRandom.current().nextInt()});
+
+    private record Key(UUID player, String machineId) {
+    }
+
+    private static final class Stripe {
+        // 0 = 空き, 1 = 使用中
+        private final AtomicInteger busy = new AtomicInteger();
+        private double cost;
+        private double payout;
+        private int spins;
+
+        private void lock() {
+            while (!busy.compareAndSet(0, 1)) {
+                Thread.onSpinWait();
+            }
+        }
+
+        private void unlock() {
+            busy.set(0);
+        }
+    }
+
+    private static final class Cell {
+        // 表から外す (もう足さない)
+        private volatile boolean retired;
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        private Cell() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+    }
+
+    /**
+     * drain で受け取る1件分
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(UUID player, String machineId, double cost, double payout, int spins);
+    }
+
+    private final Map<Key, Cell> cells = new ConcurrentHashMap<>();
+
+    /**
+     * 1回転分を足す (どのスレッドからでもよい)
+     */
+    public void add(UUID player, String machineId, double cost, double payout) {
+        Key key = new Key(player, machineId);
+        int index = PROBE.get()[0] & (STRIPES - 1);
+        while (true) {
+            Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+            Stripe s = cell.stripes[index];
+            s.lock();
+            try {
+                if (!cell.retired) {
+                    s.cost += cost;
+                    s.payout += payout;
+                    s.spins++;
+                    return;
+                }
+            } finally {
+                s.unlock();
+            }
+            // 外している途中: 外し終えてから新しい合計でやり直す
+            cells.remove(key, cell);
+        }
+    }
+
+    /**
+     * ここまでの合計を渡してゼロにする (書き込みスレッドから)
+     *
+     * @return 渡した件数
+     */
+    public int drainTo(Sink sink) {
+        int n = 0;
+        for (Map.Entry<Key, Cell> e : cells.entrySet()) {
+            Cell cell = e.getValue();
+            Stripe total = new Stripe();
+            drainCell(cell, total);
+            if (total.spins == 0) {
+                // 何も足されていない: 外す印を付けてから、印を見る前に足された分をもう一度拾う
+                cell.retired = true;
+                drainCell(cell, total);
+                cells.remove(e.getKey(), cell);
+            }
+            if (total.spins > 0) {
+                sink.accept(e.getKey().player(), e.getKey().machineId(), total.cost, total.payout, total.spins);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static void drainCell(Cell cell, Stripe total) {
+        for (Stripe s : cell.stripes) {
+            s.lock();
+            try {
+                total.cost += s.cost;
+                total.payout += s.payout;
+                total.spins += s.spins;
+                s.cost = 0;
+                s.payout = 0;
+                s.spins = 0;
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+    private static int stripeCount() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+        return Math.min(16, n);
+    }
+}
@@ -0,0 +1,279 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * 回転中のリールをまとめて動かすティッカー。
+ * <p>
+ * ・プラグイン全体で 1 つの同期タスクを毎 tick 実行し、回転中のセッションを配列で順に進める
+ * ・額縁ごとのシャッフル間隔、停止タイミング、回転中の演出はセッションのデータとして持つ
+ * ・回転中のセッションが無くなったらタスクを止め、次の回転開始で再開する
+ * <p>
+ * 負荷制限 (config.yml の animation):
+ * ・停止 (最終表示・停止音・結果判定) は制限せず、必ず予定の tick に行う
+ * ・シャッフル表示・回転音・パーティクルは 1tick あたりの上限まで。溢れたシャッフルは次の tick 以降に回す
+ * ・MSPT がしきい値を超えている間は演出を間引く
+ */
+public class SpinAnimator implements Runnable {
+
+    // MSPT を確認する間隔 (tick)
+    private static final int MSPT_SAMPLE_INTERVAL = 20;
+
+    private final Plugin plugin;
+    private Session[] sessions = new Session[8];
+    private int size;
+    private BukkitTask task;
+
+    // 1tick あたりの上限
+    private int maxFrameUpdatesPerTick = 60;
+    private int maxSoundsPerTick = 20;
+    private int maxParticlesPerTick = 40;
+    private double msptThreshold = 45.0;
+
+    // 今の tick の残り
+    private int frameBudget;
+    private int soundBudget;
+    private int particleBudget;
+
+    // シャッフルを始めるセッションの位置 (毎 tick ずらして偏りをなくす)
+    private int cursor;
+    private int ticksUntilSample;
+    private boolean degraded;
+
+    public SpinAnimator(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * config.yml の animation セクションを読み込む
+     */
+    public void loadSettings(ConfigurationSection config) {
+        if (config == null) return;
+        maxFrameUpdatesPerTick = Math.max(1, config.getInt("animation.maxFrameUpdatesPerTick", 60));
+        maxSoundsPerTick = Math.max(0, config.getInt("animation.maxSoundsPerTick", 20));
+        maxParticlesPerTick = Math.max(0, config.getInt("animation.maxParticlesPerTick", 40));
+        msptThreshold = config.getDouble("animation.msptThreshold", 45.0);
+    }
+
+    /**
+     * セッションを登録する (次の tick から動き始める)
+     */
+    public void start(Session session) {
+        if (size == sessions.length) {
+            sessions = Arrays.copyOf(sessions, size * 2);
+        }
+        sessions[size++] = session;
+        if (task == null) {
+            ticksUntilSample = 0;
+            task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1L, 1L);
+        }
+    }
+
+    /**
+     * 回転中のセッション数
+     */
+    public int getActiveCount() {
+        return size;
+    }
+
+    /**
+     * MSPT 超過で演出を間引いているか
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    @Override
+    public void run() {
+        if (--ticksUntilSample <= 0) {
+            ticksUntilSample = MSPT_SAMPLE_INTERVAL;
+            degraded = plugin.getServer().getAverageTickTime() > msptThreshold;
+        }
+
+        // 1) 停止処理 (制限なし、予定どおりの tick に行う)
+        for (int i = 0; i < size; i++) {
+            Session s = sessions[i];
+            boolean alive;
+            try {
+                alive = s.advance(degraded);
+            } catch (Exception ex) {
+                plugin.getLogger().log(Level.WARNING, "[SpinAnimator] 回転処理でエラー", ex);
+                s.abort();
+                alive = false;
+            }
+            if (!alive) {
+                // 末尾と入れ替えて詰める
+                sessions[i] = sessions[--size];
+                sessions[size] = null;
+                i--;
+            }
+        }
+        if (size == 0) {
+            if (task != null) {
+                task.cancel();
+                task = null;
+            }
+            return;
+        }
+
+        // 2) シャッフル表示と演出 (上限まで、毎 tick 開始位置をずらす)
+        frameBudget = maxFrameUpdatesPerTick;
+        soundBudget = maxSoundsPerTick;
+        particleBudget = degraded ? 0 : maxParticlesPerTick;
+        if (cursor >= size) cursor = 0;
+        for (int n = 0; n < size && frameBudget > 0; n++) {
+            Session s = sessions[(cursor + n) % size];
+            try {
+                s.shuffle(this);
+            } catch (Exception ex) {
+                // 同じエラーを毎 tick 出し続けないよう、この回転は中断する (次の tick の停止処理で取り除く)
+                plugin.getLogger().log(Level.WARNING, "[SpinAnimator] シャッフル表示でエラー", ex);
+                s.abort();
+            }
+        }
+        cursor++;
+    }
+
+    private boolean takeFrame() {
+        if (frameBudget <= 0) return false;
+        frameBudget--;
+        return true;
+    }
+
+    private boolean takeSound() {
+        if (soundBudget <= 0) return false;
+        soundBudget--;
+        return true;
+    }
+
+    private boolean takeParticle() {
+        if (particleBudget <= 0) return false;
+        particleBudget--;
+        return true;
+    }
+
+    /**
+     * 1 回分の回転
+     */
+    public static final class Session {
+        private final ItemFrame[] frames;
+        private final ItemStack[] shufflePool;
+        private final ItemStack[] finalItems;
+        private final long shuffleInterval;
+        // 額縁 i を止める tick (昇順)
+        private final long[] stopTicks;
+
+        private final Runnable rotatingSound;
+        private final Runnable particles;
+        private final Runnable stopEffect;
+        private final Runnable onFinish;
+        private final Runnable onAbort;
+
+        private long elapsed;
+        private int stopped;
+        // シャッフルの順番が来ているが、まだ更新していない額縁の位置 (-1 なら無し)
+        private int pendingFrom = -1;
+        private boolean soundPlayed;
+        private boolean aborted;
+
+        /**
+         * @param frames          リールの額縁 (左から順に止まる)
+         * @param shufflePool     回転中に表示するアイテム
+         * @param finalItems      停止時に表示するアイテム (frames と同じ長さ)
+         * @param shuffleInterval シャッフル間隔 (tick)
+         * @param firstStop       最初の額縁を止める tick
+         * @param stopInterval    額縁を順に止める間隔 (tick)
+         * @param rotatingSound   額縁1つのシャッフルごとの回転音 (null なら無し)
+         * @param particles       額縁1つのシャッフルごとのパーティクル (null なら無し)
+         * @param stopEffect      額縁1つの停止ごとの演出 (停止音)
+         * @param onFinish        全額縁が止まった後の処理
+         * @param onAbort         エラーで中断した時の後始末
+         */
+        public Session(ItemFrame[] frames, ItemStack[] shufflePool, ItemStack[] finalItems,
+                       long shuffleInterval, long firstStop, long stopInterval,
+                       Runnable rotatingSound, Runnable particles,
+                       Runnable stopEffect, Runnable onFinish, Runnable onAbort) {
+            this.frames = frames;
+            this.shufflePool = shufflePool;
+            this.finalItems = finalItems;
+            this.shuffleInterval = Math.max(1L, shuffleInterval);
+            this.stopTicks = new long[frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                stopTicks[i] = firstStop + i * stopInterval;
+            }
+            this.rotatingSound = rotatingSound;
+            this.particles = particles;
+            this.stopEffect = stopEffect;
+            this.onFinish = onFinish;
+            this.onAbort = onAbort;
+        }
+
+        /**
+         * 1 tick 進める (停止処理とシャッフルの順番の判定)
+         *
+         * @return まだ回転中なら true (中断済みなら false)
+         */
+        boolean advance(boolean degraded) {
+            if (aborted) return false;
+            // 停止時刻を過ぎた額縁を順に止める
+            while (stopped < frames.length && elapsed >= stopTicks[stopped]) {
+                frames[stopped].setItem(finalItems[stopped]);
+                stopEffect.run();
+                stopped++;
+                if (stopped == frames.length) {
+                    onFinish.run();
+                    return false;
+                }
+            }
+
+            // シャッフルの順番 (間引き中は間隔を倍に)。前回の分が残っていればそれを続ける
+            long interval = degraded ? shuffleInterval * 2 : shuffleInterval;
+            if (pendingFrom < 0 && elapsed % interval == 0) {
+                pendingFrom = stopped;
+                soundPlayed = false;
+            }
+            if (pendingFrom >= 0 && pendingFrom < stopped) {
+                pendingFrom = stopped;
+            }
+            elapsed++;
+            return true;
+        }
+
+        /**
+         * 止まっていない額縁のシャッフル表示を、予算の範囲で進める
+         */
+        void shuffle(SpinAnimator budget) {
+            if (aborted || pendingFrom < 0) return;
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (pendingFrom < frames.length) {
+                if (!budget.takeFrame()) return; // 残りは次の tick
+                frames[pendingFrom].setItem(shufflePool[rnd.nextInt(shufflePool.length)]);
+                pendingFrom++;
+
+                // 回転音: 通常は額縁ごと、間引き中は1回のシャッフルにつき1回
+                if (rotatingSound != null && (!budget.degraded || !soundPlayed) && budget.takeSound()) {
+                    rotatingSound.run();
+                    soundPlayed = true;
+                }
+                if (particles != null && budget.takeParticle()) {
+                    particles.run();
+                }
+            }
+            pendingFrom = -1;
+        }
+
+        void abort() {
+            if (aborted) return;
+            aborted = true;
+            onAbort.run();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 回転ごとの記録を溜める、上限付きのリングバッファ (書き手は複数、読み手は書き込みスレッド1つ)。
+ * <p>
+ * ・列ごとのプリミティブ配列を起動時に確保し、積むときは何も new しない
+ * ・書き手は tail を CAS で1つ進めて枠を取り、列を書いてから published に番号を入れて公開する
+ * ・読み手は公開済みの枠だけを順に写し取り、head を進めて枠を返す
+ * ・満杯なら積まずに false を返す
+ */
+public final class SpinRecordBuffer {
+
+    /**
+     * ハズレ (一致したパターンが無い)
+     */
+    public static final int NO_PATTERN = -1;
+
+    /**
+     * 1回転分 (または同じプレイヤー・台の複数回転の合計) の記録を列ごとに並べたもの。
+     * プレイヤーは UUID の上位/下位64bit、台は {@link SpinRecordWriter} の台番号で持つ
+     */
+    public static final class Columns {
+        long[] playerMost;
+        long[] playerLeast;
+        int[] machine;
+        long[] time;
+        double[] cost;
+        double[] payout;
+        int[] pattern;
+        // この行がまとめている回転数 (バッファからは常に 1)
+        int[] spins;
+        int size;
+
+        Columns(int capacity) {
+            playerMost = new long[capacity];
+            playerLeast = new long[capacity];
+            machine = new int[capacity];
+            time = new long[capacity];
+            cost = new double[capacity];
+            payout = new double[capacity];
+            pattern = new int[capacity];
+            spins = new int[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * 末尾に足す (足りなければ配列を広げる。records.spill の読み込みと、まとめた合計用)
+         */
+        void add(long most, long least, int machineId, long t, double c, double p, int pat, int count) {
+            if (size == time.length) {
+                int n = Math.max(16, size * 2);
+                playerMost = Arrays.copyOf(playerMost, n);
+                playerLeast = Arrays.copyOf(playerLeast, n);
+                machine = Arrays.copyOf(machine, n);
+                time = Arrays.copyOf(time, n);
+                cost = Arrays.copyOf(cost, n);
+                payout = Arrays.copyOf(payout, n);
+                pattern = Arrays.copyOf(pattern, n);
+                spins = Arrays.copyOf(spins, n);
+            }
+            set(size++, most, least, machineId, t, c, p, pat, count);
+        }
+
+        private void set(int i, long most, long least, int machineId, long t, double c, double p, int pat, int n) {
+            playerMost[i] = most;
+            playerLeast[i] = least;
+            machine[i] = machineId;
+            time[i] = t;
+            cost[i] = c;
+            payout[i] = p;
+            pattern[i] = pat;
+            spins[i] = n;
+        }
+
+        private void copyFrom(Columns src, int from, int to) {
+            set(to, src.playerMost[from], src.playerLeast[from], src.machine[from], src.time[from],
+                    src.cost[from], src.payout[from], src.pattern[from], src.spins[from]);
+        }
+    }
+
+    private final Columns ring;
+    private final int mask;
+    // 枠ごとの公開済みの番号 (seq + 1。0 は未公開)
+    private final AtomicLongArray published;
+    // 次に書き手が取る番号
+    private final AtomicLong tail = new AtomicLong();
+    // 次に読み手が読む番号 (読み手だけが書く)
+    private volatile long head;
+
+    /**
+     * @param minCapacity 上限件数 (2の累乗に切り上げる)
+     */
+    public SpinRecordBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        this.ring = new Columns(capacity);
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * 1回転分を積む (どのスレッドからでもよい。待たない)
+     *
+     * @return 満杯で積めなかったら false
+     */
+    public boolean offer(UUID player, int machineId, long time, double cost, double payout, int pattern) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask) return false;
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        ring.set((int) seq & mask, player.getMostSignificantBits(), player.getLeastSignificantBits(),
+                machineId, time, cost, payout, pattern, 1);
+        published.set((int) seq & mask, seq + 1);
+        return true;
+    }
+
+    /**
+     * 公開済みの記録を out の末尾に最大 max 件写し取り、枠を返す (読み手のスレッドだけが呼ぶ)
+     *
+     * @return 写し取った件数
+     */
+    public int drainTo(Columns out, int max) {
+        long h = head;
+        int n = 0;
+        int room = Math.min(max, out.time.length - out.size);
+        while (n < room && published.get((int) h & mask) == h + 1) {
+            out.copyFrom(ring, (int) h & mask, out.size++);
+            h++;
+            n++;
+        }
+        // 写し終えてから枠を返す
+        head = h;
+        return n;
+    }
+
+    /**
+     * 溜まっている件数 (目安)
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,397 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 回転ごとの損益 (slot_records) を書き込むクラス。
+ * <p>
+ * ・メインスレッドは回転が終わった時点で1件 (プレイヤー, 台, 時刻, コスト, 払い出し, パターン) を
+ *   リングバッファ ({@link SpinRecordBuffer}) に積むだけ (待たない・何も new しない)
+ * ・書き込みスレッドが数秒ごとにバッファを取り出し、まとめて1トランザクションで複数行 INSERT する ({@link SlotRecordInserter})
+ *   (1回転につき、コストは負の profit、払い出しは正の profit の行になる。どちらの行にも当たったパターンの番号を入れる)
+ * ・同じトランザクションで1時間ごとの集計 (slot_hourly / user_hourly) にも足し込む
+ * ・バッファが半分を超えたら間隔を待たずに書き込む
+ * ・DB に書けない間は records.spill に追記して fsync し、DB が戻ったら先に書き戻す
+ * ・バッファが満杯のとき (書き込みスレッドが追いつかない) は、(プレイヤー, 台) ごとの合計 ({@link SpinAccumulator}) に足して、
+ *   次の書き込みでまとめた1行として書く (時刻は書き込んだ時刻、パターンは残らない)
+ */
+public class SpinRecordWriter {
+
+    // DB 書き込みに失敗した後、再び DB を試すまでの時間 (ms)
+    private static final long RETRY_AFTER_FAILURE_MS = 30_000L;
+    // バッファが満杯だった件数の警告の間隔 (ms)
+    private static final long OVERFLOW_WARN_INTERVAL_MS = 60_000L;
+
+    /**
+     * 集計テーブルの1行 (1時間 × 台 or プレイヤー)
+     */
+    private record RollupKey(long hourBucket, String id) {
+    }
+
+    private static final class Totals {
+        double income;
+        double cost;
+        int spins;
+
+        void add(double profit) {
+            if (profit > 0) income += profit;
+            else cost -= profit;
+        }
+    }
+
+    private final SlotDatabase database;
+    private final Logger logger;
+    private final Path spillFile;
+    private final SpinRecordBuffer buffer;
+    private final int highWater;
+    private final int batchSize;
+    // 集計テーブルへの足し込み (DB の種類ごとの SQL)
+    private final String upsertSlotHourlySql;
+    private final String upsertUserHourlySql;
+
+    // 台ID ⇔ 台番号 (バッファには番号で積む。番号は起動中だけのもの)
+    private final Map<String, Integer> machineNumbers = new ConcurrentHashMap<>();
+    private final List<String> machineIds = new ArrayList<>();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // バッファに入らなかった回転の合計
+    private final SpinAccumulator overflow = new SpinAccumulator();
+    private final AtomicLong overflowed = new AtomicLong();
+    private volatile long lastOverflowWarn;
+
+    private ScheduledExecutorService writer;
+    private ScheduledFuture<?> flushTask;
+
+    // 書き込みは1つずつ (停止時に書き込みスレッドが終わらなくても、同時に flush しないように)
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // 以下は flushLock を持つスレッドだけが触る
+    private final SpinRecordBuffer.Columns batch;
+    private final SlotRecordInserter inserter;
+    private long retryDbAt;
+
+    public SpinRecordWriter(SlotDatabase database, File dataFolder, Logger logger, ConfigurationSection config) {
+        this.database = database;
+        this.logger = logger;
+        this.spillFile = new File(dataFolder, "records.spill").toPath();
+        int capacity = Math.max(1000, config.getInt("records.queueCapacity", 100_000));
+        this.buffer = new SpinRecordBuffer(capacity);
+        this.highWater = buffer.capacity() / 2;
+        this.batchSize = Math.max(100, config.getInt("records.batchSize", 2000));
+        this.batch = new SpinRecordBuffer.Columns(batchSize);
+        this.inserter = new SlotRecordInserter(database);
+        StorageDialect dialect = database.getDialect();
+        this.upsertSlotHourlySql = dialect.upsertRollupSql("slot_hourly", "slot_id");
+        this.upsertUserHourlySql = dialect.upsertRollupSql("user_hourly", "uuid");
+    }
+
+    /**
+     * 書き込みスレッドを起動する (設定の再読み込み時は間隔だけ変える)
+     */
+    public synchronized void start(ConfigurationSection config) {
+        long intervalMs = Math.max(1L, config.getLong("records.flushIntervalSeconds", 5L)) * 1000L;
+        if (writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "SlotMachine-RecordWriter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flushTask = writer.scheduleWithFixedDelay(this::flush, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 1回転分を積む (どのスレッドからでもよい。待たない)
+     *
+     * @param cost    回転のコスト
+     * @param payout  回転中に払い出した金額の合計
+     * @param pattern 当たったパターンの番号 (ハズレは {@link SpinRecordBuffer#NO_PATTERN})
+     */
+    public void submit(UUID uuid, String machineId, double cost, double payout, int pattern) {
+        if (!buffer.offer(uuid, machineNumber(machineId), System.currentTimeMillis(), cost, payout, pattern)) {
+            overflow.add(uuid, machineId, cost, payout);
+            long n = overflowed.incrementAndGet();
+            long now = System.currentTimeMillis();
+            if (now - lastOverflowWarn >= OVERFLOW_WARN_INTERVAL_MS) {
+                lastOverflowWarn = now;
+                logger.warning("[SpinRecordWriter] 書き込みが追いつかないため、記録を合計にまとめています (累計 " + n + " 件)");
+            }
+            return;
+        }
+        if (buffer.size() >= highWater && flushRequested.compareAndSet(false, true)) {
+            ScheduledExecutorService w = writer;
+            if (w != null) {
+                try {
+                    w.execute(this::flush);
+                } catch (Exception ignored) {
+                    // 停止中
+                }
+            }
+        }
+    }
+
+    /**
+     * 書き込みスレッドを止め、残りをすべて書き込む (onDisable 用)
+     */
+    public synchronized void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                    logger.warning("[SpinRecordWriter] 書き込みスレッドが終了しませんでした");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        // 最後は同期で書き込む (DB が使えなければ records.spill へ)。
+        // 書き込みスレッドがまだ書いている場合は、終わるまで待ってから
+        try {
+            if (!flushLock.tryLock(10, TimeUnit.SECONDS)) {
+                logger.severe("[SpinRecordWriter] 書き込み中の処理が終わらないため、残りの記録 " + buffer.size()
+                        + " 件を書き込めませんでした");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.severe("[SpinRecordWriter] 停止を割り込まれたため、残りの記録 " + buffer.size() + " 件を書き込めませんでした");
+            return;
+        }
+        try {
+            retryDbAt = 0;
+            flushLocked();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * バッファにある分を書き込む。DB に書けなければ records.spill に追記する
+     */
+    private void flush() {
+        flushLock.lock();
+        try {
+            flushLocked();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        flushRequested.set(false);
+        try {
+            boolean dbAvailable = System.currentTimeMillis() >= retryDbAt;
+            if (dbAvailable && Files.exists(spillFile)) {
+                dbAvailable = replaySpill();
+            }
+            batch.clear();
+            while (buffer.drainTo(batch, batchSize) > 0) {
+                if (dbAvailable) {
+                    dbAvailable = writeToDb(batch);
+                }
+                if (!dbAvailable) {
+                    spill(batch);
+                }
+                batch.clear();
+            }
+            // バッファに入らなかった分は (プレイヤー, 台) ごとの合計で
+            long now = System.currentTimeMillis();
+            overflow.drainTo((player, slotId, cost, payout, spins) ->
+                    batch.add(player.getMostSignificantBits(), player.getLeastSignificantBits(), machineNumber(slotId),
+                            now, cost, payout, SpinRecordBuffer.NO_PATTERN, spins));
+            if (batch.size() > 0) {
+                if (dbAvailable) {
+                    dbAvailable = writeToDb(batch);
+                }
+                if (!dbAvailable) {
+                    spill(batch);
+                }
+                batch.clear();
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "[SpinRecordWriter] 記録の書き込みに失敗しました", e);
+        }
+    }
+
+    /**
+     * @return 書けたら true (失敗したら一定時間 DB を使わない)
+     */
+    private boolean writeToDb(SpinRecordBuffer.Columns rows) {
+        try {
+            Map<RollupKey, Totals> bySlot = new HashMap<>();
+            Map<RollupKey, Totals> byUser = new HashMap<>();
+            database.withTransaction(conn -> {
+                SlotDictionary dict = database.getDictionary();
+                inserter.clear();
+                for (int i = 0; i < rows.size; i++) {
+                    UUID player = new UUID(rows.playerMost[i], rows.playerLeast[i]);
+                    String uuid = player.toString();
+                    String slotId = machineId(rows.machine[i]);
+                    int playerId = dict.playerId(player);
+                    int machineId = dict.machineId(slotId);
+                    long hour = rows.time[i] / SlotDatabase.HOUR_MS;
+                    Totals slot = bySlot.computeIfAbsent(new RollupKey(hour, slotId), k -> new Totals());
+                    Totals user = byUser.computeIfAbsent(new RollupKey(hour, uuid), k -> new Totals());
+                    slot.spins += rows.spins[i];
+                    user.spins += rows.spins[i];
+                    // コストは負、払い出しは正の profit (集計は正負で入金/出金を分ける)
+                    if (rows.cost[i] != 0) {
+                        inserter.add(playerId, machineId, rows.time[i], -rows.cost[i], rows.pattern[i]);
+                        slot.add(-rows.cost[i]);
+                        user.add(-rows.cost[i]);
+                    }
+                    if (rows.payout[i] != 0) {
+                        inserter.add(playerId, machineId, rows.time[i], rows.payout[i], rows.pattern[i]);
+                        slot.add(rows.payout[i]);
+                        user.add(rows.payout[i]);
+                    }
+                }
+                inserter.execute();
+                upsertRollups(database.prepare(upsertSlotHourlySql), bySlot);
+                upsertRollups(database.prepare(upsertUserHourlySql), byUser);
+                return null;
+            });
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            retryDbAt = System.currentTimeMillis() + RETRY_AFTER_FAILURE_MS;
+            logger.log(Level.WARNING, "[SpinRecordWriter] DBに書き込めないため records.spill に退避します", e);
+            return false;
+        }
+    }
+
+    private static void upsertRollups(PreparedStatement ps, Map<RollupKey, Totals> rollups) throws SQLException {
+        for (Map.Entry<RollupKey, Totals> e : rollups.entrySet()) {
+            Totals t = e.getValue();
+            ps.setLong(1, e.getKey().hourBucket());
+            ps.setString(2, e.getKey().id());
+            ps.setDouble(3, t.income);
+            ps.setDouble(4, t.cost);
+            ps.setInt(5, t.spins);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    /**
+     * 記録を records.spill に追記して fsync する
+     * (1行: uuid TAB 台ID TAB 時刻 TAB コスト TAB 払い出し TAB パターン TAB 回転数)
+     */
+    private void spill(SpinRecordBuffer.Columns rows) throws IOException {
+        StringBuilder sb = new StringBuilder(rows.size * 96);
+        for (int i = 0; i < rows.size; i++) {
+            sb.append(new UUID(rows.playerMost[i], rows.playerLeast[i])).append('\t')
+                    .append(machineId(rows.machine[i])).append('\t')
+                    .append(rows.time[i]).append('\t')
+                    .append(rows.cost[i]).append('\t')
+                    .append(rows.payout[i]).append('\t')
+                    .append(rows.pattern[i]).append('\t')
+                    .append(rows.spins[i]).append('\n');
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel ch = FileChannel.open(spillFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(false);
+        }
+    }
+
+    /**
+     * records.spill を DB に書き戻して消す。途中で切れた行や読めない行は飛ばす
+     *
+     * @return 書き戻せたら true
+     */
+    private boolean replaySpill() throws IOException {
+        SpinRecordBuffer.Columns rows = new SpinRecordBuffer.Columns(256);
+        int skipped = 0;
+        try (BufferedReader r = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] cols = line.split("\t");
+                try {
+                    UUID uuid = UUID.fromString(cols[0]);
+                    int machine = machineNumber(cols[1]);
+                    long time = Long.parseLong(cols[2]);
+                    if (cols.length == 6 || cols.length == 7) {
+                        // 回転数の無い行 (6列) は1回転
+                        int spins = cols.length == 7 ? Integer.parseInt(cols[6]) : 1;
+                        rows.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), machine, time,
+                                Double.parseDouble(cols[3]), Double.parseDouble(cols[4]), Integer.parseInt(cols[5]), spins);
+                    } else if (cols.length == 4) {
+                        // 以前の形式 (uuid, 台ID, 時刻, profit)
+                        double profit = Double.parseDouble(cols[3]);
+                        rows.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), machine, time,
+                                Math.max(0, -profit), Math.max(0, profit), SpinRecordBuffer.NO_PATTERN, 1);
+                    } else if (!line.isEmpty()) {
+                        skipped++;
+                    }
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    if (!line.isEmpty()) skipped++;
+                }
+            }
+        }
+        // 全件を1トランザクションで (途中で失敗しても二重に書かない)
+        if (rows.size > 0 && !writeToDb(rows)) {
+            return false;
+        }
+        Files.delete(spillFile);
+        logger.info("[SpinRecordWriter] records.spill から " + rows.size + " 件を書き戻しました"
+                + (skipped > 0 ? " (読めない行 " + skipped + " 件は捨てました)" : ""));
+        return true;
+    }
+
+    private int machineNumber(String machineId) {
+        Integer n = machineNumbers.get(machineId);
+        if (n != null) return n;
+        synchronized (machineIds) {
+            n = machineNumbers.get(machineId);
+            if (n == null) {
+                n = machineIds.size();
+                machineIds.add(machineId);
+                machineNumbers.put(machineId, n);
+            }
+            return n;
+        }
+    }
+
+    private String machineId(int number) {
+        synchronized (machineIds) {
+            return machineIds.get(number);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite (plugins/SlotMachinePlugin/slotData.db)。
+ * <p>
+ * ・WAL モード + synchronous=NORMAL で、書き込み中も読み取りを止めない
+ * ・スキーマの版は PRAGMA user_version に持ち、以前の版の DB も順に更新する
+ * ・空きページは incremental_vacuum で少しずつ返す ({@link SlotRetention})
+ */
+final class SqliteDialect implements StorageDialect {
+
+    // 古い SQLite のパラメータ数の上限 (999) に収まる行数 (1行5つ)
+    private static final int INSERT_ROWS = 190;
+
+    private final File dataFolder;
+
+    SqliteDialect(File dataFolder) {
+        this.dataFolder = dataFolder;
+    }
+
+    @Override
+    public String name() {
+        return "slotData.db";
+    }
+
+    @Override
+    public Connection open() throws SQLException {
+        // plugins/SlotMachinePlugin/ フォルダが存在しない場合は作る
+        if (!dataFolder.exists()) {
+            dataFolder.mkdirs();
+        }
+        File dbFile = new File(dataFolder, "slotData.db");
+        Connection conn = StorageDialect.connect("org.sqlite.JDBC", "jdbc:sqlite:" + dbFile.getAbsolutePath(), null, null);
+        try (Statement st = conn.createStatement()) {
+            // 書き込み中も読み取りを止めない / fsync はチェックポイント時だけ
+            st.execute("PRAGMA journal_mode=WAL");
+            st.execute("PRAGMA synchronous=NORMAL");
+            st.execute("PRAGMA busy_timeout=5000");
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    @Override
+    public int insertRowsPerStatement() {
+        return INSERT_ROWS;
+    }
+
+    @Override
+    public String identityColumn(String sqlType) {
+        return "INTEGER PRIMARY KEY";
+    }
+
+    @Override
+    public String binaryType(int length) {
+        return "BLOB";
+    }
+
+    @Override
+    public String insertIfAbsentSql(String table, String column) {
+        return "INSERT OR IGNORE INTO " + table + " (" + column + ") VALUES (?)";
+    }
+
+    @Override
+    public String upsertRollupSql(String table, String keyColumn) {
+        return "INSERT INTO " + table + " (hour_bucket, " + keyColumn + ", income, cost, spins) VALUES (?,?,?,?,?)\n"
+                + "ON CONFLICT (hour_bucket, " + keyColumn + ") DO UPDATE SET\n"
+                + "   income = income + excluded.income, cost = cost + excluded.cost, spins = spins + excluded.spins";
+    }
+
+    @Override
+    public String uuidText(String c) {
+        return "lower(substr(hex(" + c + "),1,8)||'-'||substr(hex(" + c + "),9,4)||'-'||substr(hex(" + c + "),13,4)"
+                + "||'-'||substr(hex(" + c + "),17,4)||'-'||substr(hex(" + c + "),21))";
+    }
+
+    @Override
+    public boolean incrementalVacuum() {
+        return true;
+    }
+
+    @Override
+    public boolean replaysHistory() {
+        return true;
+    }
+
+    @Override
+    public void prepareNewDatabase(Connection conn) throws SQLException {
+        // テーブルを作る前なら VACUUM なしで効く (既存の DB では何もしない。SlotRetention が切り替える)
+        try (Statement st = conn.createStatement()) {
+            st.execute("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+    }
+
+    @Override
+    public int readSchemaVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    public void writeSchemaVersion(Statement st, int version) throws SQLException {
+        st.execute("PRAGMA user_version = " + version);
+    }
+}
@@ -0,0 +1,155 @@
+package com.github.klee.slotMachinePlugin;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * 記録の保存先 (DB の種類) ごとの違いをまとめたもの。{@link SlotDatabase} はこれを通して接続・SQL を決める。
+ * <p>
+ * ・sqlite: plugins/SlotMachinePlugin/slotData.db (既定)
+ * ・h2: 組み込みの H2 (plugins/SlotMachinePlugin/slotData.mv.db)、または storage.url の H2 サーバー
+ * ・jdbc: storage.url の MySQL / MariaDB / PostgreSQL (複数のサーバーで1つの DB に記録する)
+ * 既定の実装 (default メソッド) はサーバー型の DB 向けで、SQLite は {@link SqliteDialect} で上書きする。
+ */
+public interface StorageDialect {
+
+    /**
+     * config.yml の storage から保存先を決める (読めない設定は SQLite にする)
+     */
+    static StorageDialect fromConfig(ConfigurationSection config, File dataFolder, Logger logger) {
+        String type = config.getString("storage.type", "sqlite");
+        String url = config.getString("storage.url", "");
+        String user = config.getString("storage.user", "");
+        String password = config.getString("storage.password", "");
+        switch (type.toLowerCase()) {
+            case "sqlite" -> {
+            }
+            case "h2" -> {
+                return new H2Dialect(url.isEmpty() ? H2Dialect.fileUrl(dataFolder) : url, user, password);
+            }
+            case "jdbc", "mysql", "postgresql" -> {
+                JdbcDialect.Flavor flavor = JdbcDialect.Flavor.fromUrl(url);
+                if (flavor != null) {
+                    return new JdbcDialect(flavor, url, user, password);
+                }
+                logger.warning("[StorageDialect] storage.url が jdbc:mysql: / jdbc:postgresql: の URL ではないため SQLite を使います: " + url);
+            }
+            default -> logger.warning("[StorageDialect] storage.type が不明なため SQLite を使います: " + type);
+        }
+        return new SqliteDialect(dataFolder);
+    }
+
+    /**
+     * ログ用の名前 (パスワードは含めない)
+     */
+    String name();
+
+    /**
+     * 新しい接続を開く (接続ごとの設定もここで行う)
+     */
+    Connection open() throws SQLException;
+
+    /**
+     * slot_records の複数行 INSERT で1文にまとめる行数 (パラメータ数・パケットの上限に合わせる)
+     */
+    int insertRowsPerStatement();
+
+    /**
+     * 自動採番の主キー列の型 (CREATE TABLE 用)
+     */
+    default String identityColumn(String sqlType) {
+        return sqlType + " GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY";
+    }
+
+    /**
+     * 固定長バイト列の型 (UUID 16バイト用)
+     */
+    default String binaryType(int length) {
+        return "BINARY(" + length + ")";
+    }
+
+    /**
+     * 一意な列 column に値が無ければ1行足す SQL (あれば何もしない。パラメータは値1つ)
+     */
+    String insertIfAbsentSql(String table, String column);
+
+    /**
+     * 1時間ごとの集計 (hour_bucket, keyColumn, income, cost, spins) に足し込む SQL (行が無ければ作る)
+     */
+    String upsertRollupSql(String table, String keyColumn);
+
+    /**
+     * 16バイトの UUID 列を、小文字・ハイフン区切りの文字列にする式 (集計の SELECT 用)
+     */
+    String uuidText(String column);
+
+    /**
+     * timestamp が古い slot_records を最大 n 行消す SQL (パラメータは時刻, 行数)
+     */
+    default String deleteExpiredSql() {
+        return "DELETE FROM slot_records WHERE id IN (SELECT id FROM slot_records WHERE timestamp < ? LIMIT ?)";
+    }
+
+    /**
+     * 空きページを PRAGMA incremental_vacuum で返すか (SQLite だけ)
+     */
+    default boolean incrementalVacuum() {
+        return false;
+    }
+
+    /**
+     * 最初の版から順にスキーマを更新するか。false なら空の DB には最新のテーブルをまとめて作る ({@link SlotSchema})
+     */
+    default boolean replaysHistory() {
+        return false;
+    }
+
+    /**
+     * テーブルを作る前の空の DB に対して1回だけ行う設定
+     */
+    default void prepareNewDatabase(Connection conn) throws SQLException {
+    }
+
+    /**
+     * スキーマの版 (0 = 何もしていない DB)。サーバー型の DB は slot_schema テーブルに持つ
+     */
+    default int readSchemaVersion(Connection conn) throws SQLException {
+        if (!SlotSchema.tableExists(conn, "slot_schema")) return 0;
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT max(version) FROM slot_schema")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * スキーマの版を書く (更新と同じトランザクションで)
+     */
+    default void writeSchemaVersion(Statement st, int version) throws SQLException {
+        st.execute("CREATE TABLE IF NOT EXISTS slot_schema (version INTEGER NOT NULL)");
+        st.execute("DELETE FROM slot_schema");
+        st.execute("INSERT INTO slot_schema (version) VALUES (" + version + ")");
+    }
+
+    /**
+     * ドライバを読み込んで接続する (Paper がプラグインごとに読み込むライブラリは DriverManager から見えないため)
+     */
+    static Connection connect(String driverClass, String url, String user, String password) throws SQLException {
+        try {
+            Class.forName(driverClass);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBCドライバが見つかりません: " + driverClass, e);
+        }
+        Properties props = new Properties();
+        if (user != null && !user.isEmpty()) props.setProperty("user", user);
+        if (password != null && !password.isEmpty()) props.setProperty("password", password);
+        return DriverManager.getConnection(url, props);
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 変数の番号付け。
+ * <p>
+ * ・変数ID (static): 変数名 → 固定の番号。式・メッセージはロード時にこの番号に束縛する。
+ *   追加のみで、リロードしても変わらない。ID 0 は台のストック ("stock") 専用
+ * ・設定ごとのスキーマ (インスタンス): その設定が定義・参照する変数だけを並べたもの。
+ *   台はいま使っている設定のスキーマの大きさの配列に変数を持つ ({@link MachineManager.MachineData})
+ * ・nextSlotOnWin で設定が切り替わった台は、変数名で新しいスキーマに値を移す
+ */
+public final class VariableSchema {
+
+    public static final int STOCK = 0;
+    public static final String STOCK_NAME = "stock";
+
+    private static final Map<String, Integer> indexMap = new ConcurrentHashMap<>();
+    private static volatile String[] names = {STOCK_NAME};
+
+    static {
+        indexMap.put(STOCK_NAME, STOCK);
+    }
+
+    /**
+     * 変数を持たない台 (設定が読み込まれる前・設定が見つからない台) のスキーマ
+     */
+    public static final VariableSchema EMPTY = new VariableSchema(new String[]{STOCK_NAME});
+
+    // 設定の相対パス → スキーマ (SlotManager が読み込みのたびに置き換える)
+    private static volatile Map<String, VariableSchema> byConfig = Map.of();
+
+    // 台の配列の位置 → 変数名 (位置 0 = stock は未使用)
+    private final String[] slotNames;
+    // 変数ID → 台の配列の位置 (-1 = このスキーマに無い)
+    private final int[] slotOfId;
+
+    private VariableSchema(String[] slotNames) {
+        this.slotNames = slotNames;
+        int maxId = 0;
+        int[] ids = new int[slotNames.length];
+        for (int s = 0; s < slotNames.length; s++) {
+            ids[s] = register(slotNames[s]);
+            maxId = Math.max(maxId, ids[s]);
+        }
+        slotOfId = new int[maxId + 1];
+        Arrays.fill(slotOfId, -1);
+        for (int s = 0; s < ids.length; s++) {
+            slotOfId[ids[s]] = s;
+        }
+    }
+
+    /**
+     * 変数名の一覧からスキーマを作る (stock と重複は除く)
+     */
+    public static VariableSchema of(Collection<String> variableNames) {
+        LinkedHashSet<String> set = new LinkedHashSet<>();
+        set.add(STOCK_NAME);
+        set.addAll(variableNames);
+        return new VariableSchema(set.toArray(new String[0]));
+    }
+
+    /**
+     * 設定ごとのスキーマを置き換える (SlotManager の読み込みの最後に)
+     */
+    static void publish(Map<String, VariableSchema> schemas) {
+        byConfig = Map.copyOf(schemas);
+    }
+
+    /**
+     * 設定のスキーマ (読み込まれていない設定なら {@link #EMPTY})
+     */
+    public static VariableSchema forConfig(String slotConfigName) {
+        if (slotConfigName == null) return EMPTY;
+        return byConfig.getOrDefault(slotConfigName, EMPTY);
+    }
+
+    /**
+     * 変数ID の台の配列での位置 (このスキーマに無ければ -1)
+     */
+    public int slotOf(int id) {
+        return (id >= 0 && id < slotOfId.length) ? slotOfId[id] : -1;
+    }
+
+    /**
+     * 台の配列の位置の変数名
+     */
+    public String nameAt(int slot) {
+        return slotNames[slot];
+    }
+
+    /**
+     * 台の配列の大きさ (stock の位置 0 を含む)
+     */
+    public int size() {
+        return slotNames.length;
+    }
+
+    /**
+     * 変数名を登録して変数ID を返す (登録済みならそのまま返す)
+     */
+    public static int register(String name) {
+        Integer idx = indexMap.get(name);
+        if (idx != null) return idx;
+        synchronized (VariableSchema.class) {
+            idx = indexMap.get(name);
+            if (idx != null) return idx;
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = name;
+            names = grown;
+            indexMap.put(name, grown.length - 1);
+            return grown.length - 1;
+        }
+    }
+
+    /**
+     * 変数名の変数ID (未登録なら -1)
+     */
+    public static int indexOf(String name) {
+        Integer idx = indexMap.get(name);
+        return (idx != null) ? idx : -1;
+    }
+
+    public static String nameOf(int index) {
+        return names[index];
+    }
+}
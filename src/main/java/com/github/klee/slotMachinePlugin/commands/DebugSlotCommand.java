@@ -7,18 +7,16 @@ import com.github.klee.slotMachinePlugin.SlotConfig.VariableDefinition;
 import com.github.klee.slotMachinePlugin.SlotConfig.PatternConfig;
 import com.github.klee.slotMachinePlugin.SlotConfig.Reward;
 import com.github.klee.slotMachinePlugin.SlotMachinePlugin;
-import com.github.klee.slotMachinePlugin.utils.ExpressionParser;
+import com.github.klee.slotMachinePlugin.SlotConfig.EventDefinition;
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
-import java.awt.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * /slot debug <machineId> <count>
@@ -33,12 +31,6 @@ public class DebugSlotCommand implements CommandExecutor {
      */
     private double totalMoneyGain;
 
-    /**
-     * スロット設定由来の変数をキャッシュするマップ
-     * (stock も含め、イベントや回転終了後まで保持)
-     */
-    private Map<String, Double> configVarCache = new HashMap<>();
-
     public DebugSlotCommand(SlotMachinePlugin plugin) {
         this.plugin = plugin;
     }
@@ -80,22 +72,12 @@ public class DebugSlotCommand implements CommandExecutor {
             return true;
         }
 
-        // デバッグ用 MachineData を初期化 (stock=0, machineVar=空)
+        // デバッグ用 MachineData を初期化 (stock=0, 変数=設定の初期値)
         MachineData debugData = createDebugMachineData(original, config);
 
         // 合計入金を0に
         this.totalMoneyGain = 0;
 
-        // configVarCache 初期化
-        configVarCache.clear();
-        if(config.getVariables() != null){
-            for(VariableDefinition vd : config.getVariables()){
-                configVarCache.put(vd.getVarName(), vd.getInitialValue());
-            }
-        }
-        // machineのstockをキャッシュ
-        configVarCache.put("stock", (double)debugData.getStock());
-
         // シミュレーション
         doDebugSimulate(player, debugData, config, count);
 
@@ -107,7 +89,11 @@ public class DebugSlotCommand implements CommandExecutor {
         debugMd.setSlotConfigName(original.getSlotConfigName());
         // デバッグ用に stock=0
         debugMd.setStock(0);
-        debugMd.setVariables(new HashMap<>());
+        if(config.getVariables() != null){
+            for(VariableDefinition vd : config.getVariables()){
+                debugMd.setVariable(vd.getVarName(), vd.getInitialValue());
+            }
+        }
         debugMd.setWorldName(original.getWorldName());
         debugMd.setX(original.getX());
         debugMd.setY(original.getY());
@@ -134,7 +120,7 @@ public class DebugSlotCommand implements CommandExecutor {
             runTopLevelEventOnce(currentCfg, machine, itemGainMap);
 
             // 2. スピンコスト
-            double costThisTime = parseDoubleExpression(currentCfg.getSpinCost(), machine);
+            double costThisTime = currentCfg.getSpinCost();
             if(costThisTime<=0) costThisTime=1;
             totalCost += costThisTime;
 
@@ -145,7 +131,7 @@ public class DebugSlotCommand implements CommandExecutor {
             }
             double sum=0;
             for(PatternConfig pc : patterns){
-                sum += parseDoubleExpression(pc.getProbability(), machine);
+                sum += evalExpression(pc.getCompiledProbability(), machine);
             }
             PatternConfig ptn= drawPatternOrMiss(patterns, sum, machine);
 
@@ -153,7 +139,7 @@ public class DebugSlotCommand implements CommandExecutor {
                 // -------------------------------
                 // ★★ 勝った場合 => ptn.getStockChange() 反映
                 // -------------------------------
-                double stBefore = getStock(); // キャッシュ上のstock
+                double stBefore = machine.getStock();
                 double newStock = ptn.getStockValue();
                 if(Objects.equals(ptn.getStockOperation(), "ADD")){
                     newStock += stBefore;
@@ -161,25 +147,10 @@ public class DebugSlotCommand implements CommandExecutor {
                 else if(Objects.equals(ptn.getStockOperation(), "SUB")){
                     newStock = stBefore-newStock;
                 }
-                configVarCache.put("stock", newStock);
+                machine.setStock((int) newStock);
 
                 // 報酬
-                for(Reward rw : ptn.getRewards()){
-                    if(rw==null) continue;
-                    switch(rw.getType().toLowerCase()){
-                        case "money"-> {
-                            double amt= parseRewardValue(rw.getValue(), machine);
-                            this.totalMoneyGain += amt;
-                        }
-                        case "item"-> {
-                            double qDouble= parseRewardValue(rw.getQuantity(), machine);
-                            if(qDouble<1) qDouble=1;
-                            int q=(int)qDouble;
-                            itemGainMap.put(rw.getValue(),
-                                    itemGainMap.getOrDefault(rw.getValue(),0)+q);
-                        }
-                    }
-                }
+                addRewards(ptn.getRewards(), machine, itemGainMap);
                 // nextSlotOnWin
                 if(ptn.getNextSlotOnWin()!=null && !ptn.getNextSlotOnWin().isEmpty()){
                     machine.setSlotConfigName(ptn.getNextSlotOnWin());
@@ -192,19 +163,14 @@ public class DebugSlotCommand implements CommandExecutor {
                 // ★★ 負けた場合 => loseStockChange 反映
                 // -------------------------------
                 double loseChange = currentCfg.getLoseStockValue();
-                double stBefore = getStock();
+                double stBefore = machine.getStock();
                 if(Objects.equals(currentCfg.getLoseStockOperation(), "ADD")){
-                    double newStock = stBefore + loseChange;
-                    configVarCache.put("stock", newStock);
+                    machine.setStock((int) (stBefore + loseChange));
                 }
                 else if(Objects.equals(currentCfg.getLoseStockOperation(), "SUB")) {
-                    double newStock = stBefore - loseChange;
-                    configVarCache.put("stock", newStock);
+                    machine.setStock((int) (stBefore - loseChange));
                 }
             }
-
-            // 回転終了後に stock を machine に同期
-            syncStockToMachine(machine);
         }
 
         double paybackRate = (totalCost>0)? (this.totalMoneyGain / totalCost)*100 : 0;
@@ -232,61 +198,22 @@ public class DebugSlotCommand implements CommandExecutor {
      * トップレベルのevent
      */
     private void runTopLevelEventOnce(SlotConfig cfg, MachineData machine, Map<String,Integer> itemGainMap) {
-        if(cfg.getEvent()==null || cfg.getEvent().isEmpty()) return;
-        for(var evt: cfg.getEvent()){
-            if(checkCondition(evt.getCondition(), machine)){
-                if(evt.getVarCalc()!=null && !evt.getVarCalc().isEmpty()){
-                    applyVarCalc(evt.getVarCalc(), machine);
-                }
-                for(Reward rw: evt.getRewards()){
-                    if(rw==null) continue;
-                    switch(rw.getType().toLowerCase()){
-                        case "money"-> {
-                            double amt= parseRewardValue(rw.getValue(), machine);
-                            this.totalMoneyGain += amt;
-                        }
-                        case "item"-> {
-                            double qDouble= parseRewardValue(rw.getQuantity(), machine);
-                            if(qDouble<1) qDouble=1;
-                            int q=(int)qDouble;
-                            itemGainMap.put(rw.getValue(),
-                                    itemGainMap.getOrDefault(rw.getValue(),0)+q);
-                        }
-                    }
-                }
-                if(evt.getNextSlotOnWin()!=null && !evt.getNextSlotOnWin().isEmpty()){
-                    machine.setSlotConfigName(evt.getNextSlotOnWin());
-                }
-            }
-        }
+        runEventsOnce(cfg.getEvent(), machine, itemGainMap);
     }
 
     /**
      * パターン内の event
      */
     private void runPatternEventOnce(PatternConfig ptn, MachineData machine, Map<String,Integer> itemGainMap) {
-        if(ptn.getEvent()==null || ptn.getEvent().isEmpty()) return;
-        for(var evt: ptn.getEvent()){
-            if(checkCondition(evt.getCondition(), machine)){
-                if(evt.getVarCalc()!=null && !evt.getVarCalc().isEmpty()){
-                    applyVarCalc(evt.getVarCalc(), machine);
-                }
-                for(Reward rw: evt.getRewards()){
-                    if(rw==null) continue;
-                    switch(rw.getType().toLowerCase()){
-                        case "money"-> {
-                            double amt= parseRewardValue(rw.getValue(), machine);
-                            this.totalMoneyGain += amt;
-                        }
-                        case "item"-> {
-                            double qDouble= parseRewardValue(rw.getQuantity(), machine);
-                            if(qDouble<1) qDouble=1;
-                            int q=(int)qDouble;
-                            itemGainMap.put(rw.getValue(),
-                                    itemGainMap.getOrDefault(rw.getValue(),0)+q);
-                        }
-                    }
-                }
+        runEventsOnce(ptn.getEvent(), machine, itemGainMap);
+    }
+
+    private void runEventsOnce(List<EventDefinition> events, MachineData machine, Map<String,Integer> itemGainMap) {
+        if(events==null || events.isEmpty()) return;
+        for(var evt: events){
+            if(checkCondition(evt.getCompiledCondition(), machine)){
+                applyVarCalc(evt, machine);
+                addRewards(evt.getRewards(), machine, itemGainMap);
                 if(evt.getNextSlotOnWin()!=null && !evt.getNextSlotOnWin().isEmpty()){
                     machine.setSlotConfigName(evt.getNextSlotOnWin());
                 }
@@ -294,85 +221,49 @@ public class DebugSlotCommand implements CommandExecutor {
         }
     }
 
-    private boolean checkCondition(String cond, MachineData machine){
-        if(cond==null||cond.isEmpty()) return false;
-        if(cond.equals("1")) return true;
-        double val= parseDoubleExpression(cond, machine);
-        return (Math.abs(val)>1e-7);
-    }
-
     /**
-     * 変数を計算する式: 例 "stock=stock+10"
+     * 報酬を集計 (money は入金合計へ、item は個数を加算)
      */
-    private void applyVarCalc(String expr, MachineData machine){
-        if(expr==null|| !expr.contains("="))return;
-        String[] sp= expr.split("=");
-        if(sp.length!=2)return;
-
-        String left= sp[0].trim();
-        String right= sp[1].trim();
-
-        String replaced = replaceVariables(right, machine);
-        double newVal=0;
-        try{
-            newVal= ExpressionParser.eval(replaced);
-        }catch(Exception ex){
-            plugin.getLogger().warning("[DebugSlot] applyVarCalc error:"+ex.getMessage()
-                    +" expr="+expr);
-            return;
-        }
-
-        if(left.equals("stock")){
-            configVarCache.put("stock", newVal);
-        } else {
-            // configVarCache にあるなら書き換え、なければ machine変数へ
-            if(configVarCache.containsKey(left)){
-                configVarCache.put(left, newVal);
-            } else {
-                Map<String,Double> mVars = machine.getVariables();
-                if(mVars==null){
-                    mVars=new HashMap<>();
-                    machine.setVariables(mVars);
+    private void addRewards(List<Reward> rewards, MachineData machine, Map<String,Integer> itemGainMap) {
+        for(Reward rw : rewards){
+            if(rw==null) continue;
+            switch(rw.getType().toLowerCase()){
+                case "money"-> {
+                    double amt= evalExpression(rw.getCompiledValue(), machine);
+                    this.totalMoneyGain += amt;
+                }
+                case "item"-> {
+                    double qDouble= evalExpression(rw.getCompiledQuantity(), machine);
+                    if(qDouble<1) qDouble=1;
+                    int q=(int)qDouble;
+                    itemGainMap.put(rw.getValue(),
+                            itemGainMap.getOrDefault(rw.getValue(),0)+q);
                 }
-                mVars.put(left,newVal);
             }
         }
     }
 
+    private boolean checkCondition(CompiledExpression cond, MachineData machine){
+        if(cond==null) return false;
+        double val= evalExpression(cond, machine);
+        return (Math.abs(val)>1e-7);
+    }
+
     /**
-     * 数値式を評価して double を返す
+     * 変数を計算する式: 例 "stock=stock+10"
      */
-    private double parseDoubleExpression(Object expr, MachineData machine){
-        if(expr==null) return 0;
-        String str= String.valueOf(expr);
-
-        String replaced = replaceVariables(str, machine);
-        try{
-            return ExpressionParser.eval(replaced);
-        }catch(Exception ex){
-            plugin.getLogger().warning("[DebugSlot] parseDoubleExpression error:"+ex.getMessage()+" expr="+replaced);
-            return 0;
-        }
+    private void applyVarCalc(EventDefinition evt, MachineData machine){
+        int target = evt.getVarCalcTarget();
+        if(target < 0) return;
+        machine.setVariable(target, evalExpression(evt.getCompiledVarCalc(), machine));
     }
 
     /**
-     * 報酬値を評価
+     * コンパイル済みの式を評価 (未設定なら 0)
      */
-    private double parseRewardValue(String expr, MachineData machine) {
-        if (machine == null) return 0;
-        // stock置換
-        expr = expr.replace("stock", String.valueOf(machine.getStock()));
-
-        // 変数置換
-        // 変数置換
-        Map<String, Double> varMap = machine.getVariables();
-        if (varMap == null) varMap = new HashMap<>();
-
-        for (var e : varMap.entrySet()) {
-            expr = expr.replaceAll("\\b" + e.getKey() + "\\b", e.getValue().toString());
-        }
-
-        return ExpressionParser.eval(expr);
+    private double evalExpression(CompiledExpression expr, MachineData machine){
+        if(expr==null) return 0;
+        return expr.eval(machine);
     }
 
     /**
@@ -384,7 +275,7 @@ public class DebugSlotCommand implements CommandExecutor {
         double r= ThreadLocalRandom.current().nextDouble(sumProb);
         double cum=0;
         for(PatternConfig pc: patterns){
-            double p= parseDoubleExpression(pc.getProbability(), machine);
+            double p= evalExpression(pc.getCompiledProbability(), machine);
             cum+= p;
             if(r< cum){
                 return pc;
@@ -392,55 +283,4 @@ public class DebugSlotCommand implements CommandExecutor {
         }
         return null;
     }
-
-    /**
-     * 回転終了時に configVarCache("stock") を MachineData に同期
-     */
-    private void syncStockToMachine(MachineData machine){
-        if(!configVarCache.containsKey("stock")) return;
-        double stVal = configVarCache.get("stock");
-        machine.setStock((int) stVal);
-    }
-
-    /**
-     * configVarCacheから "stock" を取得
-     */
-    private double getStock(){
-        if(!configVarCache.containsKey("stock")) return 0;
-        return configVarCache.get("stock");
-    }
-
-    /**
-     * 文字列の変数を configVarCache + machineVar + stock で置換
-     */
-    private String replaceVariables(String expr, MachineData machine){
-        if(expr==null) return "";
-        // 1) configVarCache
-        for(var e : configVarCache.entrySet()){
-            expr = expr.replaceAll("\\b"+ e.getKey()+"\\b", e.getValue().toString());
-        }
-        // 2) machineVar
-        Map<String,Double> mVars = machine.getVariables();
-        if(mVars==null){
-            mVars = new HashMap<>();
-            machine.setVariables(mVars);
-        }
-        for(var e : mVars.entrySet()){
-            expr = expr.replaceAll("\\b"+ e.getKey()+"\\b", e.getValue().toString());
-        }
-
-        // 3) 未定義 => 0
-        Pattern pat = Pattern.compile("\\b([a-zA-Z_][a-zA-Z0-9_]*)\\b");
-        Matcher m = pat.matcher(expr);
-        while(m.find()){
-            String unknown = m.group(1);
-            // 既に置換済みでなければ 0
-            // ただし厳密に "stock" は configVarCacheで置換済み
-            if(!unknown.equals("") && !unknown.matches("\\d+")){
-                plugin.getLogger().warning("[DebugSlot] 未定義変数 '"+unknown+"' => 0  expr="+expr);
-                expr = expr.replaceAll("\\b"+unknown+"\\b", "0");
-            }
-        }
-        return expr;
-    }
 }
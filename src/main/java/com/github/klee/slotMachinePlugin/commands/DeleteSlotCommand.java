@@ -3,14 +3,10 @@ package com.github.klee.slotMachinePlugin.commands;
 import com.github.klee.slotMachinePlugin.MachineManager;
 import com.github.klee.slotMachinePlugin.MachineManager.MachineData;
 import com.github.klee.slotMachinePlugin.SlotMachinePlugin;
-import org.bukkit.Bukkit;
-import org.bukkit.Material;
-import org.bukkit.block.Block;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
-import org.bukkit.metadata.MetadataValue;
 
 /**
  * /deleteslot <machineId>
@@ -42,30 +38,13 @@ public class DeleteSlotCommand implements CommandExecutor {
             return true;
         }
 
-        // ボタンブロックからmetadataを外す(見つかれば)
+        // ボタン座標の索引から外す
         MachineData md = MachineManager.getMachine(machineId);
-        if (md != null) {
-            // ワールド & ブロック検索
-            var w = Bukkit.getWorld(md.getWorldName());
-            if (w != null) {
-                Block b = w.getBlockAt(md.getX(), md.getY(), md.getZ());
-                if (b.getType() != Material.AIR && b.hasMetadata("MachineId")) {
-                    // もし他のSlot名が付いている場合を考慮
-                    var metas = b.getMetadata("MachineId");
-                    for (MetadataValue mv : metas) {
-                        if (mv.asString().equals(machineId)) {
-                            b.removeMetadata("MachineId", plugin);
-                            player.sendMessage("§eボタンブロックの MachineId '" + machineId + "' メタデータを削除しました。");
-                            break;
-                        }
-                    }
-                }
-            }
-        }
+        plugin.getMachineLocationIndex().remove(machineId, md);
 
         // MachineManagerから削除
-        MachineManager.getAllMachines().remove(machineId);
-        MachineManager.saveAllMachines();
+        MachineManager.removeMachine(machineId);
+        plugin.getFrameCache().invalidate(machineId);
 
         player.sendMessage("§aスロット '" + machineId + "' を削除しました。");
         return true;
@@ -1,5 +1,6 @@
 package com.github.klee.slotMachinePlugin.commands;
 
+import com.github.klee.slotMachinePlugin.MachineManager;
 import com.github.klee.slotMachinePlugin.SlotMachinePlugin;
 import com.github.klee.slotMachinePlugin.SlotManager;
 import org.bukkit.command.Command;
@@ -23,6 +24,13 @@ public class ReloadSlotCommand implements CommandExecutor {
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
 
+        // config.yml を再読み込み
+        plugin.reloadConfig();
+        plugin.getSpinAnimator().loadSettings(plugin.getConfig());
+        MachineManager.startWriteBehind(plugin.getConfig());
+        plugin.getSpinRecordWriter().start(plugin.getConfig());
+        plugin.getSlotRetention().start(plugin.getConfig());
+
         // JSONコンフィグを再読み込み
         slotManager.loadAllSlotConfigs();
 
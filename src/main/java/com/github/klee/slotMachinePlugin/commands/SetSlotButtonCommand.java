@@ -13,7 +13,6 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
-import org.bukkit.metadata.FixedMetadataValue;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -95,8 +94,8 @@ public class SetSlotButtonCommand implements CommandExecutor {
         }
 
         MachineManager.setMachineData(machineId, md);
-        block.setMetadata("MachineId", new FixedMetadataValue(plugin, machineId));
-        MachineManager.saveAllMachines();
+        plugin.getFrameCache().invalidate(machineId);
+        plugin.getMachineLocationIndex().put(machineId, md);
 
         player.sendMessage("§aボタンに machineId='" + machineId + "', config='" + configPath + "' を設定しました。");
         return true;
@@ -2,6 +2,7 @@ package com.github.klee.slotMachinePlugin.commands;
 
 import com.github.klee.slotMachinePlugin.SlotDatabase;
 import com.github.klee.slotMachinePlugin.SlotMachinePlugin;
+import com.github.klee.slotMachinePlugin.StorageDialect;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
@@ -11,8 +12,10 @@ import org.bukkit.command.CommandSender;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 /**
  * /slot analytics <topSlot|topUser> <periodInDays(double)>
@@ -96,39 +99,24 @@ public class SlotAnalyticsCommand implements CommandExecutor {
             return;
         }
 
-        List<SlotStat> list = new ArrayList<>();
-        try (Connection conn = db.getConnection()) {
-            String sql = """
-               SELECT slot_id,
-                      sum(CASE WHEN profit>0 THEN profit ELSE 0 END) as totalIncome,
-                      sum(CASE WHEN profit<0 THEN profit ELSE 0 END) as totalMinus
-               FROM slot_records
-               WHERE timestamp >= ?
-               GROUP BY slot_id
-            """;
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setLong(1, oldestTime);
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        String sid = rs.getString("slot_id");
-                        double inc = rs.getDouble("totalIncome");  // 入金
-                        double minus = rs.getDouble("totalMinus"); // 負(出金)
-                        double cost = -minus; // 出金の合計
-                        if(cost <= 0) cost = 1.0; // 0除算回避
-                        double rate = inc / cost;
-
-                        list.add(new SlotStat(sid, inc, cost, rate));
-                    }
-                }
+        // 集計は非同期で行い、結果の表示だけメインスレッドに戻す
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<SlotStat> list;
+            try {
+                // 書き込みを待たせないよう、読み取り用の接続で
+                list = topSlots(db, oldestTime);
+            } catch (Exception ex) {
+                Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("§cDBエラー:" + ex.getMessage()));
+                return;
             }
-        } catch (Exception ex) {
-            sender.sendMessage("§cDBエラー:" + ex.getMessage());
-            return;
-        }
 
-        // 還元率降順
-        list.sort((a,b)-> Double.compare(b.rate, a.rate));
+            // 還元率降順
+            list.sort((a,b)-> Double.compare(b.rate, a.rate));
+            Bukkit.getScheduler().runTask(plugin, () -> sendTopSlots(sender, days, list));
+        });
+    }
 
+    private void sendTopSlots(CommandSender sender, double days, List<SlotStat> list) {
         String periodStr = formatPeriod(days);
         sender.sendMessage("§a=== スロット別 還元率PF ( "+periodStr+" ) ===");
 
@@ -154,43 +142,168 @@ public class SlotAnalyticsCommand implements CommandExecutor {
 
         SlotDatabase db = plugin.getSlotDatabase();
         if(db==null){
+            sender.sendMessage("§cDB未初期化。");
             return;
         }
-        List<UserStat> userList= new ArrayList<>();
-
-        try(Connection conn= db.getConnection()){
-            String sql= """
-              SELECT uuid,
-                     sum(CASE WHEN profit>0 THEN profit ELSE 0 END) as totalIncome,
-                     sum(CASE WHEN profit<0 THEN profit ELSE 0 END) as totalMinus
-              FROM slot_records
-              WHERE timestamp >= ?
-              GROUP BY uuid
-              ORDER BY totalIncome DESC
-            """;
-            try(PreparedStatement ps= conn.prepareStatement(sql)){
-                ps.setLong(1, oldestTime);
-                try(ResultSet rs= ps.executeQuery()){
-                    while(rs.next()){
-                        String uuidStr= rs.getString("uuid");
-                        double inc= rs.getDouble("totalIncome");
-                        double minus= rs.getDouble("totalMinus");
-                        double cost= -minus;
-                        if(cost<=0) cost=1.0;
-                        double rate= inc/cost;
-
-                        userList.add(new UserStat(uuidStr, inc, cost, rate));
-                    }
+
+        // 集計は非同期で行い、結果の表示だけメインスレッドに戻す
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<UserStat> userList;
+            try {
+                userList = topUsers(db, oldestTime);
+            }catch(Exception ex){
+                Bukkit.getScheduler().runTask(plugin, () -> sender.sendMessage("§cDBエラー:"+ex.getMessage()));
+                return;
+            }
+
+            // rate降順
+            userList.sort((a,b)-> Double.compare(b.rate, a.rate));
+            Bukkit.getScheduler().runTask(plugin, () -> sendTopUsers(sender, days, userList));
+        });
+    }
+
+    /**
+     * oldestTime 以降のスロット別の入金・出金 (読み取り用の接続で。順不同)
+     */
+    public static List<SlotStat> topSlots(SlotDatabase db, long oldestTime) throws SQLException {
+        return query(db, SlotAnalyticsCommand::topSlotsSql, oldestTime, rs -> {
+            double inc = rs.getDouble("totalIncome");  // 入金
+            double cost = rs.getDouble("totalCost");   // 出金の合計
+            if(cost <= 0) cost = 1.0; // 0除算回避
+            return new SlotStat(rs.getString("slot_id"), inc, cost, inc / cost);
+        });
+    }
+
+    /**
+     * oldestTime 以降のユーザー別の入金・出金 (読み取り用の接続で。順不同)
+     */
+    public static List<UserStat> topUsers(SlotDatabase db, long oldestTime) throws SQLException {
+        return query(db, legacy -> topUsersSql(db.getDialect(), legacy), oldestTime, rs -> {
+            double inc= rs.getDouble("totalIncome");
+            double cost= rs.getDouble("totalCost");
+            if(cost<=0) cost=1.0;
+            return new UserStat(rs.getString("uuid"), inc, cost, inc/cost);
+        });
+    }
+
+    /**
+     * スロット別の SQL。期間の最初の途中の1時間だけ slot_records から、残りは1時間ごとの集計 (slot_hourly) から
+     */
+    static String topSlotsSql(boolean legacy) {
+        return """
+                   SELECT slot_id,
+                          sum(income) as totalIncome,
+                          sum(cost) as totalCost
+                   FROM (
+                      SELECT slot_id, income, cost FROM slot_hourly
+                      WHERE hour_bucket >= ?
+                      UNION ALL
+                      SELECT m.machine_id,
+                             CASE WHEN r.profit>0 THEN r.profit ELSE 0 END,
+                             CASE WHEN r.profit<0 THEN -r.profit ELSE 0 END
+                      FROM slot_records r JOIN machines m ON m.id = r.machine_id
+                      WHERE r.timestamp >= ? AND r.timestamp < ?
+                """ + (legacy ? """
+                      UNION ALL
+                      SELECT slot_id,
+                             CASE WHEN profit>0 THEN profit ELSE 0 END,
+                             CASE WHEN profit<0 THEN -profit ELSE 0 END
+                      FROM slot_records_legacy
+                      WHERE timestamp >= ? AND timestamp < ?
+                """ : "") + """
+                   ) w
+                   GROUP BY slot_id
+                """;
+    }
+
+    /**
+     * ユーザー別の SQL。期間の最初の途中の1時間だけ slot_records から、残りは1時間ごとの集計 (user_hourly) から
+     * (slot_records の UUID は16バイトなので、user_hourly と同じ文字列の形にそろえる)
+     */
+    static String topUsersSql(StorageDialect dialect, boolean legacy) {
+        return """
+                  SELECT uuid,
+                         sum(income) as totalIncome,
+                         sum(cost) as totalCost
+                  FROM (
+                     SELECT uuid, income, cost FROM user_hourly
+                     WHERE hour_bucket >= ?
+                     UNION ALL
+                     SELECT %s,
+                            CASE WHEN r.profit>0 THEN r.profit ELSE 0 END,
+                            CASE WHEN r.profit<0 THEN -r.profit ELSE 0 END
+                     FROM slot_records r JOIN players p ON p.id = r.player_id
+                     WHERE r.timestamp >= ? AND r.timestamp < ?
+                """.formatted(dialect.uuidText("p.uuid")) + (legacy ? """
+                     UNION ALL
+                     SELECT uuid,
+                            CASE WHEN profit>0 THEN profit ELSE 0 END,
+                            CASE WHEN profit<0 THEN -profit ELSE 0 END
+                     FROM slot_records_legacy
+                     WHERE timestamp >= ? AND timestamp < ?
+                """ : "") + """
+                  ) w
+                  GROUP BY uuid
+                  ORDER BY totalIncome DESC
+                """;
+    }
+
+    /**
+     * 結果の1行を読む
+     */
+    @FunctionalInterface
+    private interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * 集計の SQL を読み取り用の接続で実行する。
+     * 以前の記録 (slot_records_legacy) を含めて失敗し、その間に移行が終わっていた (テーブルが消えた) 場合は、含めずにやり直す
+     */
+    private static <T> List<T> query(SlotDatabase db, Function<Boolean, String> sqlFor, long oldestTime,
+                                     RowReader<T> reader) throws SQLException {
+        // 期間内で最初の、まるごと入る1時間
+        long firstHour = Math.floorDiv(oldestTime + SlotDatabase.HOUR_MS - 1, SlotDatabase.HOUR_MS);
+        return db.withReadConnection(conn -> {
+            boolean legacy = db.hasLegacyRecords();
+            try {
+                return run(conn, sqlFor.apply(legacy), firstHour, oldestTime, legacy, reader);
+            } catch (SQLException e) {
+                if (!legacy || db.hasLegacyRecords()) throw e;
+                return run(conn, sqlFor.apply(false), firstHour, oldestTime, false, reader);
+            }
+        });
+    }
+
+    private static <T> List<T> run(Connection conn, String sql, long firstHour, long oldestTime, boolean legacy,
+                                   RowReader<T> reader) throws SQLException {
+        List<T> list = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            bindWindow(ps, firstHour, oldestTime, legacy);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    list.add(reader.read(rs));
                 }
             }
-        }catch(Exception ex){
-            sender.sendMessage("§cDBエラー:"+ex.getMessage());
-            return;
         }
+        return list;
+    }
 
-        // rate降順
-        userList.sort((a,b)-> Double.compare(b.rate, a.rate));
+    /**
+     * 集計テーブルの開始時刻と、途中の1時間 (slot_records / slot_records_legacy) の範囲を入れる
+     */
+    private static void bindWindow(PreparedStatement ps, long firstHour, long oldestTime, boolean legacy) throws SQLException {
+        int i = 1;
+        ps.setLong(i++, firstHour);
+        ps.setLong(i++, oldestTime);
+        ps.setLong(i++, firstHour * SlotDatabase.HOUR_MS);
+        if (legacy) {
+            ps.setLong(i++, oldestTime);
+            ps.setLong(i, firstHour * SlotDatabase.HOUR_MS);
+        }
+    }
 
+    private void sendTopUsers(CommandSender sender, double days, List<UserStat> userList) {
         String periodStr= formatPeriod(days);
         sender.sendMessage("§a=== ユーザー別 還元率PF ( "+periodStr+" ) ===");
         int rank=1;
@@ -208,6 +321,6 @@ public class SlotAnalyticsCommand implements CommandExecutor {
         }
     }
 
-    private record SlotStat(String slotId, double income, double cost, double rate) {}
-    private record UserStat(String uuid, double income, double cost, double rate) {}
+    public record SlotStat(String slotId, double income, double cost, double rate) {}
+    public record UserStat(String uuid, double income, double cost, double rate) {}
 }
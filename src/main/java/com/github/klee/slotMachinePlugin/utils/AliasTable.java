@@ -0,0 +1,87 @@
+package com.github.klee.slotMachinePlugin.utils;
+
+import java.util.Random;
+
+/**
+ * Walker/Vose のエイリアス法による重み付き抽選表。
+ * 構築は O(n)、抽選は乱数 2 回で O(1)。
+ */
+public final class AliasTable {
+
+    private final double[] prob;
+    private final int[] alias;
+
+    /**
+     * @param weights 各要素の重み (0 以上、合計は正であること)
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("重みが空です");
+        }
+        double sum = 0;
+        for (double w : weights) {
+            if (w < 0 || Double.isNaN(w)) {
+                throw new IllegalArgumentException("重みが不正です: " + w);
+            }
+            sum += w;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("重みの合計が0です");
+        }
+
+        this.prob = new double[n];
+        this.alias = new int[n];
+
+        // 平均が 1 になるよう正規化し、1 未満(small) と 1 以上(large) に振り分ける
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int ns = 0, nl = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1.0) {
+                small[ns++] = i;
+            } else {
+                large[nl++] = i;
+            }
+        }
+
+        // small の余りを large で埋める
+        while (ns > 0 && nl > 0) {
+            int s = small[--ns];
+            int l = large[--nl];
+            prob[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0) {
+                small[ns++] = l;
+            } else {
+                large[nl++] = l;
+            }
+        }
+        // 残りは (誤差を除けば) ちょうど 1
+        while (nl > 0) {
+            int l = large[--nl];
+            prob[l] = 1.0;
+            alias[l] = l;
+        }
+        while (ns > 0) {
+            int s = small[--ns];
+            prob[s] = 1.0;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * 重みに比例した確率でインデックスを返す
+     */
+    public int sample(Random random) {
+        int i = random.nextInt(prob.length);
+        return (random.nextDouble() < prob[i]) ? i : alias[i];
+    }
+
+    public int size() {
+        return prob.length;
+    }
+}
@@ -0,0 +1,331 @@
+package com.github.klee.slotMachinePlugin.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ExpressionParser.compile() で生成される、コンパイル済みの式。
+ * 式は命令列(int[]) と定数表(double[]) にエンコードされ、
+ * 評価時は使い回しの double[] スタックで計算する (文字列処理・ボクシング・ロックなし)。
+ * 変数はコンパイル時に変数スロット(インデックス)へ束縛され、評価時はインデックスで読む。
+ * true/false は ExpressionParser と同じく 1.0 / 0.0 で表現される。
+ */
+public final class CompiledExpression {
+
+    //============================================================================
+    // 命令コード
+    //  PUSH_CONST, LOAD_VAR の直後にはオペランド(定数表のインデックス/変数スロット)が続く
+    //============================================================================
+    static final int PUSH_CONST = 0, LOAD_VAR = 1;
+    static final int NOT = 2, NEG = 3;
+    static final int ADD = 4, SUB = 5, MUL = 6, DIV = 7, MOD = 8;
+    static final int LT = 9, GT = 10, LE = 11, GE = 12, EQ = 13, NE = 14;
+    static final int AND = 15, OR = 16;
+
+    /**
+     * 評価用スタック (スレッドごとに使い回す)
+     */
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+
+    private final String source;
+    private final int[] code;
+    private final double[] constants;
+    private final int[] variableSlots;
+    private final int maxStack;
+    private final Set<String> variableSet;
+
+    CompiledExpression(String source, Node root) {
+        this.source = source;
+
+        Emitter em = new Emitter();
+        root.emit(em);
+        this.code = em.code.stream().mapToInt(Integer::intValue).toArray();
+        this.constants = em.constants.stream().mapToDouble(Double::doubleValue).toArray();
+        this.variableSlots = em.slots.stream().mapToInt(Integer::intValue).toArray();
+        this.maxStack = Math.max(1, em.maxDepth);
+        this.variableSet = Collections.unmodifiableSet(new LinkedHashSet<>(em.names));
+    }
+
+    static CompiledExpression constant(String source, double value) {
+        return new CompiledExpression(source, new Const(value));
+    }
+
+    /**
+     * 変数の値を差し込んで評価する。
+     * スレッドごとのスタックを使い回すため、評価中にヒープ確保は発生しない。
+     * @param resolver 変数スロット → 現在値
+     * @return 評価結果(0.0 => false, それ以外 => true)
+     */
+    public double eval(VariableResolver resolver) {
+        double[] stack = STACK.get();
+        if (stack.length < maxStack) {
+            stack = new double[maxStack];
+            STACK.set(stack);
+        }
+        return eval(resolver, stack);
+    }
+
+    /**
+     * 呼び出し側が用意したスタックで評価する。
+     * @param stack getMaxStack() 以上の長さを持つ作業領域
+     */
+    public double eval(VariableResolver resolver, double[] stack) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case PUSH_CONST -> stack[sp++] = constants[code[pc++]];
+                case LOAD_VAR -> stack[sp++] = resolver.valueOf(code[pc++]);
+                // a == 0 → true(1.0), それ以外 → false(0.0)
+                case NOT -> stack[sp - 1] = (Math.abs(stack[sp - 1]) < 1e-7) ? 1.0 : 0.0;
+                case NEG -> stack[sp - 1] = -stack[sp - 1];
+                default -> {
+                    // 二項演算子 (a op b)
+                    double b = stack[--sp];
+                    stack[sp - 1] = applyBinary(op, stack[sp - 1], b);
+                }
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * 式が参照している変数名 (出現順)
+     */
+    public Set<String> getVariables() {
+        return variableSet;
+    }
+
+    /**
+     * 式が参照している変数スロット (出現順)
+     */
+    public int[] getVariableSlots() {
+        return variableSlots.clone();
+    }
+
+    /**
+     * 変数を参照しない定数式かどうか
+     */
+    public boolean isConstant() {
+        return variableSlots.length == 0;
+    }
+
+    /**
+     * 評価に必要なスタックの深さ
+     */
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * 評価時に変数の値を解決するためのインターフェース
+     */
+    @FunctionalInterface
+    public interface VariableResolver {
+        double valueOf(int slot);
+    }
+
+    static double applyUnary(int op, double a) {
+        if (op == NOT) {
+            return (Math.abs(a) < 1e-7) ? 1.0 : 0.0;
+        }
+        return -a;
+    }
+
+    static double applyBinary(int op, double a, double b) {
+        return switch (op) {
+            case ADD -> a + b;
+            case SUB -> a - b;
+            case MUL -> a * b;
+            case DIV -> a / b;
+            case MOD -> a % b;
+
+            // 比較演算子
+            case LT -> (a < b) ? 1.0 : 0.0;
+            case GT -> (a > b) ? 1.0 : 0.0;
+            case LE -> (a <= b) ? 1.0 : 0.0;
+            case GE -> (a >= b) ? 1.0 : 0.0;
+            case EQ -> (Math.abs(a - b) < 1e-7) ? 1.0 : 0.0;
+            case NE -> (Math.abs(a - b) < 1e-7) ? 0.0 : 1.0;
+
+            // 論理演算子 (0 なら false, それ以外は true)
+            case AND -> (Math.abs(a) > 1e-7 && Math.abs(b) > 1e-7) ? 1.0 : 0.0;
+            case OR -> (Math.abs(a) > 1e-7 || Math.abs(b) > 1e-7) ? 1.0 : 0.0;
+            default -> 0.0;
+        };
+    }
+
+    /**
+     * 演算子トークン → 命令コード
+     */
+    static int opcodeOf(String token) {
+        return switch (token) {
+            case "!" -> NOT;
+            case "~" -> NEG;
+            case "+" -> ADD;
+            case "-" -> SUB;
+            case "*" -> MUL;
+            case "/" -> DIV;
+            case "%" -> MOD;
+            case "<" -> LT;
+            case ">" -> GT;
+            case "<=" -> LE;
+            case ">=" -> GE;
+            case "==" -> EQ;
+            case "!=" -> NE;
+            case "&&" -> AND;
+            case "||" -> OR;
+            default -> throw new IllegalArgumentException("未対応の演算子: " + token);
+        };
+    }
+
+    //============================================================================
+    // コンパイル時にのみ使う式ツリー
+    //  定数畳み込みを行ったあと、後置順に命令列へ書き出す
+    //============================================================================
+    static abstract class Node {
+        abstract void emit(Emitter em);
+    }
+
+    static final class Const extends Node {
+        final double value;
+
+        Const(double value) {
+            this.value = value;
+        }
+
+        @Override
+        void emit(Emitter em) {
+            em.pushConst(value);
+        }
+    }
+
+    static final class Var extends Node {
+        private final String name;
+        private final int slot;
+
+        Var(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        void emit(Emitter em) {
+            em.loadVar(name, slot);
+        }
+    }
+
+    static final class Unary extends Node {
+        private final int op;
+        private final Node child;
+
+        Unary(int op, Node child) {
+            this.op = op;
+            this.child = child;
+        }
+
+        @Override
+        void emit(Emitter em) {
+            child.emit(em);
+            em.op(op, 0);
+        }
+    }
+
+    static final class Binary extends Node {
+        private final int op;
+        private final Node left;
+        private final Node right;
+
+        Binary(int op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void emit(Emitter em) {
+            left.emit(em);
+            right.emit(em);
+            em.op(op, -1);
+        }
+    }
+
+    /**
+     * 単項演算ノードを作る。オペランドが定数ならその場で畳み込む。
+     */
+    static Node unary(String token, Node child) {
+        int op = opcodeOf(token);
+        if (child instanceof Const c) {
+            return new Const(applyUnary(op, c.value));
+        }
+        return new Unary(op, child);
+    }
+
+    /**
+     * 二項演算ノードを作る。両オペランドが定数ならその場で畳み込む。
+     */
+    static Node binary(String token, Node left, Node right) {
+        int op = opcodeOf(token);
+        if (left instanceof Const a && right instanceof Const b) {
+            return new Const(applyBinary(op, a.value, b.value));
+        }
+        return new Binary(op, left, right);
+    }
+
+    /**
+     * 命令列・定数表を組み立てる
+     */
+    static final class Emitter {
+        private final List<Integer> code = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final List<Integer> slots = new ArrayList<>();
+        private int depth;
+        private int maxDepth;
+
+        void pushConst(double value) {
+            int idx = constants.indexOf(value);
+            if (idx < 0) {
+                idx = constants.size();
+                constants.add(value);
+            }
+            code.add(PUSH_CONST);
+            code.add(idx);
+            grow(1);
+        }
+
+        void loadVar(String name, int slot) {
+            if (!slots.contains(slot)) {
+                names.add(name);
+                slots.add(slot);
+            }
+            code.add(LOAD_VAR);
+            code.add(slot);
+            grow(1);
+        }
+
+        void op(int op, int stackEffect) {
+            code.add(op);
+            grow(stackEffect);
+        }
+
+        private void grow(int delta) {
+            depth += delta;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+    }
+}
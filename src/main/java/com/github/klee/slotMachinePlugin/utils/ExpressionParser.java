@@ -3,6 +3,7 @@ package com.github.klee.slotMachinePlugin.utils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
+import java.util.function.ToIntFunction;
 
 /**
  * 数値/論理/比較演算子を含む式を簡易的にパースして評価するクラス。
@@ -12,18 +13,67 @@ public class ExpressionParser {
 
     /**
      * 外部から呼び出す評価メソッド。
+     * 式中に残った変数は 0 とみなす。繰り返し評価する式は compile() を使うこと。
      * @param expression 評価したい文字列式 (例: "-1.0<=0 && HP>0")
      * @return 評価結果をdoubleで返す(0.0 => false, それ以外 => true)
      */
     public static double eval(String expression) {
+        return compile(expression).eval(slot -> 0.0);
+    }
+
+    /**
+     * 変数を束縛せずにコンパイルする。式中の変数はすべて 0 とみなす。
+     * @see #compile(String, ToIntFunction)
+     */
+    public static CompiledExpression compile(String expression) {
+        return compile(expression, name -> -1);
+    }
+
+    /**
+     * 式を事前にコンパイルし、評価用の命令列を返す。
+     * 識別子(例: stock, HP)は binder で変数スロットに束縛され、評価時にスロットの値を読む。
+     * @param expression コンパイルしたい文字列式 (null/空文字は 0 として扱う)
+     * @param binder     変数名 → 変数スロット (負の値なら未定義として 0 扱い)
+     * @return コンパイル済みの式
+     * @throws IllegalArgumentException 演算子に対するオペランドが足りないなど、式が不正な場合
+     */
+    public static CompiledExpression compile(String expression, ToIntFunction<String> binder) {
+        if (expression == null) {
+            return CompiledExpression.constant("", 0.0);
+        }
         // 1) 空白除去
         String expr = expression.replaceAll("\\s+", "");
-        // 2) 文字列 → トークン列
-        List<String> tokens = tokenize(expr);
-        // 3) トークン列 → RPN(逆ポーランド記法) 変換
-        List<String> rpn = toRPN(tokens);
-        // 4) RPN をスタック計算
-        return calcRPN(rpn);
+        // 2) 文字列 → トークン列 → RPN(逆ポーランド記法) 変換
+        List<String> rpn = toRPN(tokenize(expr));
+
+        // 3) RPN を順に読み、式ツリーを組み立てる (定数部分は畳み込む)
+        Stack<CompiledExpression.Node> stack = new Stack<>();
+        for (String token : rpn) {
+            if (isNumber(token)) {
+                stack.push(new CompiledExpression.Const(Double.parseDouble(token)));
+            } else if (isIdentifier(token)) {
+                int slot = binder.applyAsInt(token);
+                stack.push(slot >= 0
+                        ? new CompiledExpression.Var(token, slot)
+                        : new CompiledExpression.Const(0.0));
+            } else if (isUnaryOperator(token)) {
+                if (stack.isEmpty()) {
+                    throw new IllegalArgumentException("演算子 '" + token + "' のオペランドがありません: " + expression);
+                }
+                stack.push(CompiledExpression.unary(token, stack.pop()));
+            } else {
+                if (stack.size() < 2) {
+                    throw new IllegalArgumentException("演算子 '" + token + "' のオペランドが足りません: " + expression);
+                }
+                CompiledExpression.Node b = stack.pop();
+                CompiledExpression.Node a = stack.pop();
+                stack.push(CompiledExpression.binary(token, a, b));
+            }
+        }
+        // 最後に残った値を結果とする (空の式は 0)
+        CompiledExpression.Node root = stack.isEmpty() ? new CompiledExpression.Const(0.0) : stack.pop();
+        // 4) 式ツリー → 命令列
+        return new CompiledExpression(expression, root);
     }
 
     //============================================================================
@@ -41,6 +91,15 @@ public class ExpressionParser {
             //    例: "-1.0", "+2.5" のように先頭 or (演算子/括弧 "(") の直後なら数値扱い
             //--------------------------------------------------------------------------
             if ((c == '+' || c == '-') && (i == 0 || isUnaryContext(tokens))) {
+                // 直後が数字でなければ (例: "-HP", "-(1+2)") 単項演算子として扱う
+                //   '-' は内部トークン "~"(符号反転) に置き換え、'+' は読み捨てる
+                if (i + 1 >= expr.length() || !(Character.isDigit(expr.charAt(i + 1)) || expr.charAt(i + 1) == '.')) {
+                    if (c == '-') {
+                        tokens.add("~");
+                    }
+                    i++;
+                    continue;
+                }
                 // いったん今の記号(+/-)を sb に入れ、後続の数字もまとめて読む
                 StringBuilder sb = new StringBuilder();
                 sb.append(c);
@@ -80,6 +139,19 @@ public class ExpressionParser {
                 continue;
             }
 
+            //--------------------------------------------------------------------------
+            // B2. 識別子トークン (変数名): 英字 or '_' で始まり、英数字 or '_' が続く
+            //--------------------------------------------------------------------------
+            if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                i++;
+                while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '_')) {
+                    i++;
+                }
+                tokens.add(expr.substring(start, i));
+                continue;
+            }
+
             //--------------------------------------------------------------------------
             // C. 複数文字演算子 (==, !=, <=, >=, &&, ||) のチェック
             //--------------------------------------------------------------------------
@@ -144,8 +216,8 @@ public class ExpressionParser {
         Stack<String> stack = new Stack<>();
 
         for (String token : tokens) {
-            // 数字は出力へ
-            if (isNumber(token)) {
+            // 数字・変数は出力へ
+            if (isNumber(token) || isIdentifier(token)) {
                 output.add(token);
             }
             // '(' はスタックに push
@@ -161,6 +233,10 @@ public class ExpressionParser {
                     stack.pop(); // '(' を捨てる
                 }
             }
+            // 前置の単項演算子 ('!', 符号反転) は右結合なので、そのまま push
+            else if (isUnaryOperator(token)) {
+                stack.push(token);
+            }
             // 演算子の場合
             else {
                 // ここで演算子の優先順位を比較し、スタックを pop
@@ -175,70 +251,14 @@ public class ExpressionParser {
             }
         }
 
-        // 残った演算子をすべて出力へ
+        // 残った演算子をすべて出力へ (閉じられていない '(' は捨てる)
         while (!stack.isEmpty()) {
-            output.add(stack.pop());
-        }
-        return output;
-    }
-
-    //============================================================================
-    // 3) 逆ポーランド記法を評価
-    //    数値演算/比較演算/論理演算を混在しつつ、結果を 1.0 or 0.0 で表す
-    //============================================================================
-    private static double calcRPN(List<String> rpn) {
-        Stack<Double> stack = new Stack<>();
-
-        for (String token : rpn) {
-            if (isNumber(token)) {
-                // 数値トークンをスタックにpush
-                stack.push(Double.parseDouble(token));
-            } else {
-                // 演算子
-                // 単項演算子 '!' は特別扱い
-                if (token.equals("!")) {
-                    double a = stack.pop();
-                    // a == 0 → true(1.0), それ以外 → false(0.0) の逆
-                    stack.push((Math.abs(a) < 1e-7) ? 1.0 : 0.0);
-                    continue;
-                }
-
-                // 二項演算子 (a op b)
-                double b = stack.pop();
-                double a = stack.pop();
-
-                switch (token) {
-                    case "+" -> stack.push(a + b);
-                    case "-" -> stack.push(a - b);
-                    case "*" -> stack.push(a * b);
-                    case "/" -> stack.push(a / b);
-                    case "%" -> stack.push(a % b);
-
-                    // 比較演算子
-                    case "<"  -> stack.push((a <  b) ? 1.0 : 0.0);
-                    case ">"  -> stack.push((a >  b) ? 1.0 : 0.0);
-                    case "<=" -> stack.push((a <= b) ? 1.0 : 0.0);
-                    case ">=" -> stack.push((a >= b) ? 1.0 : 0.0);
-                    case "==" -> stack.push((Math.abs(a - b) < 1e-7) ? 1.0 : 0.0);
-                    case "!=" -> stack.push((Math.abs(a - b) < 1e-7) ? 0.0 : 1.0);
-
-                    // 論理演算子
-                    // a, b を真偽とみなす→0 なら false, それ以外は true
-                    case "&&" -> {
-                        boolean boolA = (Math.abs(a) > 1e-7);
-                        boolean boolB = (Math.abs(b) > 1e-7);
-                        stack.push((boolA && boolB) ? 1.0 : 0.0);
-                    }
-                    case "||" -> {
-                        boolean boolA = (Math.abs(a) > 1e-7);
-                        boolean boolB = (Math.abs(b) > 1e-7);
-                        stack.push((boolA || boolB) ? 1.0 : 0.0);
-                    }
-                }
+            String op = stack.pop();
+            if (!op.equals("(")) {
+                output.add(op);
             }
         }
-        // スタックに最終結果が残っていれば、それを返す
-        return stack.isEmpty() ? 0.0 : stack.pop();
+        return output;
     }
 
     //============================================================================
@@ -253,17 +273,27 @@ public class ExpressionParser {
         }
     }
 
+    static boolean isIdentifier(String token) {
+        if (token.isEmpty()) return false;
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_';
+    }
+
     private static boolean isOperator(String token) {
         return switch (token) {
-            case "+", "-", "*", "/", "%", "<", ">", "<=", ">=", "==", "!=", "&&", "||", "!" -> true;
+            case "+", "-", "*", "/", "%", "<", ">", "<=", ">=", "==", "!=", "&&", "||", "!", "~" -> true;
             default -> false;
         };
     }
 
+    private static boolean isUnaryOperator(String token) {
+        return token.equals("!") || token.equals("~");
+    }
+
     /**
      * 演算子の優先度を返す。
      * 値が高いほど先に計算される。(典型的なC系言語の優先度と近似)
-     *  6: 単項演算子 '!'
+     *  6: 単項演算子 '!', '~'(符号反転)
      *  5: * / %
      *  4: + -
      *  3: < <= > >=
@@ -273,8 +303,8 @@ public class ExpressionParser {
      */
     private static int precedence(String op) {
         return switch (op) {
-            // 単項論理NOT
-            case "!" -> 6;
+            // 単項論理NOT / 符号反転
+            case "!", "~" -> 6;
             // 乗除
             case "*", "/", "%" -> 5;
             // 加減
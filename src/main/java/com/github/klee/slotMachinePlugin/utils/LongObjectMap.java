@@ -0,0 +1,152 @@
+package com.github.klee.slotMachinePlugin.utils;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * long をキーにするハッシュマップ (オープンアドレス法・線形探査)。
+ * キーをボクシングしないので、検索はエントリもイテレータも作らない。
+ * null は値として格納できない (空きスロットの印に使う)。
+ */
+public final class LongObjectMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        int cap = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(cap);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) return (V) v;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 以前の値 (無ければ null)
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null は格納できません");
+        }
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (mask + 1) * LOAD_FACTOR) {
+            rehash((mask + 1) << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return 削除した値 (無ければ null)
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        Object v;
+        while ((v = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return (V) v;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<Long, V> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) action.accept(keys[i], (V) values[i]);
+        }
+    }
+
+    private int slot(long key) {
+        // 上位ビットも混ぜる (座標を詰めたキーは下位ビットが偏るため)
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * 削除した位置を、後続の探査列を詰めて埋める (削除済みの印を使わない)
+     */
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) break;
+            int home = slot(keys[i]);
+            // home が (gap, i] の外にあれば gap に移せる
+            boolean movable = (gap <= i) ? (home <= gap || home > i) : (home <= gap && home > i);
+            if (movable) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void rehash(int newCap) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newCap);
+        for (int j = 0; j < oldValues.length; j++) {
+            Object v = oldValues[j];
+            if (v == null) continue;
+            int i = slot(oldKeys[j]);
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = v;
+        }
+    }
+
+    private void allocate(int cap) {
+        keys = new long[cap];
+        values = new Object[cap];
+        mask = cap - 1;
+    }
+}
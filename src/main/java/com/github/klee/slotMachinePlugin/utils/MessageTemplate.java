@@ -0,0 +1,80 @@
+package com.github.klee.slotMachinePlugin.utils;
+
+import org.bukkit.ChatColor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * メッセージ中の &lt;varName&gt; を変数スロットに束縛したテンプレート。
+ * "\n" → 改行、"&amp;" → カラーコードの変換はコンパイル時に済ませておき、
+ * 表示時は変数スロットの値(整数)を差し込むだけにする。
+ */
+public final class MessageTemplate {
+
+    // literals.length == slots.length + 1
+    private final String[] literals;
+    private final int[] slots;
+
+    private MessageTemplate(String[] literals, int[] slots) {
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * @param raw    設定ファイルのメッセージ (null は空文字)
+     * @param binder 変数名 → 変数スロット (負の値ならプレースホルダをそのまま残す)
+     */
+    public static MessageTemplate compile(String raw, ToIntFunction<String> binder) {
+        if (raw == null) raw = "";
+        // \n → 改行
+        String text = raw.replace("\\n", "\n");
+
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                int close = text.indexOf('>', i + 1);
+                if (close > i + 1) {
+                    String name = text.substring(i + 1, close);
+                    int slot = ExpressionParser.isIdentifier(name) ? binder.applyAsInt(name) : -1;
+                    if (slot >= 0) {
+                        literals.add(ChatColor.translateAlternateColorCodes('&', sb.toString()));
+                        slots.add(slot);
+                        sb.setLength(0);
+                        i = close + 1;
+                        continue;
+                    }
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        literals.add(ChatColor.translateAlternateColorCodes('&', sb.toString()));
+
+        return new MessageTemplate(
+                literals.toArray(new String[0]),
+                slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * 変数の値を差し込んだメッセージを返す
+     */
+    public String render(CompiledExpression.VariableResolver values) {
+        if (slots.length == 0) return literals[0];
+        StringBuilder sb = new StringBuilder(literals[0]);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append((long) values.valueOf(slots[i]));
+            sb.append(literals[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    public boolean isEmpty() {
+        return slots.length == 0 && literals[0].isEmpty();
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.utils.CompiledExpression;
+import com.github.klee.slotMachinePlugin.utils.ExpressionParser;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * 1回転で式を20本評価したときのヒープ確保量を測るベンチマーク (JUnit では実行しない)。
+ * <p>
+ * 回転処理と同じく、設定のスキーマに束縛した台 ({@link MachineManager.MachineData}) を変数の読み先にして
+ * コンパイル済みの式を評価し、varCalc 相当の書き込みも行う。
+ * 比較用に、同じ式を毎回文字列から評価した場合 ({@link ExpressionParser#eval(String)}) も測る。
+ * <pre>
+ * java -cp &lt;テストのクラスパス&gt; com.github.klee.slotMachinePlugin.ExpressionAllocationBench [回転数]
+ * </pre>
+ * 確保量はスレッドごとの確保バイト数 (com.sun.management.ThreadMXBean) 、GC はコレクタごとの回数と時間で見る。
+ * コンパイル済みの式で 1回転あたりの確保量が 0 でなければ終了コード 1 を返す。
+ */
+public class ExpressionAllocationBench {
+
+    private static final String[] EXPRESSIONS = {
+            "stock>0",
+            "bonus==1",
+            "count%3==0",
+            "(count+1)*2>=games",
+            "games<1000 && mode==0",
+            "mode==1 || mode==2",
+            "!(bonus==1)",
+            "-rate+100>50",
+            "stock>=100 && bonus==0 && games>10",
+            "count/(games+1)<0.5",
+            "rate*games/100",
+            "(stock-payout)*rate/100>0",
+            "ceiling-count",
+            "count%7==3 || count%11==5",
+            "payout>0 && !(mode==2)",
+            "games+count+bonus+mode",
+            "(games%2==0)*(count%2==1)",
+            "rate>=50 && rate<80",
+            "stock+payout*2-ceiling",
+            "1+2*3-4/2",
+    };
+
+    public static void main(String[] args) {
+        int spins = (args.length > 0) ? Integer.parseInt(args[0]) : 2_000_000;
+
+        List<String> names = List.of("bonus", "count", "games", "mode", "rate", "payout", "ceiling");
+        VariableSchema.publish(java.util.Map.of("bench", VariableSchema.of(names)));
+        MachineManager.MachineData machine = new MachineManager.MachineData();
+        machine.setSlotConfigName("bench");
+        machine.setStock(500);
+        machine.setVariable("bonus", 0);
+        machine.setVariable("games", 0);
+        machine.setVariable("mode", 1);
+        machine.setVariable("rate", 65);
+        machine.setVariable("payout", 120);
+        machine.setVariable("ceiling", 999);
+
+        CompiledExpression[] compiled = new CompiledExpression[EXPRESSIONS.length];
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            compiled[i] = ExpressionParser.compile(EXPRESSIONS[i], VariableSchema::register);
+        }
+        int countId = VariableSchema.indexOf("count");
+        int gamesId = VariableSchema.indexOf("games");
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("式 %d 本 / 1回転, 計測 %,d 回転%n", EXPRESSIONS.length, spins);
+
+        // コンパイル済みの式 (回転処理と同じ経路)
+        spinCompiled(compiled, machine, countId, gamesId, spins);  // ウォームアップ (JIT)
+        Result after = measure(threads, spins,
+                () -> spinCompiled(compiled, machine, countId, gamesId, spins));
+        after.print("compiled");
+
+        // 毎回文字列から評価 (変数は 0 扱い。パースのコストだけを見る)
+        int parseSpins = Math.max(1, spins / 100);
+        spinParse(parseSpins);
+        Result before = measure(threads, parseSpins, () -> spinParse(parseSpins));
+        before.print("parse   ");
+
+        if (after.bytesPerSpin() > 0) {
+            System.out.println("NG: コンパイル済みの式の評価でヒープ確保が発生しています");
+            System.exit(1);
+        }
+        System.out.println("OK: コンパイル済みの式の評価はヒープ確保なし");
+    }
+
+    // 結果を捨てないよう合計を持つ
+    private static double sink;
+
+    private static void spinCompiled(CompiledExpression[] compiled, MachineManager.MachineData machine,
+                                     int countId, int gamesId, int spins) {
+        double sum = 0;
+        for (int n = 0; n < spins; n++) {
+            for (CompiledExpression e : compiled) {
+                sum += e.eval(machine);
+            }
+            // varCalc 相当の書き込み
+            machine.setVariable(countId, machine.getVariable(countId) + 1);
+            machine.setVariable(gamesId, n & 1023);
+        }
+        sink += sum;
+    }
+
+    private static void spinParse(int spins) {
+        double sum = 0;
+        for (int n = 0; n < spins; n++) {
+            for (String expr : EXPRESSIONS) {
+                sum += ExpressionParser.eval(expr);
+            }
+        }
+        sink += sum;
+    }
+
+    private static Result measure(com.sun.management.ThreadMXBean threads, int spins, Runnable body) {
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        body.run();
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        return new Result(spins, bytes, elapsed, gcCount, gcTime);
+    }
+
+    private record Result(int spins, long bytes, long nanos, long gcCount, long gcMillis) {
+        // 計測の呼び出し自体の確保 (数十バイト) は回転数で割って切り捨てる
+        long bytesPerSpin() {
+            return bytes / spins;
+        }
+
+        void print(String label) {
+            System.out.printf("%s: %,d 回転  確保 %,d B (%,d B/回転)  %.1f ns/回転  GC %d 回 (%d ms)%n",
+                    label, spins, bytes, bytesPerSpin(), (double) nanos / spins, gcCount, gcMillis);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.klee.slotMachinePlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * slot_records への書き込みの持続スループットを測るベンチマーク (SQLite, JUnit では実行しない)。
+ * <p>
+ * ・before: 以前の SlotDatabase と同じく、1件ごとに接続を開き、CREATE TABLE IF NOT EXISTS を流し、1行 INSERT して閉じる
+ * ・after: 1本の WAL 接続 (SlotDatabase) で、書き込みスレッドと同じく batchSize 件ずつ1トランザクションで
+ *   複数行 INSERT ({@link SlotRecordInserter}) する
+ * <pre>
+ * java -cp &lt;テストのクラスパス&gt; com.github.klee.slotMachinePlugin.InsertThroughputBench [before件数] [after件数]
+ * </pre>
+ */
+public class InsertThroughputBench {
+
+    private static final int BATCH_SIZE = 2000;  // records.batchSize の既定値
+    private static final int PLAYERS = 200;
+    private static final int MACHINES = 50;
+
+    public static void main(String[] args) throws Exception {
+        int beforeRecords = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000;
+        int afterRecords = (args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000;
+
+        UUID[] players = new UUID[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new UUID(0x5107L, i);
+        }
+
+        Path dir = Files.createTempDirectory("slot-insert-bench");
+        try {
+            double before = before(dir.resolve("before").toFile(), players, beforeRecords);
+            double after = after(dir.resolve("after").toFile(), players, afterRecords);
+            System.out.printf("before: %,d 件  %,.0f 件/秒%n", beforeRecords, before);
+            System.out.printf("after : %,d 件  %,.0f 件/秒 (batch %d)%n", afterRecords, after, BATCH_SIZE);
+            System.out.printf("x%.0f%n", after / before);
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static double before(File folder, UUID[] players, int records) throws SQLException {
+        folder.mkdirs();
+        String url = "jdbc:sqlite:" + new File(folder, "slotData.db").getAbsolutePath();
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            try (Connection conn = DriverManager.getConnection(url)) {
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate("""
+                        CREATE TABLE IF NOT EXISTS slot_records (
+                           id INTEGER PRIMARY KEY AUTOINCREMENT,
+                           uuid TEXT NOT NULL,
+                           slot_id TEXT NOT NULL,
+                           timestamp BIGINT NOT NULL,
+                           profit DOUBLE NOT NULL
+                        );
+                    """);
+                }
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "INSERT INTO slot_records (uuid, slot_id, timestamp, profit) VALUES (?,?,?,?)")) {
+                    ps.setString(1, players[i % PLAYERS].toString());
+                    ps.setString(2, "machine" + (i % MACHINES));
+                    ps.setLong(3, i);
+                    ps.setDouble(4, (i & 1) == 0 ? -3 : 15);
+                    ps.executeUpdate();
+                }
+            }
+        }
+        return records / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double after(File folder, UUID[] players, int records) throws SQLException {
+        SlotDatabase database = new SlotDatabase(Logger.getLogger("bench"), new SqliteDialect(folder), 1);
+        database.init();
+        try {
+            SlotRecordInserter inserter = new SlotRecordInserter(database);
+            long start = System.nanoTime();
+            for (int from = 0; from < records; from += BATCH_SIZE) {
+                int to = Math.min(records, from + BATCH_SIZE);
+                int first = from;
+                database.withTransaction(conn -> {
+                    SlotDictionary dict = database.getDictionary();
+                    for (int i = first; i < to; i++) {
+                        inserter.add(dict.playerId(players[i % PLAYERS]), dict.machineId("machine" + (i % MACHINES)),
+                                i, (i & 1) == 0 ? -3 : 15);
+                    }
+                    inserter.execute();
+                    return null;
+                });
+            }
+            return records / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
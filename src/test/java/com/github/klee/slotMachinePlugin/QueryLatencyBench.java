@@ -0,0 +1,219 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.commands.SlotAnalyticsCommand;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * /slot analytics の集計の待ち時間を slot_records の行数が多い状態で測るベンチマーク (SQLite, JUnit では実行しない)。
+ * <p>
+ * ・before: 以前の SQL (期間内の slot_records をまるごと GROUP BY) をインデックスなしで
+ * ・index : 同じ SQL を (timestamp, 台/プレイヤー, profit) のインデックスありで
+ * ・after : 今の {@link SlotAnalyticsCommand#topSlots} / {@link SlotAnalyticsCommand#topUsers}
+ *   (1時間ごとの集計テーブル + 期間の最初の途中の1時間だけ slot_records)
+ * <pre>
+ * java -cp &lt;テストのクラスパス&gt; com.github.klee.slotMachinePlugin.QueryLatencyBench [行数]
+ * </pre>
+ * 記録は 30日間に均等に並べ、期間 1日 / 7日 / 全期間 で測る (3回の中央値)。
+ */
+public class QueryLatencyBench {
+
+    private static final int PLAYERS = 500;
+    private static final int MACHINES = 100;
+    private static final int DAYS = 30;
+    private static final long DAY_MS = 24 * SlotDatabase.HOUR_MS;
+    private static final int LOAD_BATCH = 50_000;
+    private static final int RUNS = 3;
+
+    private static final String[] INDEXES = {
+            "CREATE INDEX idx_records_time_machine ON slot_records (timestamp, machine_id, profit)",
+            "CREATE INDEX idx_records_time_player ON slot_records (timestamp, player_id, profit)",
+    };
+
+    // 以前の SQL (台・プレイヤーは辞書の番号になったので、名前は JOIN で引く)
+    private static final String OLD_SLOTS_SQL = """
+            SELECT m.machine_id AS slot_id,
+                   sum(CASE WHEN r.profit>0 THEN r.profit ELSE 0 END) as totalIncome,
+                   sum(CASE WHEN r.profit<0 THEN r.profit ELSE 0 END) as totalMinus
+            FROM slot_records r JOIN machines m ON m.id = r.machine_id
+            WHERE r.timestamp >= ?
+            GROUP BY m.machine_id
+            """;
+    private static final String OLD_USERS_SQL = """
+            SELECT lower(hex(p.uuid)) AS uuid,
+                   sum(CASE WHEN r.profit>0 THEN r.profit ELSE 0 END) as totalIncome,
+                   sum(CASE WHEN r.profit<0 THEN r.profit ELSE 0 END) as totalMinus
+            FROM slot_records r JOIN players p ON p.id = r.player_id
+            WHERE r.timestamp >= ?
+            GROUP BY p.uuid
+            ORDER BY totalIncome DESC
+            """;
+
+    private static final int[] WINDOWS = {1, 7, 0};
+
+    public static void main(String[] args) throws Exception {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+        long now = (System.currentTimeMillis() / SlotDatabase.HOUR_MS) * SlotDatabase.HOUR_MS + 1_234_567L;
+
+        Path dir = Files.createTempDirectory("slot-query-bench");
+        SlotDatabase database = new SlotDatabase(Logger.getLogger("bench"), new SqliteDialect(dir.toFile()), 1);
+        try {
+            database.init();
+            database.withConnection(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("DROP INDEX IF EXISTS idx_records_time_machine");
+                    st.execute("DROP INDEX IF EXISTS idx_records_time_player");
+                }
+                return null;
+            });
+            long start = System.nanoTime();
+            load(database, rows, now);
+            System.out.printf("%,d 行を読み込み (%.1f 秒)%n", rows, (System.nanoTime() - start) / 1e9);
+
+            System.out.printf("%-7s %-6s %12s %12s%n", "", "期間", "スロット別", "ユーザー別");
+            for (int days : WINDOWS) {
+                long oldest = oldest(now, days);
+                print("before", days, time(() -> oldQuery(database, OLD_SLOTS_SQL, oldest)),
+                        time(() -> oldQuery(database, OLD_USERS_SQL, oldest)));
+            }
+
+            start = System.nanoTime();
+            database.withConnection(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    for (String sql : INDEXES) {
+                        st.execute(sql);
+                    }
+                    st.execute("ANALYZE");
+                }
+                return null;
+            });
+            System.out.printf("インデックスを作成 (%.1f 秒)%n", (System.nanoTime() - start) / 1e9);
+
+            for (int days : WINDOWS) {
+                long oldest = oldest(now, days);
+                print("index", days, time(() -> oldQuery(database, OLD_SLOTS_SQL, oldest)),
+                        time(() -> oldQuery(database, OLD_USERS_SQL, oldest)));
+            }
+            for (int days : WINDOWS) {
+                long oldest = oldest(now, days);
+                print("after", days, time(() -> SlotAnalyticsCommand.topSlots(database, oldest).size()),
+                        time(() -> SlotAnalyticsCommand.topUsers(database, oldest).size()));
+            }
+        } finally {
+            database.close();
+            deleteRecursively(dir);
+        }
+    }
+
+    private static long oldest(long now, int days) {
+        return (days > 0) ? now - days * DAY_MS : 0L;
+    }
+
+    /**
+     * 30日間に均等に並べた記録と、同じ内容の1時間ごとの集計を書き込む
+     */
+    private static void load(SlotDatabase database, int rows, long now) throws SQLException {
+        UUID[] players = new UUID[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            players[i] = new UUID(0x5107L, i);
+        }
+        long first = now - DAYS * DAY_MS;
+        double step = (double) (DAYS * DAY_MS) / rows;
+        SlotRecordInserter inserter = new SlotRecordInserter(database);
+        for (int from = 0; from < rows; from += LOAD_BATCH) {
+            int to = Math.min(rows, from + LOAD_BATCH);
+            int start = from;
+            database.withTransaction(conn -> {
+                SlotDictionary dict = database.getDictionary();
+                for (int i = start; i < to; i++) {
+                    // 回転ごとにコスト (負) と払い出し (正) の2行になるので、交互に入れる
+                    inserter.add(dict.playerId(players[(i / 2) % PLAYERS]),
+                            dict.machineId("machine" + ((i / 2) % MACHINES)),
+                            first + (long) (i * step), (i & 1) == 0 ? -3 : (i % 7) * 2.5);
+                }
+                inserter.execute();
+                return null;
+            });
+        }
+        StorageDialect dialect = database.getDialect();
+        database.withTransaction(conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("""
+                        INSERT INTO slot_hourly (hour_bucket, slot_id, income, cost, spins)
+                        SELECT r.timestamp / %d, m.machine_id,
+                               sum(CASE WHEN r.profit>0 THEN r.profit ELSE 0 END),
+                               sum(CASE WHEN r.profit<0 THEN -r.profit ELSE 0 END),
+                               sum(CASE WHEN r.profit<0 THEN 1 ELSE 0 END)
+                        FROM slot_records r JOIN machines m ON m.id = r.machine_id
+                        GROUP BY 1, 2
+                        """.formatted(SlotDatabase.HOUR_MS));
+                st.executeUpdate("""
+                        INSERT INTO user_hourly (hour_bucket, uuid, income, cost, spins)
+                        SELECT r.timestamp / %d, %s,
+                               sum(CASE WHEN r.profit>0 THEN r.profit ELSE 0 END),
+                               sum(CASE WHEN r.profit<0 THEN -r.profit ELSE 0 END),
+                               sum(CASE WHEN r.profit<0 THEN 1 ELSE 0 END)
+                        FROM slot_records r JOIN players p ON p.id = r.player_id
+                        GROUP BY 1, 2
+                        """.formatted(SlotDatabase.HOUR_MS, dialect.uuidText("p.uuid")));
+            }
+            return null;
+        });
+    }
+
+    private static int oldQuery(SlotDatabase database, String sql, long oldest) throws SQLException {
+        return database.withReadConnection(conn -> {
+            int n = 0;
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, oldest);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) n++;
+                }
+            }
+            return n;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Query {
+        int run() throws SQLException;
+    }
+
+    /**
+     * @return RUNS 回の中央値 (ms)
+     */
+    private static double time(Query query) throws SQLException {
+        query.run();  // ウォームアップ (ページキャッシュ)
+        double[] ms = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            query.run();
+            ms[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(ms);
+        return ms[RUNS / 2];
+    }
+
+    private static void print(String label, int days, double slotsMs, double usersMs) {
+        System.out.printf("%-7s %-6s %10.1f ms %10.1f ms%n", label, (days > 0) ? days + "日" : "全期間", slotsMs, usersMs);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.github.klee.slotMachinePlugin;
+
+import com.github.klee.slotMachinePlugin.commands.SlotAnalyticsCommand;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 保存先ごとの SQL を実際の DB で流す (スキーマ・集計への足し込み・複数行 INSERT・期限切れの削除・集計の2つの SELECT)。
+ * <p>
+ * ・SQLite と組み込みの H2 に加え、MySQL の SQL を H2 の MySQL モードで流す
+ *   (H2 には MySQL の HEX() が無いので、同じ結果を返す関数を足してから)
+ * ・PostgreSQL の SQL (ON CONFLICT DO UPDATE・encode) は H2 では流せないため、本物のサーバーでだけ確かめる
+ * ・本物のサーバーでも確かめる場合は、接続先をシステムプロパティで渡す
+ *   (-Dslot.test.mysql=jdbc:mysql://... / -Dslot.test.postgresql=jdbc:postgresql://...、
+ *    ユーザー・パスワードは .user / .password を付けた名前で)。テーブルは作り直すので、テスト用の DB を使うこと
+ */
+public class StorageDialectTest {
+
+    private static final long HOUR = SlotDatabase.HOUR_MS;
+    private static final String[] TABLES = {
+            "slot_records", "slot_records_legacy", "players", "machines", "slot_hourly", "user_hourly", "slot_schema"};
+
+    /**
+     * テストする保存先 (データフォルダから方言を作る)
+     */
+    record Target(String name, Function<File, StorageDialect> create, String setupSql) {
+        Target(String name, Function<File, StorageDialect> create) {
+            this(name, create, null);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static List<Target> targets() {
+        List<Target> list = new ArrayList<>();
+        list.add(new Target("sqlite", SqliteDialect::new));
+        list.add(new Target("h2", dir -> new H2Dialect(H2Dialect.fileUrl(dir), "", "")));
+        list.add(new Target("mysql (H2 MySQL モード)", dir -> new JdbcDialect(JdbcDialect.Flavor.MYSQL,
+                "jdbc:h2:" + new File(dir, "mysql").getAbsolutePath() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE", "", ""),
+                "CREATE ALIAS IF NOT EXISTS hex FOR \"" + StorageDialectTest.class.getName() + ".hex\""));
+        server(list, "mysql", JdbcDialect.Flavor.MYSQL);
+        server(list, "postgresql", JdbcDialect.Flavor.POSTGRESQL);
+        return list;
+    }
+
+    private static void server(List<Target> list, String name, JdbcDialect.Flavor flavor) {
+        String url = System.getProperty("slot.test." + name);
+        if (url == null || url.isEmpty()) return;
+        String user = System.getProperty("slot.test." + name + ".user", "");
+        String password = System.getProperty("slot.test." + name + ".password", "");
+        list.add(new Target(name + " (" + url + ")", dir -> new JdbcDialect(flavor, url, user, password)));
+    }
+
+    @TempDir
+    File dataFolder;
+
+    /**
+     * 空の DB に最新のスキーマを作った SlotDatabase
+     */
+    private SlotDatabase open(Target target) throws SQLException {
+        StorageDialect dialect = target.create().apply(dataFolder);
+        // サーバーの DB は前回のテーブルが残っているので消しておく
+        try (Connection conn = dialect.open(); Statement st = conn.createStatement()) {
+            for (String table : TABLES) {
+                st.execute("DROP TABLE IF EXISTS " + table);
+            }
+            if (target.setupSql() != null) {
+                st.execute(target.setupSql());
+            }
+        }
+        SlotDatabase db = new SlotDatabase(Logger.getLogger("StorageDialectTest"), dialect, 2);
+        db.init();
+        return db;
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void schemaIsLatestAndCanBeAppliedAgain(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            StorageDialect dialect = db.getDialect();
+            db.withConnection(conn -> {
+                assertEquals(SlotSchema.latestVersion(), dialect.readSchemaVersion(conn));
+                for (String table : new String[]{"slot_records", "players", "machines", "slot_hourly", "user_hourly"}) {
+                    assertTrue(SlotSchema.tableExists(conn, table), table);
+                }
+                assertTrue(SlotSchema.indexExists(conn, "slot_records", "idx_records_time_machine"));
+                assertTrue(SlotSchema.indexExists(conn, "slot_records", "idx_records_time_player"));
+                if (!dialect.replaysHistory()) {
+                    // 版の行が書かれる前に落ちた baseline のやり直し (テーブル・インデックスは残っている)
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("DELETE FROM slot_schema");
+                    }
+                    SlotSchema.migrate(conn, dialect, Logger.getLogger("StorageDialectTest"));
+                    assertEquals(SlotSchema.latestVersion(), dialect.readSchemaVersion(conn));
+                }
+                return null;
+            });
+        } finally {
+            db.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void dictionaryRegistersEachValueOnce(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            UUID uuid = UUID.randomUUID();
+            int first = db.withTransaction(conn -> db.getDictionary().playerId(uuid));
+            // 別の SlotDatabase (= 別のサーバー) からも同じ番号になる
+            SlotDatabase other = new SlotDatabase(Logger.getLogger("StorageDialectTest"), db.getDialect(), 1);
+            try {
+                assertEquals(first, (int) other.withTransaction(conn -> other.getDictionary().playerId(uuid)));
+                int machine = other.withTransaction(conn -> other.getDictionary().machineId("m1"));
+                assertEquals(machine, (int) db.withTransaction(conn -> db.getDictionary().machineId("m1")));
+            } finally {
+                other.close();
+            }
+            assertEquals(1L, count(db, "SELECT count(*) FROM players"));
+            assertEquals(1L, count(db, "SELECT count(*) FROM machines"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void multiRowInsertWritesFullStatementsAndRemainder(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            int rows = db.getDialect().insertRowsPerStatement() * 2 + 7;
+            SlotRecordInserter inserter = new SlotRecordInserter(db);
+            db.withTransaction(conn -> {
+                int player = db.getDictionary().playerId(UUID.randomUUID());
+                int machine = db.getDictionary().machineId("m1");
+                for (int i = 0; i < rows; i++) {
+                    // 3行に1行はパターン無し (NULL)
+                    inserter.add(player, machine, 1000L + i, i, (i % 3 == 0) ? SpinRecordBuffer.NO_PATTERN : i % 3);
+                }
+                inserter.execute();
+                return null;
+            });
+            long noPattern = (rows + 2) / 3;
+            long patternSum = 0;
+            for (int i = 0; i < rows; i++) patternSum += i % 3;
+            assertEquals(rows, count(db, "SELECT count(*) FROM slot_records"));
+            assertEquals(noPattern, count(db, "SELECT count(*) FROM slot_records WHERE pattern_index IS NULL"));
+            assertEquals(patternSum, count(db, "SELECT sum(pattern_index) FROM slot_records"));
+            assertEquals((long) rows * (rows - 1) / 2, count(db, "SELECT CAST(sum(profit) AS BIGINT) FROM slot_records"));
+            assertEquals(1000L + rows - 1, count(db, "SELECT max(timestamp) FROM slot_records"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void rollupUpsertAddsToExistingRow(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            String sql = db.getDialect().upsertRollupSql("slot_hourly", "slot_id");
+            db.withTransaction(conn -> {
+                PreparedStatement ps = db.prepare(sql);
+                addRollup(ps, 10, "m1", 5.0, 3.0, 1);
+                addRollup(ps, 10, "m1", 2.0, 1.0, 2);
+                addRollup(ps, 11, "m1", 1.0, 0.0, 1);
+                ps.executeBatch();
+                return null;
+            });
+            db.withConnection(conn -> {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "SELECT income, cost, spins FROM slot_hourly WHERE hour_bucket = ? AND slot_id = ?")) {
+                    ps.setLong(1, 10);
+                    ps.setString(2, "m1");
+                    try (ResultSet rs = ps.executeQuery()) {
+                        assertTrue(rs.next());
+                        assertEquals(7.0, rs.getDouble(1));
+                        assertEquals(4.0, rs.getDouble(2));
+                        assertEquals(3, rs.getInt(3));
+                    }
+                }
+                return null;
+            });
+            assertEquals(2L, count(db, "SELECT count(*) FROM slot_hourly"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void deleteExpiredRemovesOnlyOldRowsUpToLimit(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            SlotRecordInserter inserter = new SlotRecordInserter(db);
+            db.withTransaction(conn -> {
+                int player = db.getDictionary().playerId(UUID.randomUUID());
+                int machine = db.getDictionary().machineId("m1");
+                for (int i = 0; i < 10; i++) inserter.add(player, machine, 1000L + i, -1.0);
+                for (int i = 0; i < 5; i++) inserter.add(player, machine, 100 * HOUR + i, 1.0);
+                inserter.execute();
+                return null;
+            });
+            String sql = db.getDialect().deleteExpiredSql();
+            List<Integer> deleted = new ArrayList<>();
+            int n;
+            do {
+                n = db.withTransaction(conn -> {
+                    PreparedStatement ps = db.prepare(sql);
+                    ps.setLong(1, HOUR);
+                    ps.setInt(2, 4);
+                    return ps.executeUpdate();
+                });
+                deleted.add(n);
+            } while (n > 0);
+            assertEquals(List.of(4, 4, 2, 0), deleted);
+            assertEquals(5L, count(db, "SELECT count(*) FROM slot_records"));
+            assertEquals(100 * HOUR, count(db, "SELECT min(timestamp) FROM slot_records"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("targets")
+    void analyticsCombineRollupsWithPartialFirstHour(Target target) throws SQLException {
+        SlotDatabase db = open(target);
+        try {
+            UUID alice = UUID.randomUUID();
+            UUID bob = UUID.randomUUID();
+            // 期間は 10.5時間目から: 11時間目以降は集計テーブル、10.5〜11時間目は slot_records から
+            long oldest = 10 * HOUR + HOUR / 2;
+            SlotRecordInserter inserter = new SlotRecordInserter(db);
+            db.withTransaction(conn -> {
+                SlotDictionary dict = db.getDictionary();
+                int a = dict.playerId(alice);
+                int b = dict.playerId(bob);
+                int m1 = dict.machineId("m1");
+                int m2 = dict.machineId("m2");
+                inserter.add(a, m1, oldest + 1, 30.0);
+                inserter.add(a, m1, oldest + 2, -10.0);
+                inserter.add(b, m2, oldest + 3, -5.0);
+                // 期間より前と、集計テーブルに入っている時間の行は数えない
+                inserter.add(a, m1, oldest - 1, 1000.0);
+                inserter.add(b, m2, 11 * HOUR, 1000.0);
+                inserter.execute();
+
+                PreparedStatement slot = db.prepare(db.getDialect().upsertRollupSql("slot_hourly", "slot_id"));
+                addRollup(slot, 11, "m1", 100.0, 40.0, 4);
+                addRollup(slot, 9, "m1", 1000.0, 1000.0, 1);
+                slot.executeBatch();
+                PreparedStatement user = db.prepare(db.getDialect().upsertRollupSql("user_hourly", "uuid"));
+                addRollup(user, 11, alice.toString(), 100.0, 40.0, 4);
+                addRollup(user, 9, alice.toString(), 1000.0, 1000.0, 1);
+                user.executeBatch();
+                return null;
+            });
+
+            List<SlotAnalyticsCommand.SlotStat> slots = SlotAnalyticsCommand.topSlots(db, oldest);
+            assertEquals(2, slots.size());
+            for (SlotAnalyticsCommand.SlotStat st : slots) {
+                if (st.slotId().equals("m1")) {
+                    assertEquals(130.0, st.income());
+                    assertEquals(50.0, st.cost());
+                } else {
+                    assertEquals("m2", st.slotId());
+                    assertEquals(0.0, st.income());
+                    assertEquals(5.0, st.cost());
+                }
+            }
+
+            // slot_records の16バイトの UUID が user_hourly と同じ文字列になり、1人1行にまとまる
+            List<SlotAnalyticsCommand.UserStat> users = SlotAnalyticsCommand.topUsers(db, oldest);
+            assertEquals(2, users.size());
+            assertEquals(alice.toString(), users.get(0).uuid());
+            assertEquals(130.0, users.get(0).income());
+            assertEquals(50.0, users.get(0).cost());
+            assertEquals(bob.toString(), users.get(1).uuid());
+            assertEquals(5.0, users.get(1).cost());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * MySQL の HEX(バイト列) と同じ (大文字の16進)。H2 の MySQL モード用
+     */
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+
+    private static void addRollup(PreparedStatement ps, long hour, String key, double income, double cost, int spins)
+            throws SQLException {
+        ps.setLong(1, hour);
+        ps.setString(2, key);
+        ps.setDouble(3, income);
+        ps.setDouble(4, cost);
+        ps.setInt(5, spins);
+        ps.addBatch();
+    }
+
+    private static long count(SlotDatabase db, String sql) throws SQLException {
+        return db.withConnection(conn -> {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+                assertTrue(rs.next());
+                return rs.getLong(1);
+            }
+        });
+    }
+}